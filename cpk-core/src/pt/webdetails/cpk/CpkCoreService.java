@@ -21,8 +21,14 @@ import pt.webdetails.cpf.RestRequestHandler;
 import pt.webdetails.cpf.Router;
 import pt.webdetails.cpk.cache.ICache;
 import pt.webdetails.cpk.elements.IElement;
+import pt.webdetails.cpk.elements.impl.KettleElement;
+import pt.webdetails.cpk.elements.impl.KettleElementHelper;
+import pt.webdetails.cpk.elements.impl.KettleResponseKey;
 import pt.webdetails.cpk.elements.impl.KettleResult;
 import pt.webdetails.cpk.elements.impl.KettleResultKey;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.RenderedResponse;
+import pt.webdetails.cpk.execution.AsyncExecution;
+import pt.webdetails.cpk.execution.AsyncExecutionStore;
 import pt.webdetails.cpk.security.IAccessControl;
 import pt.webdetails.cpk.utils.CpkUtils;
 
@@ -113,6 +119,124 @@ public class CpkCoreService {
     if( cache != null) {
       cache.clear();
     }
+    ICache<KettleResponseKey, RenderedResponse> responseCache = this.getEngine().getKettleResponseCache();
+    if ( responseCache != null ) {
+      responseCache.clear();
+    }
+  }
+
+  /**
+   * Removes cached results: those of an element, optionally only the ones obtained with some parameter values,
+   * and/or those tagged by the cpk.cache.tags parameter of their element. Clears the whole cache if neither an
+   * element nor a tag is given.
+   * @param elementId The id of the element, or null.
+   * @param parameters The parameter values of the element results to remove. Empty to remove all its results.
+   * @param tag The tag, or null.
+   * @return The number of removed results, or -1 if the whole cache was cleared.
+   */
+  public int clearKettleResultsCache( String elementId, Map<String, String> parameters, String tag ) {
+    boolean hasElement = elementId != null && !elementId.isEmpty();
+    boolean hasTag = tag != null && !tag.isEmpty();
+    if ( !hasElement && !hasTag ) {
+      this.clearKettleResultsCache();
+      return -1;
+    }
+
+    int evicted = 0;
+    if ( hasElement ) {
+      evicted += this.getEngine().evictCachedResults( elementId.toLowerCase(), parameters );
+    }
+    if ( hasTag ) {
+      evicted += this.getEngine().evictTaggedResults( tag );
+    }
+    return evicted;
+  }
+
+  /**
+   * Writes the status, as Json, of an asynchronous execution of the current user.
+   * @param executionId The id returned when the execution was submitted.
+   */
+  public void executionStatus( String executionId, OutputStream out, HttpServletResponse response )
+    throws IOException {
+    AsyncExecution<KettleResult> execution = this.getAsyncExecution( executionId, response );
+    if ( execution != null ) {
+      this.writeExecution( out, response, execution );
+    }
+  }
+
+  /**
+   * Cancels an asynchronous execution of the current user and writes its status as Json.
+   * @param executionId The id returned when the execution was submitted.
+   */
+  public void cancelExecution( String executionId, OutputStream out, HttpServletResponse response )
+    throws IOException {
+    AsyncExecution<KettleResult> execution = this.getAsyncExecution( executionId, response );
+    if ( execution != null ) {
+      if ( execution.cancel() ) {
+        logger.info( "Cancelled asynchronous execution " + executionId );
+      }
+      this.writeExecution( out, response, execution );
+    }
+  }
+
+  /**
+   * Writes the result of a finished asynchronous execution of the current user.
+   * The result is removed from the store, so it can only be fetched once.
+   * @param executionId The id returned when the execution was submitted.
+   */
+  public void executionResult( String executionId, Map<String, Map<String, Object>> bloatedMap )
+    throws IOException {
+    HttpServletResponse response = (HttpServletResponse) bloatedMap.get( "path" ).get( "httpresponse" );
+    AsyncExecution<KettleResult> execution = this.getAsyncExecution( executionId, response );
+    if ( execution == null ) {
+      return;
+    }
+
+    IElement element = this.getEngine().getElement( execution.getElementId() );
+    if ( !( element instanceof KettleElement ) ) {
+      response.sendError( HttpServletResponse.SC_NOT_FOUND );
+      return;
+    }
+
+    if ( this.getEngine().getAsyncExecutionStore().takeFinished( executionId ) == null ) {
+      // not finished yet, failed or cancelled
+      response.sendError( HttpServletResponse.SC_CONFLICT, "Execution is " + execution.getStatus() );
+      return;
+    }
+    KettleResult result = execution.getResult();
+    if ( result == null ) {
+      response.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Execution has no result" );
+      return;
+    }
+    ( (KettleElement) element ).processResult( result, bloatedMap );
+  }
+
+  /**
+   * @return The execution if it exists and belongs to the current user, who still has access to its element.
+   * Otherwise sends a not found error and returns null.
+   */
+  private AsyncExecution<KettleResult> getAsyncExecution( String executionId, HttpServletResponse response )
+    throws IOException {
+    AsyncExecutionStore<KettleResult> store = this.getEngine().getAsyncExecutionStore();
+    AsyncExecution<KettleResult> execution = store != null ? store.get( executionId ) : null;
+
+    IAccessControl accessControl = this.getEngine().getEnvironment().getAccessControl();
+    if ( execution != null && execution.isOwnedBy( KettleElementHelper.getCurrentUserName() ) ) {
+      IElement element = this.getEngine().getElement( execution.getElementId() );
+      if ( element == null || accessControl.isAllowed( element ) ) {
+        return execution;
+      }
+    }
+
+    // do not reveal executions of other users
+    response.sendError( HttpServletResponse.SC_NOT_FOUND );
+    return null;
+  }
+
+  private void writeExecution( OutputStream out, HttpServletResponse response,
+                               AsyncExecution<KettleResult> execution ) throws IOException {
+    CpkUtils.setResponseHeaders( response, "application/json" );
+    writeMessage( out, new ObjectMapper().writeValueAsString( execution ) );
   }
 
   public void status( OutputStream out, Map<String, Map<String, Object>> bloatedMap )
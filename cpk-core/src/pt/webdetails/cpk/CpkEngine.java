@@ -16,6 +16,7 @@ package pt.webdetails.cpk;
 import net.sf.ehcache.config.CacheConfiguration;
 import net.sf.ehcache.config.Configuration;
 import net.sf.ehcache.config.ConfigurationFactory;
+import net.sf.ehcache.config.MemoryUnit;
 import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
@@ -27,33 +28,66 @@ import org.dom4j.Node;
 import org.dom4j.io.SAXReader;
 import pt.webdetails.cpk.cache.EHCache;
 import pt.webdetails.cpk.cache.ICache;
+import pt.webdetails.cpk.cache.TinyLfuCache;
 import pt.webdetails.cpk.elements.Element;
 import pt.webdetails.cpk.elements.IDataSourceProvider;
 import pt.webdetails.cpk.elements.IElement;
+import pt.webdetails.cpk.elements.impl.KettleElement;
+import pt.webdetails.cpk.elements.impl.KettleResponseKey;
 import pt.webdetails.cpk.elements.impl.KettleResult;
 import pt.webdetails.cpk.elements.impl.KettleResultKey;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.RenderedResponse;
+import pt.webdetails.cpk.execution.AsyncExecutionStore;
+import pt.webdetails.cpk.execution.ExecutionGate;
 import pt.webdetails.cpf.utils.XmlParserFactoryProducer;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class CpkEngine {
 
   private static Log logger = LogFactory.getLog( CpkEngine.class );
   private static final String DEFAULT_SETTINGS_FILENAME = "cpk.xml";
   private static final String DEFAULT_CACHE_SETTINGS_FILENAME = "ehcache.xml";
+  private static final String DEFAULT_CACHE_MAX_BYTES_LOCAL_HEAP = "64m";
+  private static final String DEFAULT_CACHE_MAX_BYTES_PER_ENTRY = "16m";
+  private static final String DEFAULT_RESPONSES_CACHE_MAX_BYTES_LOCAL_HEAP = "32m";
+  private static final String DEFAULT_RESPONSES_CACHE_MAX_BYTES_PER_ENTRY = "4m";
+  private static final String TINY_LFU_CACHE_TYPE = "tinylfu";
   private ICpkEnvironment environment;
   private String settingsFilename;
-  private TreeMap<String, IElement> elementsMap;
-  private IElement defaultElement;
+  private volatile ElementRegistry registry = ElementRegistry.EMPTY;
 
-  private ICache<KettleResultKey, KettleResult> kettleResultCache;
+  private volatile ICache<KettleResultKey, KettleResult> kettleResultCache;
+  private volatile ICache<KettleResponseKey, RenderedResponse> kettleResponseCache;
+  private int maxResponseSize;
+
+  private ExecutionGate executionGate;
+
+  private AsyncExecutionStore<KettleResult> asyncExecutionStore;
+
+  private List<ElementLocation> elementLocations = Collections.emptyList();
+  private String defaultElementId;
+  private volatile Set<String> hotElementIds = Collections.emptySet();
+  private ElementsWatcher elementsWatcher;
+  // loads elements and executes them at start. Its threads are daemons, it is never shut down
+  private final ForkJoinPool loadPool = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
 
   private String getDefaultCacheName() {
     return CpkEngine.class.getPackage().getName() + ":" + this.getEnvironment().getPluginName();
@@ -80,8 +114,28 @@ public class CpkEngine {
     return this.kettleResultCache;
   }
 
+  /**
+   * @return The cache that stores the encoded responses of kettle elements, or null if responses are not cached.
+   */
+  public ICache<KettleResponseKey, RenderedResponse> getKettleResponseCache() {
+    return this.kettleResponseCache;
+  }
+
+  /**
+   * @return The admission control shared by all kettle elements of the plugin.
+   */
+  public ExecutionGate getExecutionGate() {
+    return this.executionGate;
+  }
+
+  /**
+   * @return The store of the kettle element executions running in the background.
+   */
+  public AsyncExecutionStore<KettleResult> getAsyncExecutionStore() {
+    return this.asyncExecutionStore;
+  }
+
   private CpkEngine() {
-    this.elementsMap = new TreeMap<String, IElement>();
   }
 
   // singleton
@@ -115,6 +169,11 @@ public class CpkEngine {
    * If this fails it uses the default hardcoded configuration to initialize the cache.
    */
   private synchronized void initializeKettleResultCache() {
+    this.kettleResultCache = this.createEHCache();
+    this.reload();
+  }
+
+  private EHCache<KettleResultKey, KettleResult> createEHCache() {
     CacheConfiguration cacheConfiguration;
 
     InputStream configFile = null;
@@ -143,11 +202,10 @@ public class CpkEngine {
       IOUtils.closeQuietly( configFile );
     }
 
-    this.kettleResultCache = new EHCache<KettleResultKey, KettleResult>( cacheConfiguration );
-    this.reload();
+    return new EHCache<KettleResultKey, KettleResult>( cacheConfiguration );
   }
 
-  public void reload() {
+  public synchronized void reload() {
     logger.info( "Initializing CPK Plugin '" + this.environment.getPluginName() + "'" );
     long start = System.currentTimeMillis();
 
@@ -160,6 +218,9 @@ public class CpkEngine {
     if ( this.getKettleResultCache() != null ) {
       this.getKettleResultCache().clear();
     }
+    if ( this.getKettleResponseCache() != null ) {
+      this.getKettleResponseCache().clear();
+    }
 
     long end = System.currentTimeMillis();
     logger.info( "Finished initialization of CPK PLugin '" + this.environment.getPluginName() + "' in "
@@ -173,33 +234,35 @@ public class CpkEngine {
   // return element or null
   public IElement getElement( String elementId ) {
     logger.debug( "Getting element '" + elementId + "'" );
-    return this.elementsMap.get( elementId );
+    return this.registry.get( elementId );
   }
 
   // return read-only elements collection
   public Collection<IElement> getElements() {
     logger.debug( "Getting read-only collection of elements" );
-    return Collections.unmodifiableCollection( this.elementsMap.values() );
+    return this.registry.getElements();
   }
 
   // return read-only elements map < id, element >
   public Map<String, IElement> getElementsMap() {
     logger.debug( "Getting read-only map of elements" );
-    return Collections.unmodifiableMap( this.elementsMap );
+    return this.registry.getElementsMap();
   }
 
   // return default element or null
   public IElement getDefaultElement() {
-    logger.debug( "Getting default element '" + this.defaultElement.getName() + "'" );
-    return this.defaultElement;
+    IElement defaultElement = this.registry.getDefaultElement();
+    logger.debug( "Getting default element '" + ( defaultElement != null ? defaultElement.getName() : null ) + "'" );
+    return defaultElement;
   }
 
   // TODO: refactor
   public Status getStatus() {
-    if ( this.defaultElement != null ) {
-      return new Status( this.elementsMap, this.defaultElement.getName(), this.environment );
+    ElementRegistry registry = this.registry;
+    if ( registry.getDefaultElement() != null ) {
+      return new Status( registry.getElementsMap(), registry.getDefaultElement().getName(), this.environment );
     } else {
-      return new Status( this.elementsMap, "", this.environment );
+      return new Status( registry.getElementsMap(), "", this.environment );
     }
   }
 
@@ -213,43 +276,41 @@ public class CpkEngine {
       SAXReader reader = XmlParserFactoryProducer.getSAXReader( null );
       Document doc = reader.read( is );
 
-      // clean elements map
-      this.elementsMap.clear();
+      // plugin wide execution limits
+      this.executionGate = this.createExecutionGate( doc.selectSingleNode( "/cpk/execution" ) );
+      this.configureKettleResultCache( doc.selectSingleNode( "/cpk/cache" ) );
+      // created only once, so that background executions survive a reload
+      if ( this.asyncExecutionStore == null ) {
+        this.asyncExecutionStore = this.createAsyncExecutionStore( doc.selectSingleNode( "/cpk/execution/async" ) );
+      }
 
-      // go through each element type
-      List elementTypeNodes = doc.selectNodes( "/cpk/elementTypes/elementType" );
-      for ( Object elementTypeNode : elementTypeNodes ) {
-        Node type = (Node) elementTypeNode;
+      ForkJoinPool pool = this.loadPool;
+      long start = System.currentTimeMillis();
+      Collection<ElementCandidate> candidates = this.discoverElements( doc, pool );
+      long discovered = System.currentTimeMillis();
 
-        // get element type attributes
-        String typeName = type.valueOf( "./@name" );
-        String typeClass = type.valueOf( "./@class" );
-        logger.info( "Loading '" + typeName + "' elements [" + typeClass + "]" );
+      // build the new registry aside, requests keep being served by the current one until it is published
+      TreeMap<String, IElement> elements = new TreeMap<String, IElement>();
+      Collection<KettleElement> executeAtStart =
+        this.registerElements( this.createElements( candidates, pool ), elements );
 
-        // go through each location for elements of that type
-        List elementLocations = type.selectNodes( "elementLocations/elementLocation" );
-        for ( Object elementLocation : elementLocations ) {
-          Node location = (Node) elementLocation;
+      // get default element
+      this.defaultElementId = doc.selectSingleNode( "/cpk/elementTypes" ).valueOf( "@defaultElement" ).toLowerCase();
+      ElementRegistry previous = this.publish( elements, findDefaultElement( this.defaultElementId, elements ) );
+      this.disposeElements( previous.getElements() );
+      long registered = System.currentTimeMillis();
 
-          // get location attributes
-          String path = location.valueOf( "@path" );
-          Boolean isRecursive = Boolean.parseBoolean( location.valueOf( "@isRecursive" ) );
-          String pattern = location.valueOf( "@pattern" );
-          Boolean adminOnly = Boolean.parseBoolean( location.valueOf( "@adminOnly" ) );
+      this.executeAtStart( executeAtStart, pool );
+      long executed = System.currentTimeMillis();
+      this.hotElementIds = parseElementIds( doc.selectSingleNode( "/cpk/elementTypes" ).valueOf( "@hotElements" ) );
+      this.prewarmElements( this.hotElementIds, pool );
 
-          // go through each file in that location and load elements
-          Collection<File> files = this.environment.getPluginUtils().getPluginResources( path, isRecursive, pattern );
-          if ( files != null ) {
-            for ( File file : files ) {
-              loadElement( typeName, typeClass, file.getAbsolutePath(), adminOnly );
-            }
-          }
-        }
-      }
+      logger.info( "Loaded " + elements.size() + " elements: discovery " + ( discovered - start )
+        + " ms, loading " + ( registered - discovered ) + " ms, executing " + executeAtStart.size()
+        + " elements at start " + ( executed - registered ) + " ms" );
 
-      // get default element
-      this.defaultElement = findDefaultElement(
-        doc.selectSingleNode( "/cpk/elementTypes" ).valueOf( "@defaultElement" ).toLowerCase() );
+      // reload only the changed elements when their files change
+      this.watchElements( Boolean.parseBoolean( doc.selectSingleNode( "/cpk/elementTypes" ).valueOf( "@watch" ) ) );
 
       // close file
       is.close();
@@ -257,63 +318,703 @@ public class CpkEngine {
       logger.error( "Failed to open settings file '" + this.settingsFilename + "'" );
     } catch ( DocumentException e ) {
       logger.error( "Failed to parse settings file '" + this.settingsFilename + "'" );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      logger.error( "Interrupted while loading elements" );
+    }
+  }
+
+  /**
+   * An elementLocation of the settings file.
+   */
+  private static final class ElementLocation {
+    private final String type;
+    private final String typeClass;
+    private final String path;
+    private final boolean isRecursive;
+    private final String pattern;
+    private final boolean adminOnly;
+    private final boolean lazy;
+    private final File directory;
+
+    private ElementLocation( String type, String typeClass, String path, boolean isRecursive, String pattern,
+                             boolean adminOnly, boolean lazy, File pluginDirectory ) {
+      this.type = type;
+      this.typeClass = typeClass;
+      this.path = path;
+      this.isRecursive = isRecursive;
+      this.pattern = pattern;
+      this.adminOnly = adminOnly;
+      this.lazy = lazy;
+      this.directory = pluginDirectory != null
+        ? new File( FilenameUtils.normalize( pluginDirectory.getAbsolutePath() + File.separator + path ) ) : null;
+    }
+
+    /**
+     * @return true if the file would be listed as an element of this location.
+     */
+    private boolean contains( File file ) {
+      if ( this.directory == null ) {
+        return false;
+      }
+      File parent = file.getParentFile();
+      boolean inDirectory = this.isRecursive
+        ? file.getAbsolutePath().startsWith( this.directory.getAbsolutePath() + File.separator )
+        : this.directory.equals( parent );
+      boolean matches = this.pattern == null || this.pattern.isEmpty() || file.getName().matches( this.pattern );
+      return inDirectory && matches;
     }
   }
 
-  private void loadElement( String type, String typeClass, String filePath, boolean adminOnly ) {
-    // id = filename in lowercase
-    String id = FilenameUtils.getBaseName( filePath ).toLowerCase();
+  /**
+   * An element file found in one of the element locations, not yet loaded.
+   */
+  private static final class ElementCandidate {
+    private final String type;
+    private final String typeClass;
+    private final String filePath;
+    private final boolean adminOnly;
+    private final boolean lazy;
+    private final String id;
 
-    // skip element if id starts with '_' (private elements)
-    if ( id.startsWith( "_" ) ) {
-      logger.debug( "Skipped element '" + filePath + "'" );
-      return;
+    private ElementCandidate( ElementLocation location, String filePath ) {
+      this.type = location.type;
+      this.typeClass = location.typeClass;
+      this.filePath = filePath;
+      this.adminOnly = location.adminOnly;
+      this.lazy = location.lazy;
+      // id = filename in lowercase
+      this.id = FilenameUtils.getBaseName( filePath ).toLowerCase();
+    }
+  }
+
+  /**
+   * Lists the files of every element location, in parallel, and chooses which of them are to be loaded.
+   * Candidates are ordered as the settings file lists their locations and, within each location, by file path, so
+   * that the outcome does not depend on which listing finishes first. Files with the same id are all candidates:
+   * which one is registered is only decided once they are loaded (see registerElements).
+   * @return the elements to load, by the order they are to be registered.
+   */
+  private Collection<ElementCandidate> discoverElements( Document doc, ForkJoinPool pool )
+    throws InterruptedException {
+    List<ElementLocation> locations = new ArrayList<ElementLocation>();
+    File pluginDirectory = this.environment.getPluginUtils().getPluginDirectory();
+
+    // go through each element type
+    List elementTypeNodes = doc.selectNodes( "/cpk/elementTypes/elementType" );
+    for ( Object elementTypeNode : elementTypeNodes ) {
+      Node type = (Node) elementTypeNode;
+
+      // get element type attributes
+      final String typeName = type.valueOf( "./@name" );
+      final String typeClass = type.valueOf( "./@class" );
+      logger.info( "Loading '" + typeName + "' elements [" + typeClass + "]" );
+
+      // go through each location for elements of that type
+      List elementLocations = type.selectNodes( "elementLocations/elementLocation" );
+      for ( Object elementLocation : elementLocations ) {
+        Node location = (Node) elementLocation;
+
+        // get location attributes
+        locations.add( new ElementLocation( typeName, typeClass,
+          location.valueOf( "@path" ),
+          Boolean.parseBoolean( location.valueOf( "@isRecursive" ) ),
+          location.valueOf( "@pattern" ),
+          Boolean.parseBoolean( location.valueOf( "@adminOnly" ) ),
+          Boolean.parseBoolean( location.valueOf( "@lazy" ) ),
+          pluginDirectory ) );
+      }
+    }
+    this.elementLocations = locations;
+
+    List<Callable<List<ElementCandidate>>> listings = new ArrayList<Callable<List<ElementCandidate>>>();
+    for ( final ElementLocation location : locations ) {
+      listings.add( new Callable<List<ElementCandidate>>() {
+        @Override
+        public List<ElementCandidate> call() {
+          List<ElementCandidate> candidates = new ArrayList<ElementCandidate>();
+          Collection<File> files = CpkEngine.this.environment.getPluginUtils()
+            .getPluginResources( location.path, location.isRecursive, location.pattern );
+          if ( files != null ) {
+            for ( File file : files ) {
+              candidates.add( new ElementCandidate( location, file.getAbsolutePath() ) );
+            }
+          }
+          Collections.sort( candidates, new Comparator<ElementCandidate>() {
+            @Override
+            public int compare( ElementCandidate first, ElementCandidate second ) {
+              return first.filePath.compareTo( second.filePath );
+            }
+          } );
+          return candidates;
+        }
+      } );
+    }
+
+    List<ElementCandidate> candidates = new ArrayList<ElementCandidate>();
+    for ( Future<List<ElementCandidate>> listing : pool.invokeAll( listings ) ) {
+      for ( ElementCandidate candidate : this.getQuietly( listing, Collections.<ElementCandidate>emptyList() ) ) {
+        // skip element if id starts with '_' (private elements)
+        if ( candidate.id.startsWith( "_" ) ) {
+          logger.debug( "Skipped element '" + candidate.filePath + "'" );
+          continue;
+        }
+        // skip element if the id is a reserved word
+        if ( this.environment.getReservedWords().contains( candidate.id ) ) {
+          logger.warn( "Skipped element '" + candidate.filePath + "': '" + candidate.id + "' is a reserved word" );
+          continue;
+        }
+        candidates.add( candidate );
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Creates and initializes the elements in parallel. Parsing the kettle files is most of the loading time.
+   * @return the elements, in the same order as the candidates. Null for elements that failed to load.
+   */
+  private List<Future<Element>> createElements( Collection<ElementCandidate> candidates, ForkJoinPool pool )
+    throws InterruptedException {
+    List<Callable<Element>> loaders = new ArrayList<Callable<Element>>( candidates.size() );
+    for ( final ElementCandidate candidate : candidates ) {
+      loaders.add( new Callable<Element>() {
+        @Override
+        public Element call() {
+          return CpkEngine.this.loadElement( candidate );
+        }
+      } );
+    }
+    return pool.invokeAll( loaders );
+  }
+
+  /**
+   * Replaces the current registry with a new one built from the given elements.
+   * @return the replaced registry.
+   */
+  private ElementRegistry publish( SortedMap<String, IElement> elements, IElement defaultElement ) {
+    ElementRegistry previous = this.registry;
+    this.registry = new ElementRegistry( elements, defaultElement );
+    return previous;
+  }
+
+  /**
+   * Adds the loaded elements to the elements map. When more than one element has the same id, the first one that
+   * loaded successfully is registered, so that a broken file does not hide a valid one with the same id.
+   * @param elements The elements map where to add them.
+   * @return the registered elements that are to be executed at start.
+   */
+  private Collection<KettleElement> registerElements( List<Future<Element>> loadedElements,
+                                                      Map<String, IElement> elements ) {
+    Collection<KettleElement> executeAtStart = new ArrayList<KettleElement>();
+    for ( Future<Element> loadedElement : loadedElements ) {
+      Element element = this.getQuietly( loadedElement, null );
+      if ( element == null ) {
+        continue;
+      }
+      IElement existing = elements.get( element.getId() );
+      if ( existing != null ) {
+        logger.warn( "Skipped element '" + element.getLocation() + "': an element '" + element.getId()
+          + "' already exists at '" + existing.getLocation() + "'" );
+        this.disposeElements( Collections.<IElement>singleton( element ) );
+        continue;
+      }
+      elements.put( element.getId(), element );
+      logger.info( "Done " + element.toString() );
+      if ( element instanceof KettleElement && ( (KettleElement) element ).isExecuteAtStart() ) {
+        executeAtStart.add( (KettleElement) element );
+      }
+    }
+    return executeAtStart;
+  }
+
+  /**
+   * Executes, concurrently, the elements that are to be executed at start and waits for them to finish.
+   */
+  private void executeAtStart( Collection<KettleElement> elements, ForkJoinPool pool ) throws InterruptedException {
+    List<Callable<Object>> executions = new ArrayList<Callable<Object>>( elements.size() );
+    for ( final KettleElement element : elements ) {
+      executions.add( new Callable<Object>() {
+        @Override
+        public Object call() {
+          logger.info( "Executing '" + element.getId() + "' at start" );
+          element.executeAtStart();
+          return null;
+        }
+      } );
+    }
+    for ( Future<Object> execution : pool.invokeAll( executions ) ) {
+      this.getQuietly( execution, null );
+    }
+  }
+
+  /**
+   * Loads, in the background, the lazy elements that are expected to be used soon, so that their first request
+   * does not pay for loading them. They are then executed at start if they are to be.
+   * @param hotElementIds The ids of the elements to load.
+   */
+  private void prewarmElements( Set<String> hotElementIds, ForkJoinPool pool ) {
+    for ( String id : hotElementIds ) {
+      final IElement element = this.registry.get( id );
+      if ( element instanceof KettleElement && !( (KettleElement) element ).isMaterialized() ) {
+        logger.info( "Loading '" + element.getId() + "' in the background" );
+        pool.execute( new Runnable() {
+          @Override
+          public void run() {
+            ( (KettleElement) element ).executeAtStart();
+          }
+        } );
+      }
     }
+  }
 
-    logger.info( "Loading element '" + filePath + "'" );
+  /**
+   * @param ids Comma separated element ids.
+   * @return The ids, in lowercase.
+   */
+  private static Set<String> parseElementIds( String ids ) {
+    Set<String> parsed = new HashSet<String>();
+    for ( String id : ids.split( "," ) ) {
+      id = id.trim().toLowerCase();
+      if ( !id.isEmpty() ) {
+        parsed.add( id );
+      }
+    }
+    return parsed;
+  }
+
+  private <T> T getQuietly( Future<T> future, T defaultValue ) throws InterruptedException {
+    try {
+      return future.get();
+    } catch ( ExecutionException e ) {
+      logger.error( "Failed loading elements", e.getCause() );
+      return defaultValue;
+    }
+  }
 
-    // skip element if the id already exists
-    if ( this.elementsMap.containsKey( id ) ) {
-      logger.warn( "Failed: an element '" + id + "' already exists" );
+  /**
+   * Sets the type and memory budget of the results cache from the settings file, e.g.
+   * &lt;cache type="tinylfu" maxEntries="1000" timeToLiveSeconds="0" maxBytesLocalHeap="64m"
+   * maxBytesPerEntry="16m" responsesMaxBytesLocalHeap="32m" responsesMaxBytesPerEntry="4m"/&gt;
+   * The type is either ehcache (default), configured by the ehcache settings file, or tinylfu, an in-memory cache
+   * configured by the maxEntries and timeToLiveSeconds attributes.
+   * A budget of 0 bounds the memory store only by the number of elements.
+   * The encoded responses are kept in a separate in-memory cache with its own budget. A budget of 0 disables it.
+   * @param cacheNode The cache settings node, or null if not defined.
+   */
+  private void configureKettleResultCache( Node cacheNode ) {
+    if ( this.getKettleResultCache() == null ) {
       return;
     }
+    String type = cacheNode != null ? cacheNode.valueOf( "@type" ).trim().toLowerCase() : "";
+    if ( TINY_LFU_CACHE_TYPE.equals( type ) ) {
+      if ( !( this.kettleResultCache instanceof TinyLfuCache ) ) {
+        this.kettleResultCache.clear();
+        this.kettleResultCache = new TinyLfuCache<KettleResultKey, KettleResult>( this.getDefaultCacheName(),
+          parseInt( cacheNode.valueOf( "@maxEntries" ), 1000 ),
+          parseInt( cacheNode.valueOf( "@timeToLiveSeconds" ), 0 ) );
+        logger.info( this.getEnvironment().getPluginName() + " is using the tinylfu cache" );
+      }
+    } else if ( !( this.kettleResultCache instanceof EHCache ) ) {
+      this.kettleResultCache.clear();
+      this.kettleResultCache = this.createEHCache();
+    }
+
+    String maxBytesLocalHeap = cacheNode != null ? cacheNode.valueOf( "@maxBytesLocalHeap" ) : "";
+    String maxBytesPerEntry = cacheNode != null ? cacheNode.valueOf( "@maxBytesPerEntry" ) : "";
+    this.getKettleResultCache().setMaxBytes(
+      parseBytes( maxBytesLocalHeap, DEFAULT_CACHE_MAX_BYTES_LOCAL_HEAP ),
+      parseBytes( maxBytesPerEntry, DEFAULT_CACHE_MAX_BYTES_PER_ENTRY ) );
+
+    this.configureKettleResponseCache(
+      parseBytes( cacheNode != null ? cacheNode.valueOf( "@responsesMaxBytesLocalHeap" ) : "",
+        DEFAULT_RESPONSES_CACHE_MAX_BYTES_LOCAL_HEAP ),
+      parseBytes( cacheNode != null ? cacheNode.valueOf( "@responsesMaxBytesPerEntry" ) : "",
+        DEFAULT_RESPONSES_CACHE_MAX_BYTES_PER_ENTRY ) );
+  }
 
-    // skip element if the id is a reserved word
-    if ( this.environment.getReservedWords().contains( id ) ) {
-      logger.warn( "Failed: '" + id + "' is a reserved word" );
+  private void configureKettleResponseCache( long maxBytesLocalHeap, long maxBytesPerEntry ) {
+    if ( maxBytesLocalHeap <= 0 ) {
+      if ( this.kettleResponseCache != null ) {
+        this.kettleResponseCache.clear();
+        this.kettleResponseCache = null;
+      }
       return;
     }
+    if ( this.kettleResponseCache == null ) {
+      // bounded by bytes, the number of entries is only a safeguard against many tiny responses
+      this.kettleResponseCache = new TinyLfuCache<KettleResponseKey, RenderedResponse>(
+        this.getDefaultCacheName() + ":responses", 10000, 0 );
+    }
+    this.maxResponseSize = (int) Math.min( Integer.MAX_VALUE - 8, maxBytesPerEntry > 0
+      ? Math.min( maxBytesPerEntry, maxBytesLocalHeap ) : maxBytesLocalHeap );
+    this.kettleResponseCache.setMaxBytes( maxBytesLocalHeap, this.maxResponseSize );
+  }
+
+  /**
+   * @param value A size in bytes, optionally followed by a unit (k, m or g).
+   */
+  private static long parseBytes( String value, String defaultValue ) {
+    try {
+      return MemoryUnit.parseSizeInBytes( value.trim() );
+    } catch ( IllegalArgumentException e ) {
+      if ( !value.trim().isEmpty() ) {
+        logger.warn( "Invalid size '" + value + "', using " + defaultValue );
+      }
+      return MemoryUnit.parseSizeInBytes( defaultValue );
+    }
+  }
+
+  /**
+   * Creates the plugin execution gate from the settings file, e.g.
+   * &lt;execution maxConcurrent="8" maxQueued="100" queueTimeoutSeconds="30"/&gt;
+   * @param executionNode The execution settings node, or null if not defined.
+   * @return the plugin execution gate. Unbounded if no execution settings are defined.
+   */
+  private ExecutionGate createExecutionGate( Node executionNode ) {
+    String name = "plugin " + this.environment.getPluginName();
+    if ( executionNode == null ) {
+      return ExecutionGate.unbounded( name );
+    }
+
+    ExecutionGate gate = new ExecutionGate( name,
+      parseInt( executionNode.valueOf( "@maxConcurrent" ), 0 ),
+      parseInt( executionNode.valueOf( "@maxQueued" ), 100 ),
+      parseInt( executionNode.valueOf( "@queueTimeoutSeconds" ), 30 ) );
+    logger.info( "Using execution limits " + gate );
+    return gate;
+  }
+
+  /**
+   * Creates the store of background executions from the settings file, e.g.
+   * &lt;execution&gt;&lt;async maxEntries="100" threads="4" resultExpirySeconds="600"/&gt;&lt;/execution&gt;
+   * @param asyncNode The async execution settings node, or null if not defined.
+   * @return the store of background executions.
+   */
+  private AsyncExecutionStore<KettleResult> createAsyncExecutionStore( Node asyncNode ) {
+    String name = "cpk-" + this.environment.getPluginName();
+    int maxEntries = 100;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int resultExpirySeconds = 600;
+    if ( asyncNode != null ) {
+      maxEntries = parseInt( asyncNode.valueOf( "@maxEntries" ), maxEntries );
+      threads = parseInt( asyncNode.valueOf( "@threads" ), threads );
+      resultExpirySeconds = parseInt( asyncNode.valueOf( "@resultExpirySeconds" ), resultExpirySeconds );
+    }
+    logger.info( "Using async executions store with " + threads + " threads, " + maxEntries
+      + " max entries and results expiring after " + resultExpirySeconds + " s" );
+    return new AsyncExecutionStore<KettleResult>( name, maxEntries, threads, resultExpirySeconds );
+  }
+
+  private static int parseInt( String value, int defaultValue ) {
+    try {
+      return Integer.parseInt( value.trim() );
+    } catch ( NumberFormatException e ) {
+      return defaultValue;
+    }
+  }
+
+  private Element loadElement( ElementCandidate candidate ) {
+    logger.info( "Loading element '" + candidate.filePath + "'" );
 
     try {
       // create element wrapper
-      Element element = (Element) Class.forName( typeClass ).newInstance();
+      Element element = (Element) Class.forName( candidate.typeClass ).newInstance();
+      if ( element instanceof KettleElement ) {
+        ( (KettleElement) element ).setLazy( candidate.lazy );
+      }
       // TODO: using plugin name as id. Should a plugin also have an Id and not just a name?
       String pluginId = this.getEnvironment().getPluginName();
-      if ( element.init( pluginId, id, type, filePath, adminOnly ) ) {
-        // add element to elements map
-        this.elementsMap.put( id, element );
-        logger.info( "Done " + element.toString() );
+      if ( !element.init( pluginId, candidate.id, candidate.type, candidate.filePath, candidate.adminOnly ) ) {
+        return null;
       }
       // TODO: check if setting the cache should be done in init, passing the cache as an argument.
       if ( element instanceof IDataSourceProvider ) {
         ( (IDataSourceProvider) element ).setCache( this.getKettleResultCache() );
       }
+      if ( element instanceof KettleElement ) {
+        ( (KettleElement) element )
+          .setPluginExecutionGate( this.getExecutionGate() )
+          .setAsyncExecutionStore( this.getAsyncExecutionStore() )
+          .setResponseCache( this.getKettleResponseCache(), this.maxResponseSize );
+      }
+      return element;
+    } catch ( ClassNotFoundException e ) {
+      logger.error( "Failed: missing '" + candidate.typeClass + "'" );
     } catch ( Exception e ) {
-      logger.error( "Failed: missing '" + typeClass + "'" );
+      logger.error( "Failed loading element '" + candidate.filePath + "'", e );
+    }
+    return null;
+  }
+
+  /**
+   * Starts (or stops) watching the element locations for changes, replacing any previous watcher.
+   */
+  private void watchElements( boolean watch ) {
+    if ( this.elementsWatcher != null ) {
+      this.elementsWatcher.close();
+      this.elementsWatcher = null;
+    }
+    if ( !watch ) {
+      return;
+    }
+
+    Map<File, Boolean> directories = new LinkedHashMap<File, Boolean>();
+    for ( ElementLocation location : this.elementLocations ) {
+      if ( location.directory != null ) {
+        Boolean isRecursive = directories.get( location.directory );
+        directories.put( location.directory, location.isRecursive || Boolean.TRUE.equals( isRecursive ) );
+      }
+    }
+
+    try {
+      this.elementsWatcher = new ElementsWatcher( "cpk-" + this.environment.getPluginName(), directories,
+        new ElementsWatcher.Listener() {
+          @Override
+          public void filesChanged( Collection<File> files ) {
+            CpkEngine.this.reloadElements( files );
+          }
+
+          @Override
+          public void changesLost() {
+            logger.warn( "Lost track of element changes, reloading all elements" );
+            CpkEngine.this.reload();
+          }
+        } );
+      logger.info( "Watching " + directories.size() + " element locations for changes" );
+    } catch ( IOException e ) {
+      logger.error( "Failed to watch element locations, changed elements are only reloaded on refresh", e );
+    }
+  }
+
+  /**
+   * Reloads only the elements of the given files: removed files are unregistered, added files registered and
+   * changed files replaced. A removed folder unregisters every element inside it. Only the cached results of those
+   * elements are evicted.
+   * The reloaded elements are then executed at start in the background, except lazy elements that are not hot,
+   * which are only loaded when first used.
+   * @param files The added, changed or removed element files.
+   */
+  public void reloadElements( Collection<File> files ) {
+    Collection<KettleElement> executeAtStart;
+    synchronized ( this ) {
+      executeAtStart = this.replaceElements( files );
+    }
+
+    // executions may take long, they must hold neither the caller (e.g. the files watcher) nor the engine lock
+    for ( final KettleElement element : executeAtStart ) {
+      this.loadPool.execute( new Runnable() {
+        @Override
+        public void run() {
+          try {
+            element.executeAtStart();
+          } catch ( Exception e ) {
+            logger.error( "Failed executing '" + element.getId() + "' at start", e );
+          }
+        }
+      } );
+    }
+  }
+
+  /**
+   * Replaces the elements of the given files in the registry.
+   * @return the reloaded elements that are to be executed at start.
+   */
+  private Collection<KettleElement> replaceElements( Collection<File> files ) {
+    TreeMap<String, IElement> elements = this.registry.copyElementsMap();
+    Collection<IElement> removed = new ArrayList<IElement>();
+    Collection<KettleElement> executeAtStart = new ArrayList<KettleElement>();
+
+    for ( File file : files ) {
+      String filePath = file.getAbsolutePath();
+      // file or folder removed, a removed folder is only reported by itself
+      if ( !file.exists() ) {
+        for ( IElement element : this.findElementsUnder( filePath, elements ) ) {
+          logger.info( "Removing element '" + element.getId() + "' [" + element.getLocation() + "]" );
+          elements.remove( element.getId() );
+          removed.add( element );
+        }
+        continue;
+      }
+
+      IElement current = this.findElementByLocation( filePath, elements );
+      ElementLocation location = this.findElementLocation( file );
+
+      // no longer an element
+      if ( location == null || !file.isFile() ) {
+        if ( current != null ) {
+          logger.info( "Removing element '" + current.getId() + "' [" + filePath + "]" );
+          elements.remove( current.getId() );
+          removed.add( current );
+        }
+        continue;
+      }
+
+      ElementCandidate candidate = new ElementCandidate( location, filePath );
+      if ( candidate.id.startsWith( "_" ) || this.environment.getReservedWords().contains( candidate.id ) ) {
+        continue;
+      }
+      IElement sameId = elements.get( candidate.id );
+      if ( sameId != null && sameId != current ) {
+        logger.warn( "Skipped element '" + filePath + "': an element '" + candidate.id
+          + "' already exists at '" + sameId.getLocation() + "'" );
+        continue;
+      }
+
+      Element element = this.loadElement( candidate );
+      if ( element == null ) {
+        logger.warn( "Keeping the previous version of '" + candidate.id + "', if any" );
+        continue;
+      }
+      if ( current != null ) {
+        removed.add( current );
+      }
+      elements.put( element.getId(), element );
+      logger.info( "Reloaded " + element.toString() );
+      if ( element instanceof KettleElement
+        && ( !( (KettleElement) element ).isLazy() || this.hotElementIds.contains( element.getId() ) ) ) {
+        executeAtStart.add( (KettleElement) element );
+      }
+    }
+
+    IElement defaultElement = this.registry.getDefaultElement();
+    if ( defaultElement == null || !elements.containsValue( defaultElement ) ) {
+      defaultElement = this.findDefaultElement( this.defaultElementId, elements );
+    }
+    this.publish( elements, defaultElement );
+
+    // the replaced elements are no longer reachable by new requests
+    for ( IElement element : removed ) {
+      this.disposeElements( Collections.singleton( element ) );
+      this.evictCachedResults( element.getId(), null );
+    }
+    return executeAtStart;
+  }
+
+  private IElement findElementByLocation( String filePath, Map<String, IElement> elements ) {
+    for ( IElement element : elements.values() ) {
+      if ( filePath.equals( element.getLocation() ) ) {
+        return element;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the elements located at the given path or, if it is a folder, inside it.
+   */
+  private List<IElement> findElementsUnder( String path, Map<String, IElement> elements ) {
+    List<IElement> found = new ArrayList<IElement>();
+    String folderPath = path + File.separator;
+    for ( IElement element : elements.values() ) {
+      String location = element.getLocation();
+      if ( location != null && ( location.equals( path ) || location.startsWith( folderPath ) ) ) {
+        found.add( element );
+      }
+    }
+    return found;
+  }
+
+  private ElementLocation findElementLocation( File file ) {
+    for ( ElementLocation location : this.elementLocations ) {
+      if ( location.contains( file ) ) {
+        return location;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes from the cache the results of a single element.
+   * @param elementId The id of the element.
+   * @param parameters If not empty, only the results obtained with these parameter values are removed.
+   * @return The number of removed results.
+   */
+  public int evictCachedResults( String elementId, Map<String, String> parameters ) {
+    ICache<KettleResultKey, KettleResult> cache = this.getKettleResultCache();
+    if ( cache == null ) {
+      return 0;
+    }
+    int evicted = 0;
+    for ( KettleResultKey key : cache.getKeys( KettleElement.elementCacheTag( elementId ) ) ) {
+      if ( matches( key, parameters ) && cache.remove( key ) ) {
+        evicted++;
+      }
+    }
+    this.evictResponses( KettleElement.elementCacheTag( elementId ), parameters );
+    logger.info( "Evicted " + evicted + " cached results of '" + elementId + "'" );
+    return evicted;
+  }
+
+  /**
+   * Removes from the cache the results of the elements that declare a tag in their cpk.cache.tags parameter.
+   * @return The number of removed results.
+   */
+  public int evictTaggedResults( String tag ) {
+    ICache<KettleResultKey, KettleResult> cache = this.getKettleResultCache();
+    if ( cache == null ) {
+      return 0;
+    }
+    int evicted = 0;
+    for ( KettleResultKey key : cache.getKeys( KettleElement.userCacheTag( tag ) ) ) {
+      if ( cache.remove( key ) ) {
+        evicted++;
+      }
+    }
+    this.evictResponses( KettleElement.userCacheTag( tag ), null );
+    logger.info( "Evicted " + evicted + " cached results tagged '" + tag + "'" );
+    return evicted;
+  }
+
+  /**
+   * Removes the encoded responses of the removed results, that share their tags.
+   */
+  private void evictResponses( String tag, Map<String, String> parameters ) {
+    ICache<KettleResponseKey, RenderedResponse> cache = this.getKettleResponseCache();
+    if ( cache == null ) {
+      return;
+    }
+    for ( KettleResponseKey key : cache.getKeys( tag ) ) {
+      if ( matches( key.getResultKey(), parameters ) ) {
+        cache.remove( key );
+      }
+    }
+  }
+
+  private static boolean matches( KettleResultKey key, Map<String, String> parameters ) {
+    if ( parameters == null || parameters.isEmpty() ) {
+      return true;
+    }
+    Map<String, String> keyParameters = key.getParameters();
+    for ( Map.Entry<String, String> parameter : parameters.entrySet() ) {
+      String value = parameter.getValue() != null ? parameter.getValue().trim() : null;
+      String keyValue = keyParameters.get( parameter.getKey() );
+      if ( value == null ? keyValue != null : !value.equals( keyValue ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void disposeElements( Collection<IElement> elements ) {
+    for ( IElement element : elements ) {
+      if ( element instanceof KettleElement ) {
+        ( (KettleElement) element ).dispose();
+      }
     }
   }
 
-  private IElement findDefaultElement( String defaultElementId ) {
+  private IElement findDefaultElement( String defaultElementId, Map<String, IElement> elements ) {
     // check if the default element exists
-    if ( this.elementsMap.containsKey( defaultElementId ) ) {
+    if ( elements.containsKey( defaultElementId ) ) {
       logger.info( "Found default element '" + defaultElementId + "'" );
-      return this.elementsMap.get( defaultElementId );
+      return elements.get( defaultElementId );
     } else {
       logger.info( "Didn't find default element '" + defaultElementId + "'" );
     }
 
     // try to find a suitable default element
-    for ( IElement element : this.elementsMap.values() ) {
+    for ( IElement element : elements.values() ) {
       if ( element.isRenderable() ) {
         logger.info( "Will use '" + element.getId() + "' as default element" );
         return element;
@@ -0,0 +1,83 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import pt.webdetails.cpk.elements.IElement;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of the registered elements of a plugin.
+ * A reload builds a new registry aside and publishes it at once, so readers never see a partially loaded plugin
+ * and never need to lock: a request keeps using the registry it started with.
+ */
+final class ElementRegistry {
+
+  static final ElementRegistry EMPTY = new ElementRegistry( new TreeMap<String, IElement>(), null );
+
+  private final Map<String, IElement> elementsById;
+  private final SortedMap<String, IElement> sortedElements;
+  private final IElement defaultElement;
+
+  /**
+   * @param elements The elements by id. The map is copied.
+   * @param defaultElement The default element, or null if there is none.
+   */
+  ElementRegistry( SortedMap<String, IElement> elements, IElement defaultElement ) {
+    this.elementsById = new HashMap<String, IElement>( elements );
+    this.sortedElements = Collections.unmodifiableSortedMap( new TreeMap<String, IElement>( elements ) );
+    this.defaultElement = defaultElement;
+  }
+
+  /**
+   * @return The element with the given id, or null if there is none.
+   */
+  IElement get( String elementId ) {
+    return elementId != null ? this.elementsById.get( elementId ) : null;
+  }
+
+  /**
+   * @return The elements, sorted by id.
+   */
+  Collection<IElement> getElements() {
+    return this.sortedElements.values();
+  }
+
+  /**
+   * @return The read-only elements map, sorted by id.
+   */
+  SortedMap<String, IElement> getElementsMap() {
+    return this.sortedElements;
+  }
+
+  IElement getDefaultElement() {
+    return this.defaultElement;
+  }
+
+  int size() {
+    return this.elementsById.size();
+  }
+
+  /**
+   * @return A modifiable copy of the elements map, to build a new registry from.
+   */
+  TreeMap<String, IElement> copyElementsMap() {
+    return new TreeMap<String, IElement>( this.sortedElements );
+  }
+}
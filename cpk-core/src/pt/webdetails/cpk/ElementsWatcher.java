@@ -0,0 +1,206 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the element locations for added, changed and removed files.
+ * Changes are reported in batches, once no more changes happen for a short while, so that a file being written
+ * (or a folder being copied) is only reported once.
+ */
+public final class ElementsWatcher {
+
+  /**
+   * Receives the changes detected by the watcher. Called from the watcher thread.
+   */
+  public interface Listener {
+    /**
+     * @param files The files that were added, changed or removed.
+     */
+    void filesChanged( Collection<File> files );
+
+    /**
+     * Some changes were lost (e.g. too many changes at once) and all files must be considered changed.
+     */
+    void changesLost();
+  }
+
+  private static final Log logger = LogFactory.getLog( ElementsWatcher.class );
+  private static final long SETTLE_MILLIS = 500;
+
+  private final Listener listener;
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+  private final Set<Path> recursiveRoots = new HashSet<Path>();
+  private final Thread thread;
+  private volatile boolean closed = false;
+
+  /**
+   * Starts watching the given directories.
+   * @param name The name used to identify the watcher thread.
+   * @param directories The directories to watch. If the value is true the subdirectories are also watched.
+   * @param listener Receives the detected changes.
+   */
+  public ElementsWatcher( String name, Map<File, Boolean> directories, Listener listener ) throws IOException {
+    this.listener = listener;
+    this.watchService = FileSystems.getDefault().newWatchService();
+    for ( Map.Entry<File, Boolean> directory : directories.entrySet() ) {
+      if ( !directory.getKey().isDirectory() ) {
+        continue;
+      }
+      Path path = directory.getKey().toPath().toAbsolutePath().normalize();
+      if ( directory.getValue() ) {
+        this.recursiveRoots.add( path );
+        this.registerTree( path, null );
+      } else {
+        this.register( path );
+      }
+    }
+
+    this.thread = new Thread( new Runnable() {
+      @Override
+      public void run() {
+        ElementsWatcher.this.watch();
+      }
+    }, name + "-watcher" );
+    this.thread.setDaemon( true );
+    this.thread.start();
+  }
+
+  /**
+   * Stops watching.
+   */
+  public void close() {
+    this.closed = true;
+    try {
+      this.watchService.close();
+    } catch ( IOException e ) {
+      logger.warn( "Failed closing elements watcher", e );
+    }
+  }
+
+  private void watch() {
+    Set<File> changedFiles = new TreeSet<File>();
+    try {
+      while ( !this.closed ) {
+        // wait for the first change, then keep collecting until changes settle
+        WatchKey key = changedFiles.isEmpty() ? this.watchService.take()
+          : this.watchService.poll( SETTLE_MILLIS, TimeUnit.MILLISECONDS );
+        if ( key == null ) {
+          this.notifyChanges( changedFiles );
+          changedFiles = new TreeSet<File>();
+          continue;
+        }
+
+        Path directory = this.watchedDirectories.get( key );
+        for ( WatchEvent<?> event : key.pollEvents() ) {
+          if ( event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+            changedFiles.clear();
+            this.listener.changesLost();
+            continue;
+          }
+          if ( directory == null ) {
+            continue;
+          }
+          Path path = directory.resolve( (Path) event.context() );
+          if ( event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory( path ) ) {
+            // files of a new folder inside a recursive location are new elements
+            if ( this.isInRecursiveRoot( path ) ) {
+              this.registerTree( path, changedFiles );
+            }
+          } else {
+            changedFiles.add( path.toFile().getAbsoluteFile() );
+          }
+        }
+        if ( !key.reset() ) {
+          this.watchedDirectories.remove( key );
+        }
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    } catch ( ClosedWatchServiceException e ) {
+      // closed, stop watching
+    } catch ( IOException e ) {
+      logger.error( "Elements watcher stopped", e );
+    }
+  }
+
+  private void notifyChanges( Collection<File> changedFiles ) {
+    try {
+      this.listener.filesChanged( changedFiles );
+    } catch ( RuntimeException e ) {
+      logger.error( "Failed reloading changed elements", e );
+    }
+  }
+
+  private boolean isInRecursiveRoot( Path path ) {
+    for ( Path root : this.recursiveRoots ) {
+      if ( path.startsWith( root ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void register( Path directory ) throws IOException {
+    WatchKey key = directory.register( this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+      StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE );
+    this.watchedDirectories.put( key, directory );
+  }
+
+  /**
+   * Watches a directory and all its subdirectories.
+   * @param files If not null, the files found in the directories are added to it.
+   */
+  private void registerTree( Path root, final Collection<File> files ) throws IOException {
+    Files.walkFileTree( root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory( Path directory, BasicFileAttributes attributes ) throws IOException {
+        ElementsWatcher.this.register( directory );
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) {
+        if ( files != null ) {
+          files.add( file.toFile().getAbsoluteFile() );
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    } );
+  }
+}
@@ -20,14 +20,14 @@ import pt.webdetails.cpk.elements.IElement;
 import pt.webdetails.cpk.security.IAccessControl;
 
 import java.io.IOException;
-import java.util.TreeMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 public class Status {
 
-  private TreeMap<String, IElement> elementsMap;
+  private Map<String, IElement> elementsMap;
   //private HashMap<String, IElementType> elementTypesMap;
   private String defaultElementName;
   private ICpkEnvironment cpkEnv;
@@ -35,7 +35,7 @@ public class Status {
   private Status() {
   }
 
-  public Status( TreeMap<String, IElement> elementsMap, //HashMap<String, IElementType> elementTypesMap,
+  public Status( Map<String, IElement> elementsMap, //HashMap<String, IElementType> elementTypesMap,
                  String defaultElementName, //List reservedWords,
                  ICpkEnvironment cpkEnv ) {
     //init( elementsMap, elementTypesMap, defaultElementName, reservedWords, cpkEnv );
@@ -43,7 +43,7 @@ public class Status {
       cpkEnv );
   }
 
-  private void init( TreeMap<String, IElement> elementsMap, //HashMap<String, IElementType> elementTypesMap,
+  private void init( Map<String, IElement> elementsMap, //HashMap<String, IElementType> elementTypesMap,
                      String defaultElementName, //List reservedWords,
                      ICpkEnvironment cpkEnv ) {
     setCpkEnv( cpkEnv );
@@ -108,12 +108,12 @@ public class Status {
   }
 
   @JsonProperty("elements")
-  public TreeMap<String, IElement> getElementsMap() {
+  public Map<String, IElement> getElementsMap() {
     return elementsMap;
   }
 
   @JsonIgnore
-  public void setElementsMap( TreeMap<String, IElement> elementsMap ) {
+  public void setElementsMap( Map<String, IElement> elementsMap ) {
     this.elementsMap = elementsMap;
   }
 
@@ -0,0 +1,81 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary index from tags to the keys of the cached values, so that the values with a given tag are found without
+ * going through every key of the cache. Caches must remove a key from the index whenever they drop its value.
+ */
+final class CacheTagIndex<K> {
+
+  private final Map<String, Set<K>> keysByTag = new HashMap<String, Set<K>>();
+  private final Map<Object, Collection<String>> tagsByKey = new HashMap<Object, Collection<String>>();
+
+  /**
+   * Sets the tags of a key, replacing any previous ones.
+   */
+  synchronized void put( K key, Collection<String> tags ) {
+    this.remove( key );
+    if ( tags == null || tags.isEmpty() ) {
+      return;
+    }
+    Collection<String> keyTags = new ArrayList<String>( tags );
+    this.tagsByKey.put( key, keyTags );
+    for ( String tag : keyTags ) {
+      Set<K> keys = this.keysByTag.get( tag );
+      if ( keys == null ) {
+        keys = new HashSet<K>();
+        this.keysByTag.put( tag, keys );
+      }
+      keys.add( key );
+    }
+  }
+
+  synchronized void remove( Object key ) {
+    Collection<String> tags = this.tagsByKey.remove( key );
+    if ( tags == null ) {
+      return;
+    }
+    for ( String tag : tags ) {
+      Set<K> keys = this.keysByTag.get( tag );
+      if ( keys != null ) {
+        keys.remove( key );
+        if ( keys.isEmpty() ) {
+          this.keysByTag.remove( tag );
+        }
+      }
+    }
+  }
+
+  /**
+   * @return A copy of the keys with the given tag.
+   */
+  synchronized Collection<K> getKeys( String tag ) {
+    Set<K> keys = this.keysByTag.get( tag );
+    return keys != null ? new ArrayList<K>( keys ) : Collections.<K>emptyList();
+  }
+
+  synchronized void clear() {
+    this.keysByTag.clear();
+    this.tagsByKey.clear();
+  }
+}
@@ -16,16 +16,34 @@ package pt.webdetails.cpk.cache;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+import net.sf.ehcache.store.Policy;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class EHCache<K extends Serializable, V extends Serializable> implements ICache<K, V> {
   private static final Log logger = LogFactory.getLog( EHCache.class );
   private Cache cache = null;
 
+  // byte based sizing: ehcache only bounds the memory store by number of elements, so that number is adjusted to
+  // the budget given the average estimated size of the cached values
+  private final long configuredMaxEntriesLocalHeap;
+  private final Policy configuredEvictionPolicy;
+  private volatile long maxBytesLocalHeap = 0;
+  private volatile long maxBytesPerEntry = 0;
+  private final ConcurrentMap<Object, Long> sizes = new ConcurrentHashMap<Object, Long>();
+  private final AtomicLong totalSize = new AtomicLong();
+
+  private final CacheTagIndex<K> tagIndex = new CacheTagIndex<K>();
+
   public Cache getCache() {
     return this.cache;
   }
@@ -42,6 +60,46 @@ public class EHCache<K extends Serializable, V extends Serializable> implements
     }
 
     this.cache = cache;
+    this.configuredMaxEntriesLocalHeap = cache.getCacheConfiguration().getMaxEntriesLocalHeap();
+    this.configuredEvictionPolicy = cache.getMemoryStoreEvictionPolicy();
+    cache.getCacheEventNotificationService().registerListener( new CacheEventListenerAdapter() {
+      @Override
+      public void notifyElementRemoved( Ehcache cache, Element element ) {
+        forgetSize( element.getObjectKey() );
+      }
+
+      @Override
+      public void notifyElementExpired( Ehcache cache, Element element ) {
+        forgetSize( element.getObjectKey() );
+      }
+
+      @Override
+      public void notifyElementEvicted( Ehcache cache, Element element ) {
+        forgetSize( element.getObjectKey() );
+      }
+
+      @Override
+      public void notifyRemoveAll( Ehcache cache ) {
+        sizes.clear();
+        totalSize.set( 0 );
+        tagIndex.clear();
+      }
+    } );
+  }
+
+  @Override
+  public void setMaxBytes( long maxBytesLocalHeap, long maxBytesPerEntry ) {
+    this.maxBytesLocalHeap = Math.max( 0, maxBytesLocalHeap );
+    this.maxBytesPerEntry = Math.max( 0, maxBytesPerEntry );
+    if ( this.maxBytesLocalHeap > 0 ) {
+      this.getCache().setMemoryStoreEvictionPolicy( new SizeAwarePolicy() );
+      this.adjustMaxEntriesLocalHeap();
+    } else {
+      this.getCache().setMemoryStoreEvictionPolicy( this.configuredEvictionPolicy );
+      this.getCache().getCacheConfiguration().setMaxEntriesLocalHeap( this.configuredMaxEntriesLocalHeap );
+    }
+    logger.info( "Cache " + this.getCache().getName() + " memory budget: " + this.maxBytesLocalHeap
+      + " bytes, entries up to " + this.maxBytesPerEntry + " bytes" );
   }
 
   @Override
@@ -52,6 +110,20 @@ public class EHCache<K extends Serializable, V extends Serializable> implements
 
   @Override
   public void put( K key, V value, int timeToLiveSeconds ) {
+    this.put( key, value, timeToLiveSeconds, null );
+  }
+
+  @Override
+  public void put( K key, V value, int timeToLiveSeconds, Collection<String> tags ) {
+    long size = sizeOf( value );
+    if ( this.maxBytesPerEntry > 0 && size > this.maxBytesPerEntry ) {
+      logger.debug( "Not caching value for " + key + ": " + size + " bytes is over the limit of "
+        + this.maxBytesPerEntry + " bytes" );
+      // do not keep serving a previous value
+      this.remove( key );
+      return;
+    }
+
     ClassLoader oldClassLoader = null;
     try {
       oldClassLoader = changeClassLoader();
@@ -64,6 +136,8 @@ public class EHCache<K extends Serializable, V extends Serializable> implements
       }
 
       this.getCache().put( element );
+      this.recordSize( key, size );
+      this.tagIndex.put( key, tags );
     } catch ( Exception e ) {
       logger.error( "Error while attempting to write in cache", e );
     } finally {
@@ -104,6 +178,11 @@ public class EHCache<K extends Serializable, V extends Serializable> implements
     return keys;
   }
 
+  @Override
+  public Collection<K> getKeys( String tag ) {
+    return this.tagIndex.getKeys( tag );
+  }
+
   @Override
   public boolean remove( K key ) {
     ClassLoader oldClassLoader = null;
@@ -139,6 +218,48 @@ public class EHCache<K extends Serializable, V extends Serializable> implements
     return this.getCache().getCacheConfiguration().getTimeToLiveSeconds();
   }
 
+  /**
+   * @return The estimated size of a cached value, or 0 if unknown.
+   */
+  static long sizeOf( Object value ) {
+    return value instanceof ISizedValue ? ( (ISizedValue) value ).getEstimatedSize() : 0;
+  }
+
+  private void recordSize( Object key, long size ) {
+    Long previous = this.sizes.put( key, size );
+    this.totalSize.addAndGet( size - ( previous != null ? previous : 0 ) );
+    this.adjustMaxEntriesLocalHeap();
+  }
+
+  private void forgetSize( Object key ) {
+    this.tagIndex.remove( key );
+    Long previous = this.sizes.remove( key );
+    if ( previous != null ) {
+      this.totalSize.addAndGet( -previous );
+    }
+  }
+
+  /**
+   * Sets the maximum number of elements in memory to as many values of the current average size as fit the budget.
+   */
+  private void adjustMaxEntriesLocalHeap() {
+    long budget = this.maxBytesLocalHeap;
+    int count = this.sizes.size();
+    long total = this.totalSize.get();
+    if ( budget <= 0 || count == 0 || total <= 0 ) {
+      return;
+    }
+    long maxEntries = Math.max( 1, Math.min( Integer.MAX_VALUE, budget / Math.max( 1, total / count ) ) );
+    CacheConfiguration configuration = this.getCache().getCacheConfiguration();
+    long current = configuration.getMaxEntriesLocalHeap();
+    // avoid resizing the memory store for small changes of the average size
+    if ( current == 0 || Math.abs( maxEntries - current ) * 10 > current ) {
+      logger.debug( "Cache " + this.getCache().getName() + " memory store resized to " + maxEntries
+        + " elements (average size " + total / count + " bytes)" );
+      configuration.setMaxEntriesLocalHeap( maxEntries );
+    }
+  }
+
   /**
    * Makes sure we have the right class loader in the thread before DiskStore is used.
    * @return The old class loader.
@@ -159,6 +280,10 @@ public class EHCache<K extends Serializable, V extends Serializable> implements
   }
 
   private void logCacheStatus() {
+    // querying the store sizes is not free, skip it on every access unless it is to be logged
+    if ( !logger.isDebugEnabled() ) {
+      return;
+    }
     logger.debug( "Cache status: " + this.getCache().getMemoryStoreSize() + " in memory, "
       + this.getCache().getDiskStoreSize() + " in disk" );
   }
@@ -0,0 +1,105 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.cache;
+
+/**
+ * Count-min sketch with 4-bit counters that estimates how often keys were used, as used by TinyLFU admission.
+ * Counters are halved every time the number of increments reaches ten times the expected number of keys, so that
+ * the estimate follows changes in popularity.
+ * Not thread safe.
+ */
+final class FrequencySketch {
+
+  private static final long[] SEED = {
+    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+  private static final int MAX_COUNT = 15;
+
+  private final long[] table;
+  private final int tableMask;
+  private final int sampleSize;
+  private int size;
+
+  /**
+   * @param expectedKeys The expected number of distinct keys.
+   */
+  FrequencySketch( int expectedKeys ) {
+    int capacity = Integer.highestOneBit( Math.max( 8, Math.min( expectedKeys, 1 << 29 ) - 1 ) << 1 );
+    this.table = new long[ capacity ];
+    this.tableMask = capacity - 1;
+    this.sampleSize = 10 * Math.max( 8, Math.min( expectedKeys, Integer.MAX_VALUE / 10 ) );
+  }
+
+  /**
+   * @return The estimated number of times the key was used, up to 15.
+   */
+  int frequency( Object key ) {
+    int hash = spread( key.hashCode() );
+    int start = ( hash & 3 ) << 2;
+    int frequency = MAX_COUNT;
+    for ( int i = 0; i < 4; i++ ) {
+      int index = indexOf( hash, i );
+      int count = (int) ( ( this.table[ index ] >>> ( ( start + i ) << 2 ) ) & 0xfL );
+      frequency = Math.min( frequency, count );
+    }
+    return frequency;
+  }
+
+  void increment( Object key ) {
+    int hash = spread( key.hashCode() );
+    int start = ( hash & 3 ) << 2;
+    boolean added = false;
+    for ( int i = 0; i < 4; i++ ) {
+      added |= this.incrementAt( indexOf( hash, i ), start + i );
+    }
+    if ( added && ++this.size == this.sampleSize ) {
+      this.reset();
+    }
+  }
+
+  private boolean incrementAt( int index, int counter ) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ( ( this.table[ index ] & mask ) != mask ) {
+      this.table[ index ] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Halves every counter.
+   */
+  private void reset() {
+    int odd = 0;
+    for ( int i = 0; i < this.table.length; i++ ) {
+      odd += Long.bitCount( this.table[ i ] & ONE_MASK );
+      this.table[ i ] = ( this.table[ i ] >>> 1 ) & RESET_MASK;
+    }
+    this.size = ( this.size >>> 1 ) - ( odd >>> 2 );
+  }
+
+  private int indexOf( int hash, int i ) {
+    long h = ( hash + SEED[ i ] ) * SEED[ i ];
+    h += h >>> 32;
+    return ( (int) h ) & this.tableMask;
+  }
+
+  private static int spread( int x ) {
+    x = ( ( x >>> 16 ) ^ x ) * 0x45d9f3b;
+    x = ( ( x >>> 16 ) ^ x ) * 0x45d9f3b;
+    return ( x >>> 16 ) ^ x;
+  }
+}
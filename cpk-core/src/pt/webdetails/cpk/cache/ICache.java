@@ -13,6 +13,7 @@
 
 package pt.webdetails.cpk.cache;
 
+import java.util.Collection;
 
 public interface ICache<K, V> {
 
@@ -26,6 +27,12 @@ public interface ICache<K, V> {
 
   void put( K key, V value, int timeToLiveSeconds );
 
+  /**
+   * Stores a key, value pair in the cache, tagged so that it can be found with {@link #getKeys(String)}.
+   * @param tags The tags of the value, replacing those of a previous value with the same key.
+   */
+  void put( K key, V value, int timeToLiveSeconds, Collection<String> tags );
+
   /**
    * Removes value with given key from cache.
    * @param key
@@ -46,6 +53,13 @@ public interface ICache<K, V> {
    */
   Iterable<K> getKeys();
 
+  /**
+   * Finds the keys of the cached values with a tag, without going through all the keys.
+   * @param tag The tag given when the values were stored.
+   * @return The keys of the cached values with the tag.
+   */
+  Collection<K> getKeys( String tag );
+
   /**
    * Removes all elements from cache.
    */
@@ -57,4 +71,11 @@ public interface ICache<K, V> {
    */
   Number getTimeToLiveSeconds();
 
+  /**
+   * Bounds the memory held by the cache by the estimated size of its values (see {@link ISizedValue}).
+   * @param maxBytesLocalHeap The total memory budget of the cached values, 0 to bound only by number of values.
+   * @param maxBytesPerEntry The size above which a value is not cached, 0 for no limit.
+   */
+  void setMaxBytes( long maxBytesLocalHeap, long maxBytesPerEntry );
+
 }
@@ -0,0 +1,43 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.cache;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.store.AbstractPolicy;
+
+/**
+ * Memory store eviction policy that evicts the element with the fewest hits per byte, so that a large result
+ * has to be used much more often than a small one to stay in memory.
+ */
+class SizeAwarePolicy extends AbstractPolicy {
+
+  static final String NAME = "SIZE_AWARE_LFU";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  /**
+   * @return true if the second element is preferable for eviction to the first one.
+   */
+  @Override
+  public boolean compare( Element element1, Element element2 ) {
+    return hitsPerByte( element2 ) < hitsPerByte( element1 );
+  }
+
+  private static double hitsPerByte( Element element ) {
+    return ( element.getHitCount() + 1.0 ) / Math.max( 1L, EHCache.sizeOf( element.getObjectValue() ) );
+  }
+}
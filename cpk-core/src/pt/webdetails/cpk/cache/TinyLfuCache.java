@@ -0,0 +1,439 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process cache with W-TinyLFU eviction: new values enter a small LRU window, and values leaving the window
+ * are only admitted into the main segmented LRU if they were used more often than the value they would replace,
+ * as estimated by a {@link FrequencySketch}. One-off results therefore do not push frequently used ones out.
+ *
+ * Reads do not lock: a hit is a map lookup plus recording the access in a lossy buffer, which is applied to the
+ * eviction order in batches by whichever thread gets the eviction lock. Writes are serialized by that lock.
+ * Values live in memory only. Each value may have its own time to live.
+ */
+public class TinyLfuCache<K, V> implements ICache<K, V> {
+  private static final Log logger = LogFactory.getLog( TinyLfuCache.class );
+
+  private static final int READ_BUFFER_SIZE = 128;
+  private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+  private static final double WINDOW_RATIO = 0.01;
+  private static final double PROTECTED_RATIO = 0.8;
+
+  private final String name;
+  private final int timeToLiveSeconds;
+  private final int maxEntries;
+
+  private final ConcurrentMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+  private final AtomicReferenceArray<Node<K, V>> readBuffer = new AtomicReferenceArray<Node<K, V>>( READ_BUFFER_SIZE );
+  private final AtomicLong readBufferWrites = new AtomicLong();
+  private final CacheTagIndex<K> tagIndex = new CacheTagIndex<K>();
+
+  // guarded by evictionLock
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final FrequencySketch sketch;
+  private final AccessOrderDeque<K, V> window = new AccessOrderDeque<K, V>();
+  private final AccessOrderDeque<K, V> probation = new AccessOrderDeque<K, V>();
+  private final AccessOrderDeque<K, V> protectedSegment = new AccessOrderDeque<K, V>();
+  private long maximumWeight;
+  private long maxBytesPerEntry;
+  private boolean weighBySize;
+  private long totalWeight;
+  private long windowWeight;
+  private long protectedWeight;
+
+  /**
+   * @param name The name of the cache, used when logging.
+   * @param maxEntries The maximum number of cached values, unless bounded by bytes with
+   *                   {@link #setMaxBytes(long, long)}. Also the expected number of keys.
+   * @param timeToLiveSeconds The default time to live of cached values, 0 for no limit.
+   */
+  public TinyLfuCache( String name, int maxEntries, int timeToLiveSeconds ) {
+    this.name = name;
+    this.maxEntries = Math.max( 1, maxEntries );
+    this.timeToLiveSeconds = Math.max( 0, timeToLiveSeconds );
+    this.maximumWeight = this.maxEntries;
+    this.sketch = new FrequencySketch( this.maxEntries );
+  }
+
+  @Override
+  public void put( K key, V value ) {
+    this.put( key, value, this.timeToLiveSeconds );
+  }
+
+  @Override
+  public void put( K key, V value, int timeToLiveSeconds ) {
+    this.put( key, value, timeToLiveSeconds, null );
+  }
+
+  @Override
+  public void put( K key, V value, int timeToLiveSeconds, Collection<String> tags ) {
+    long size = EHCache.sizeOf( value );
+    Node<K, V> node = new Node<K, V>( key, value,
+      timeToLiveSeconds > 0 ? System.currentTimeMillis() + timeToLiveSeconds * 1000L : 0 );
+
+    this.evictionLock.lock();
+    try {
+      if ( this.maxBytesPerEntry > 0 && size > this.maxBytesPerEntry ) {
+        logger.debug( "Not caching value for " + key + ": " + size + " bytes is over the limit of "
+          + this.maxBytesPerEntry + " bytes" );
+        this.removeNode( this.data.remove( key ) );
+        return;
+      }
+      node.weight = this.weighBySize ? Math.max( 1, size ) : 1;
+      this.removeNode( this.data.put( key, node ) );
+      this.tagIndex.put( key, tags );
+      this.sketch.increment( key );
+      this.window.addLast( node );
+      node.segment = Node.WINDOW;
+      this.windowWeight += node.weight;
+      this.totalWeight += node.weight;
+      this.evict();
+    } finally {
+      this.evictionLock.unlock();
+    }
+  }
+
+  @Override
+  public V get( K key ) {
+    Node<K, V> node = this.data.get( key );
+    if ( node == null ) {
+      return null;
+    }
+    if ( node.isExpired( System.currentTimeMillis() ) ) {
+      this.evictionLock.lock();
+      try {
+        if ( this.data.remove( key, node ) ) {
+          this.removeNode( node );
+        }
+      } finally {
+        this.evictionLock.unlock();
+      }
+      return null;
+    }
+    this.recordRead( node );
+    return node.value;
+  }
+
+  @Override
+  public Iterable<K> getKeys() {
+    return Collections.unmodifiableSet( this.data.keySet() );
+  }
+
+  @Override
+  public Collection<K> getKeys( String tag ) {
+    return this.tagIndex.getKeys( tag );
+  }
+
+  @Override
+  public boolean remove( K key ) {
+    this.evictionLock.lock();
+    try {
+      Node<K, V> node = this.data.remove( key );
+      this.removeNode( node );
+      return node != null;
+    } finally {
+      this.evictionLock.unlock();
+    }
+  }
+
+  @Override
+  public void clear() {
+    this.evictionLock.lock();
+    try {
+      this.data.clear();
+      for ( int i = 0; i < READ_BUFFER_SIZE; i++ ) {
+        this.readBuffer.set( i, null );
+      }
+      this.window.clear();
+      this.probation.clear();
+      this.protectedSegment.clear();
+      this.totalWeight = 0;
+      this.windowWeight = 0;
+      this.protectedWeight = 0;
+      this.tagIndex.clear();
+      logger.info( "Cache " + this.name + " was cleared." );
+    } finally {
+      this.evictionLock.unlock();
+    }
+  }
+
+  @Override
+  public Number getTimeToLiveSeconds() {
+    return this.timeToLiveSeconds;
+  }
+
+  @Override
+  public void setMaxBytes( long maxBytesLocalHeap, long maxBytesPerEntry ) {
+    this.evictionLock.lock();
+    try {
+      this.weighBySize = maxBytesLocalHeap > 0;
+      this.maximumWeight = this.weighBySize ? maxBytesLocalHeap : this.maxEntries;
+      this.maxBytesPerEntry = Math.max( 0, maxBytesPerEntry );
+
+      // weigh the cached values again
+      this.totalWeight = 0;
+      this.windowWeight = 0;
+      this.protectedWeight = 0;
+      for ( Node<K, V> node : this.data.values() ) {
+        node.weight = this.weighBySize ? Math.max( 1, EHCache.sizeOf( node.value ) ) : 1;
+        this.totalWeight += node.weight;
+        if ( node.segment == Node.WINDOW ) {
+          this.windowWeight += node.weight;
+        } else if ( node.segment == Node.PROTECTED ) {
+          this.protectedWeight += node.weight;
+        }
+      }
+      this.evict();
+    } finally {
+      this.evictionLock.unlock();
+    }
+    logger.info( "Cache " + this.name + " memory budget: " + maxBytesLocalHeap + " bytes, entries up to "
+      + maxBytesPerEntry + " bytes" );
+  }
+
+  // region Eviction
+
+  /**
+   * Records a read without locking. Reads are dropped if the buffer is full, which only makes the eviction order
+   * slightly less accurate.
+   */
+  private void recordRead( Node<K, V> node ) {
+    long writes = this.readBufferWrites.getAndIncrement();
+    this.readBuffer.lazySet( (int) ( writes & ( READ_BUFFER_SIZE - 1 ) ), node );
+    if ( ( writes + 1 ) % READ_BUFFER_DRAIN_THRESHOLD == 0 && this.evictionLock.tryLock() ) {
+      try {
+        this.drainReadBuffer();
+      } finally {
+        this.evictionLock.unlock();
+      }
+    }
+  }
+
+  private void drainReadBuffer() {
+    for ( int i = 0; i < READ_BUFFER_SIZE; i++ ) {
+      Node<K, V> node = this.readBuffer.getAndSet( i, null );
+      if ( node != null ) {
+        this.onAccess( node );
+      }
+    }
+  }
+
+  private void onAccess( Node<K, V> node ) {
+    this.sketch.increment( node.key );
+    switch ( node.segment ) {
+      case Node.WINDOW:
+        this.window.moveToLast( node );
+        break;
+      case Node.PROBATION:
+        // promote, and demote the least recently used protected values that no longer fit
+        this.probation.remove( node );
+        this.protectedSegment.addLast( node );
+        node.segment = Node.PROTECTED;
+        this.protectedWeight += node.weight;
+        long maxProtected = (long) ( ( this.maximumWeight - this.maxWindowWeight() ) * PROTECTED_RATIO );
+        while ( this.protectedWeight > maxProtected && this.protectedSegment.peekFirst() != node ) {
+          Node<K, V> demoted = this.protectedSegment.pollFirst();
+          this.protectedWeight -= demoted.weight;
+          this.probation.addLast( demoted );
+          demoted.segment = Node.PROBATION;
+        }
+        break;
+      case Node.PROTECTED:
+        this.protectedSegment.moveToLast( node );
+        break;
+      default:
+        // already removed
+        break;
+    }
+  }
+
+  private long maxWindowWeight() {
+    return Math.max( 1, (long) ( this.maximumWeight * WINDOW_RATIO ) );
+  }
+
+  /**
+   * Moves the values that overflow the window to probation, then evicts until the cache is within its maximum,
+   * each time keeping whichever of the newest candidate and the probation victim is used more often.
+   */
+  private void evict() {
+    Node<K, V> firstCandidate = null;
+    while ( this.windowWeight > this.maxWindowWeight() ) {
+      Node<K, V> node = this.window.pollFirst();
+      this.windowWeight -= node.weight;
+      this.probation.addLast( node );
+      node.segment = Node.PROBATION;
+      if ( firstCandidate == null ) {
+        firstCandidate = node;
+      }
+    }
+
+    while ( this.totalWeight > this.maximumWeight ) {
+      Node<K, V> victim = this.probation.peekFirst();
+      if ( victim == null ) {
+        victim = this.protectedSegment.peekFirst();
+      }
+      if ( victim == null ) {
+        victim = this.window.peekFirst();
+      }
+      if ( victim == null ) {
+        break;
+      }
+      Node<K, V> candidate = firstCandidate != null && firstCandidate.segment == Node.PROBATION
+        ? firstCandidate : null;
+
+      Node<K, V> evicted = victim;
+      if ( candidate != null && candidate != victim
+        && this.sketch.frequency( candidate.key ) <= this.sketch.frequency( victim.key ) ) {
+        evicted = candidate;
+      }
+      if ( evicted == candidate ) {
+        // the candidates moved from the window are next to each other at the end of probation
+        firstCandidate = candidate.next;
+      }
+      this.data.remove( evicted.key, evicted );
+      this.removeNode( evicted );
+    }
+  }
+
+  private void removeNode( Node<K, V> node ) {
+    if ( node == null || node.segment == Node.REMOVED ) {
+      return;
+    }
+    switch ( node.segment ) {
+      case Node.WINDOW:
+        this.window.remove( node );
+        this.windowWeight -= node.weight;
+        break;
+      case Node.PROBATION:
+        this.probation.remove( node );
+        break;
+      default:
+        this.protectedSegment.remove( node );
+        this.protectedWeight -= node.weight;
+        break;
+    }
+    this.totalWeight -= node.weight;
+    node.segment = Node.REMOVED;
+    // unless the key already holds a newer value
+    if ( !this.data.containsKey( node.key ) ) {
+      this.tagIndex.remove( node.key );
+    }
+  }
+
+  // endregion
+
+  private static final class Node<K, V> {
+    static final int REMOVED = 0;
+    static final int WINDOW = 1;
+    static final int PROBATION = 2;
+    static final int PROTECTED = 3;
+
+    final K key;
+    final V value;
+    final long expiresAt;
+
+    // guarded by the eviction lock
+    long weight;
+    int segment = REMOVED;
+    Node<K, V> prev;
+    Node<K, V> next;
+
+    Node( K key, V value, long expiresAt ) {
+      this.key = key;
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired( long now ) {
+      return this.expiresAt != 0 && this.expiresAt <= now;
+    }
+  }
+
+  /**
+   * Doubly linked list of nodes, from least to most recently used.
+   */
+  private static final class AccessOrderDeque<K, V> {
+    private Node<K, V> first;
+    private Node<K, V> last;
+
+    Node<K, V> peekFirst() {
+      return this.first;
+    }
+
+    Node<K, V> pollFirst() {
+      Node<K, V> node = this.first;
+      if ( node != null ) {
+        this.remove( node );
+      }
+      return node;
+    }
+
+    void addLast( Node<K, V> node ) {
+      node.prev = this.last;
+      node.next = null;
+      if ( this.last == null ) {
+        this.first = node;
+      } else {
+        this.last.next = node;
+      }
+      this.last = node;
+    }
+
+    void remove( Node<K, V> node ) {
+      if ( node.prev == null ) {
+        this.first = node.next;
+      } else {
+        node.prev.next = node.next;
+      }
+      if ( node.next == null ) {
+        this.last = node.prev;
+      } else {
+        node.next.prev = node.prev;
+      }
+      node.prev = null;
+      node.next = null;
+    }
+
+    void moveToLast( Node<K, V> node ) {
+      if ( node != this.last ) {
+        this.remove( node );
+        this.addLast( node );
+      }
+    }
+
+    void clear() {
+      Node<K, V> node = this.first;
+      while ( node != null ) {
+        Node<K, V> next = node.next;
+        node.prev = null;
+        node.next = null;
+        node.segment = Node.REMOVED;
+        node = next;
+      }
+      this.first = null;
+      this.last = null;
+    }
+  }
+}
@@ -14,26 +14,55 @@
 package pt.webdetails.cpk.elements.impl;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.parameters.NamedParams;
 import org.pentaho.di.core.parameters.UnknownParamException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.RowListener;
 import pt.webdetails.cpk.cache.ICache;
 import pt.webdetails.cpk.elements.Element;
 import pt.webdetails.cpk.elements.IDataSourceProvider;
 import pt.webdetails.cpk.elements.IKettleElement;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.ColumnarKettleOutput;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.CsvKettleOutput;
 import pt.webdetails.cpk.elements.impl.kettleoutputs.InferedKettleOutput;
 import pt.webdetails.cpk.elements.impl.kettleoutputs.JsonKettleOutput;
 import pt.webdetails.cpk.elements.impl.kettleoutputs.KettleOutput;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.NdJsonKettleOutput;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.RenderedResponse;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.ResponseCapture;
 import pt.webdetails.cpk.elements.impl.kettleoutputs.ResultFilesKettleOutput;
 import pt.webdetails.cpk.elements.impl.kettleoutputs.ResultOnlyKettleOutput;
 import pt.webdetails.cpk.elements.impl.kettleoutputs.SingleCellKettleOutput;
-
+import pt.webdetails.cpk.elements.impl.kettleoutputs.StreamingJsonKettleOutput;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.StreamingKettleOutput;
+import pt.webdetails.cpk.execution.AsyncExecution;
+import pt.webdetails.cpk.execution.AsyncExecutionStore;
+import pt.webdetails.cpk.execution.ExecutionControl;
+import pt.webdetails.cpk.execution.ExecutionGate;
+import pt.webdetails.cpk.execution.ExecutionRejectedException;
+import pt.webdetails.cpk.execution.ExecutionStopMetrics;
+import pt.webdetails.cpk.execution.SingleFlight;
+import pt.webdetails.cpk.utils.CpkUtils;
+
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 
 public abstract class KettleElement<TMeta extends NamedParams>
   extends Element
@@ -47,12 +76,32 @@ public abstract class KettleElement<TMeta extends NamedParams>
   public enum KettleParameter {
     CACHE_IS_ENABLED( "cpk.cache.isEnabled", "false" ),
     CACHE_TIME_TO_LIVE_SECONDS( "cpk.cache.timeToLiveSeconds", "0" ),
+    CACHE_TAGS( "cpk.cache.tags", "" ),
     RESPONSE_MIME_TYPE( "cpk.response.mimeType", null ),
     RESPONSE_ATTACHMENT_NAME( "cpk.response.attachmentName", null ),
     RESPONSE_DOWNLOAD( "cpk.response.download", "false" ),
     RESPONSE_OUTPUT_TYPE( "cpk.response.kettleOutput", "Infered" ),
+    RESPONSE_STREAM( "cpk.response.stream", "false" ),
+    RESPONSE_FLUSH_ROWS( "cpk.response.flushRows", "1000" ),
+    RESPONSE_MAX_AGE( "cpk.response.maxAge", "-1" ),
+    RESPONSE_COMPRESSION_LEVEL( "cpk.response.compressionLevel", "6" ),
+    RESPONSE_COMPRESSION_MIN_SIZE( "cpk.response.compressionMinSize", "1024" ),
+    RESPONSE_CSV_DELIMITER( "cpk.response.csv.delimiter", "," ),
+    RESPONSE_CSV_QUOTE( "cpk.response.csv.quote", "\"" ),
+    RESPONSE_CSV_QUOTING( "cpk.response.csv.quoting", "minimal" ),
+    RESPONSE_CSV_HEADER( "cpk.response.csv.header", "true" ),
+    RESPONSE_CSV_DATE_FORMAT( "cpk.response.csv.dateFormat", "yyyy-MM-dd HH:mm:ss.SSS" ),
+    RESPONSE_CSV_NUMBER_FORMAT( "cpk.response.csv.numberFormat", "" ),
+    RESPONSE_COLUMNAR_BATCH_ROWS( "cpk.response.columnar.batchRows", "4096" ),
     RESULT_STEP_NAME( "cpk.result.stepName", "OUTPUT" ),
-    EXECUTE_AT_START( "cpk.executeAtStart", "false" );
+    EXECUTE_AT_START( "cpk.executeAtStart", "false" ),
+    TIMEOUT_SECONDS( "cpk.timeoutSeconds", "0" ),
+    POOL_SIZE( "cpk.pool.size", "0" ),
+    POOL_TIME_TO_LIVE_SECONDS( "cpk.pool.timeToLiveSeconds", "300" ),
+    EXECUTION_COALESCE( "cpk.execution.coalesce", "true" ),
+    EXECUTION_MAX_CONCURRENT( "cpk.execution.maxConcurrent", "0" ),
+    EXECUTION_MAX_QUEUED( "cpk.execution.maxQueued", "100" ),
+    EXECUTION_QUEUE_TIMEOUT_SECONDS( "cpk.execution.queueTimeoutSeconds", "30" );
 
     public static final Collection<String> reservedNamePrefixes;
 
@@ -132,6 +181,13 @@ public abstract class KettleElement<TMeta extends NamedParams>
     public static final String KETTLE_OUTPUT = "kettleOutput";
     public static final String DOWNLOAD = "download";
     public static final String BYPASS_CACHE = "bypassCache";
+    public static final String STREAM = "stream";
+    public static final String FLUSH_ROWS = "flushRows";
+    public static final String ASYNC = "async";
+    public static final String TIMEOUT_SECONDS = "timeoutSeconds";
+    public static final String PAGE_START = "pageStart";
+    public static final String PAGE_SIZE = "pageSize";
+    public static final String COUNT_ROWS = "countRows";
   }
 
   // endregion
@@ -140,13 +196,46 @@ public abstract class KettleElement<TMeta extends NamedParams>
   private ICache<KettleResultKey, KettleResult> cache;
   private boolean isResultsCacheEnabled;
   private int timeToLive;
+  private int responseMaxAge = -1;
+
+  private ICache<KettleResponseKey, RenderedResponse> responseCache;
+  private int maxResponseSize;
 
   protected TMeta meta;
 
+  private KettleMetaPool<TMeta> metaPool;
+
+  private ExecutionGate executionGate = ExecutionGate.unbounded( "" );
+  private ExecutionGate pluginExecutionGate;
+
+  private AsyncExecutionStore<KettleResult> asyncExecutionStore;
+
+  private int timeoutSeconds;
+  private final ExecutionStopMetrics stopMetrics = new ExecutionStopMetrics();
+
+  private boolean isExecutionCoalesced;
+  private final SingleFlight<KettleResultKey, KettleResult> inFlightExecutions =
+    new SingleFlight<KettleResultKey, KettleResult>();
+
   private KettleOutput.Configuration defaultOutputConfiguration;
 
   private String defaultOutputName;
 
+  private CsvKettleOutput.Format csvFormat = new CsvKettleOutput.Format();
+  private int columnarBatchRows = ColumnarKettleOutput.DEFAULT_BATCH_ROWS;
+
+  // the tags of the cached results of this element: the element tag plus the cpk.cache.tags
+  private Collection<String> cacheTags = Collections.emptyList();
+
+  // the declared parameters that a request may set, with their default values, sorted by name
+  private SortedMap<String, String> parameterDefaults =
+    Collections.unmodifiableSortedMap( new TreeMap<String, String>() );
+
+  private boolean isLazy = false;
+  private volatile boolean isMaterialized = false;
+  private boolean materializationFailed = false;
+  private final Object materializationLock = new Object();
+
   // endregion
 
   // region Getters / Setters
@@ -162,6 +251,21 @@ public abstract class KettleElement<TMeta extends NamedParams>
     return this;
   }
 
+  /**
+   * @return How long, in seconds, browsers and proxies may reuse a response of this element: the value of
+   * cpk.response.maxAge or, if not set, the time to live of cached results. 0 if results are not cached.
+   */
+  public int getResponseMaxAge() {
+    if ( this.responseMaxAge >= 0 ) {
+      return this.responseMaxAge;
+    }
+    return this.isResultsCacheEnabled() ? Math.max( 0, this.getTimeToLive() ) : 0;
+  }
+  public KettleElement<TMeta> setResponseMaxAge( int maxAge ) {
+    this.responseMaxAge = maxAge;
+    return this;
+  }
+
   public boolean isResultsCacheEnabled() {
     return this.cache != null && this.isResultsCacheEnabled;
   }
@@ -212,10 +316,105 @@ public abstract class KettleElement<TMeta extends NamedParams>
     return this;
   }
 
+  /**
+   * @return The admission control applied to executions of this element.
+   */
+  @JsonIgnore
+  public ExecutionGate getExecutionGate() { return this.executionGate; }
+
+  /**
+   * @return The admission control shared by all kettle elements of the plugin, or null if there is none.
+   */
+  @JsonIgnore
+  public ExecutionGate getPluginExecutionGate() { return this.pluginExecutionGate; }
+  public KettleElement<TMeta> setPluginExecutionGate( ExecutionGate gate ) {
+    this.pluginExecutionGate = gate;
+    return this;
+  }
+
+  /**
+   * @return The maximum number of seconds an execution of this element may run. Unlimited if <= 0.
+   */
+  @JsonIgnore
+  public int getTimeoutSeconds() { return this.timeoutSeconds; }
+  public KettleElement<TMeta> setTimeoutSeconds( int timeoutSeconds ) {
+    this.timeoutSeconds = timeoutSeconds;
+    return this;
+  }
+
+  /**
+   * @return How many executions of this element were stopped before finishing, and how much work they had done.
+   */
+  @JsonProperty( "stoppedExecutions" )
+  public ExecutionStopMetrics getStopMetrics() { return this.stopMetrics; }
+
+  /**
+   * @return The store where executions requested with async=true run, or null if there is none.
+   */
+  @JsonIgnore
+  public AsyncExecutionStore<KettleResult> getAsyncExecutionStore() { return this.asyncExecutionStore; }
+  public KettleElement<TMeta> setAsyncExecutionStore( AsyncExecutionStore<KettleResult> store ) {
+    this.asyncExecutionStore = store;
+    return this;
+  }
+
+  /**
+   * @return The cache of the encoded responses of this element, or null if there is none.
+   */
+  @JsonIgnore
+  public ICache<KettleResponseKey, RenderedResponse> getResponseCache() { return this.responseCache; }
+
+  /**
+   * @param cache The cache where to keep encoded responses. Only used when the results cache is enabled.
+   * @param maxResponseSize The size, in bytes, of the largest response to keep.
+   */
+  public KettleElement<TMeta> setResponseCache( ICache<KettleResponseKey, RenderedResponse> cache,
+                                                int maxResponseSize ) {
+    this.responseCache = cache;
+    this.maxResponseSize = maxResponseSize;
+    return this;
+  }
+
+  /**
+   * @return If encoded responses are cached, along with the results they were encoded from.
+   */
+  @JsonIgnore
+  public boolean isResponseCacheEnabled() {
+    return this.responseCache != null && this.isResultsCacheEnabled();
+  }
+
+  /**
+   * @return If concurrent requests with the same parameters share a single execution.
+   */
+  public boolean isExecutionCoalesced() { return this.isExecutionCoalesced; }
+  public KettleElement<TMeta> setExecutionCoalesced( boolean coalesced ) {
+    this.isExecutionCoalesced = coalesced;
+    return this;
+  }
+
   public boolean isExecuteAtStart() {
+    if ( this.meta == null ) {
+      return false;
+    }
     String isExecuteAtStartStr = KettleParameter.EXECUTE_AT_START.metaDefaultValue( this.meta );
     return Boolean.parseBoolean( isExecuteAtStartStr );
   }
+
+  /**
+   * @return If the kettle file is only loaded when the element is first used, instead of in init.
+   */
+  @JsonIgnore
+  public boolean isLazy() { return this.isLazy; }
+  public KettleElement<TMeta> setLazy( boolean lazy ) {
+    this.isLazy = lazy;
+    return this;
+  }
+
+  /**
+   * @return If the kettle file was already loaded.
+   */
+  @JsonProperty( "loaded" )
+  public boolean isMaterialized() { return this.isMaterialized && !this.materializationFailed; }
   // endregion
 
   // region Element Initialization
@@ -229,41 +428,149 @@ public abstract class KettleElement<TMeta extends NamedParams>
       return false;
     }
 
+    // lazy elements are only registered, the kettle file is loaded on first use
+    if ( this.isLazy() ) {
+      logger.debug( "Deferring load of '" + filePath + "' until first use" );
+      return true;
+    }
+
+    return this.materialize();
+  }
+
+  /**
+   * Loads the kettle file of this element, if it was not loaded yet. Only the first call loads it,
+   * concurrent calls wait for it to finish.
+   * @return true if the kettle file was successfully loaded.
+   */
+  public final boolean materialize() {
+    if ( !this.isMaterialized ) {
+      synchronized ( this.materializationLock ) {
+        if ( !this.isMaterialized ) {
+          this.materializationFailed = !this.load();
+          this.isMaterialized = true;
+        }
+      }
+    }
+    return !this.materializationFailed;
+  }
+
+  /**
+   * Loads the kettle file and initializes the element from its parameters. Called once, by materialize().
+   * @return true if the element was successfully loaded.
+   */
+  protected boolean load() {
     // load  meta info
-    this.meta = this.loadMeta( filePath );
+    this.meta = this.loadMeta( this.getLocation() );
     if ( this.meta == null ) {
       logger.error( "Failed to retrieve '" + this.getLocation() + "'" );
       return false;
     }
+    this.metaPool = this.createMetaPool( this.meta );
 
     this.initializeKettleParameters();
 
-    // execute at start?
-    if ( this.isExecuteAtStart() ) {
-      this.processRequest( this.getInjectedParameters(), null );
+    // the cache may have been set before the meta was loaded, get its time to live from the meta
+    if ( this.cache != null ) {
+      this.setCache( this.cache );
     }
 
-    // init was successful
+    // load was successful
     return true;
   }
 
+  /**
+   * Executes the element, with its default parameter values, if it is to be executed at start.
+   * It is called once the element is registered, so that the execution goes through the element and plugin
+   * execution gates and its result is cached like a request's. A lazy element is loaded first.
+   */
+  public void executeAtStart() {
+    if ( this.materialize() && this.isExecuteAtStart() ) {
+      try {
+        this.processExecutionRequest( this.getExecutionParameters( this.getInjectedParameters() ), null, false,
+          this.createExecutionControl( null ) );
+      } catch ( ExecutionRejectedException e ) {
+        logger.warn( "Execution of '" + this.getName() + "' at start was rejected: " + e.getMessage() );
+      }
+    }
+  }
+
+  /**
+   * Releases the resources held by this element. Called when the element is discarded (e.g. on plugin reload).
+   */
+  public void dispose() {
+    if ( this.metaPool != null ) {
+      this.metaPool.clear();
+    }
+  }
+
+  private KettleMetaPool<TMeta> createMetaPool( TMeta meta ) {
+    int maxIdle = Runtime.getRuntime().availableProcessors();
+    return new KettleMetaPool<TMeta>( meta, maxIdle ) {
+      @Override
+      protected TMeta copy( TMeta template ) {
+        return KettleElement.this.copyMeta( template );
+      }
+    };
+  }
+
   private void initializeKettleParameters() {
     // init variables
     String isCacheEnabledStr = KettleParameter.CACHE_IS_ENABLED.defaultValue( this.meta );
     boolean isResultsCacheEnabled = Boolean.parseBoolean( isCacheEnabledStr );
 
+    String isCoalescedStr = KettleParameter.EXECUTION_COALESCE.defaultValue( this.meta );
+    boolean isExecutionCoalesced = Boolean.parseBoolean( isCoalescedStr );
+
     String defaultOutputName = this.getDefaultOutputName(
       KettleParameter.RESULT_STEP_NAME.metaDefaultValue( this.meta ),
       KettleParameter.RESULT_STEP_NAME.hardCodedDefaultValue() );
 
     KettleOutput.Configuration outputConfiguration = this.getOutputConfiguration();
+    this.csvFormat = this.getCsvFormat();
+    this.columnarBatchRows = getIntParameter( KettleParameter.RESPONSE_COLUMNAR_BATCH_ROWS );
+
+    SortedMap<String, String> parameterDefaults = new TreeMap<String, String>();
+    for ( String parameter : this.meta.listParameters() ) {
+      if ( !KettleParameter.isReservedName( parameter ) ) {
+        parameterDefaults.put( parameter, KettleElementHelper.getParameterDefaultValue( this.meta, parameter ) );
+      }
+    }
+    this.parameterDefaults = Collections.unmodifiableSortedMap( parameterDefaults );
+
+    Collection<String> cacheTags = new ArrayList<String>();
+    cacheTags.add( elementCacheTag( this.getId() ) );
+    for ( String tag : KettleParameter.CACHE_TAGS.defaultValue( this.meta ).split( "," ) ) {
+      if ( !tag.trim().isEmpty() ) {
+        cacheTags.add( userCacheTag( tag.trim() ) );
+      }
+    }
+    this.cacheTags = Collections.unmodifiableCollection( cacheTags );
+
+    this.executionGate = new ExecutionGate( "element " + this.getPluginId() + ":" + this.getId(),
+      getIntParameter( KettleParameter.EXECUTION_MAX_CONCURRENT ),
+      getIntParameter( KettleParameter.EXECUTION_MAX_QUEUED ),
+      getIntParameter( KettleParameter.EXECUTION_QUEUE_TIMEOUT_SECONDS ) );
 
     this
       .setResultsCacheEnabled( isResultsCacheEnabled )
+      .setExecutionCoalesced( isExecutionCoalesced )
+      .setTimeoutSeconds( getIntParameter( KettleParameter.TIMEOUT_SECONDS ) )
+      .setResponseMaxAge( getIntParameter( KettleParameter.RESPONSE_MAX_AGE ) )
       .setDefaultOutputName( defaultOutputName )
       .setDefaultOutputConfiguration( outputConfiguration );
   }
 
+  protected final int getIntParameter( KettleParameter parameter ) {
+    String value = parameter.defaultValue( this.meta );
+    try {
+      return Integer.parseInt( value.trim() );
+    } catch ( NumberFormatException e ) {
+      logger.warn( "Invalid value '" + value + "' for " + parameter.parameterName() + " in '" + this.getLocation()
+        + "'. Using " + parameter.hardCodedDefaultValue() + "." );
+      return Integer.parseInt( parameter.hardCodedDefaultValue() );
+    }
+  }
+
   private String getDefaultOutputName( String metaOutputName, String hardCodedDefaultOutputName ) {
     Collection<String> existingOutputNames = this.getOutputNames();
 
@@ -284,21 +591,78 @@ public abstract class KettleElement<TMeta extends NamedParams>
     String downloadStr = KettleParameter.RESPONSE_DOWNLOAD.defaultValue( this.meta );
     boolean download = Boolean.parseBoolean( downloadStr );
     String outputType = KettleParameter.RESPONSE_OUTPUT_TYPE.defaultValue( this.meta );
+    String streamStr = KettleParameter.RESPONSE_STREAM.defaultValue( this.meta );
+    boolean stream = Boolean.parseBoolean( streamStr );
+
+    // responses that depend on the user may only be kept by the browser of that user
+    boolean sharedCaching = !this.isAdminOnly();
+    for ( String parameter : this.meta.listParameters() ) {
+      sharedCaching &= !KettleElementHelper.isSessionParameter( parameter );
+    }
 
     KettleOutput.Configuration configuration = new KettleOutput.Configuration();
     configuration
       .setMimeType( mimeType )
       .setAttachmentName( attachmentName )
       .setSendResultAsAttachment( download )
+      .setStreamResult( stream )
+      .setFlushRows( getIntParameter( KettleParameter.RESPONSE_FLUSH_ROWS ) )
+      .setSharedCaching( sharedCaching )
+      .setCompressionLevel( getIntParameter( KettleParameter.RESPONSE_COMPRESSION_LEVEL ) )
+      .setCompressionMinSize( getIntParameter( KettleParameter.RESPONSE_COMPRESSION_MIN_SIZE ) )
       .setOutputType( outputType );
 
     return configuration;
   }
 
+  private CsvKettleOutput.Format getCsvFormat() {
+    CsvKettleOutput.Format format = new CsvKettleOutput.Format();
+
+    String delimiter = KettleParameter.RESPONSE_CSV_DELIMITER.defaultValue( this.meta );
+    if ( "tab".equalsIgnoreCase( delimiter ) || "\\t".equals( delimiter ) ) {
+      format.setDelimiter( '\t' );
+    } else if ( delimiter.length() == 1 ) {
+      format.setDelimiter( delimiter.charAt( 0 ) );
+    }
+    String quote = KettleParameter.RESPONSE_CSV_QUOTE.defaultValue( this.meta );
+    if ( quote.length() == 1 ) {
+      format.setQuote( quote.charAt( 0 ) );
+    }
+    String quoting = KettleParameter.RESPONSE_CSV_QUOTING.defaultValue( this.meta );
+    try {
+      format.setQuoting( CsvKettleOutput.Quoting.valueOf( quoting.trim().toUpperCase() ) );
+    } catch ( IllegalArgumentException e ) {
+      logger.warn( "Invalid value '" + quoting + "' for " + KettleParameter.RESPONSE_CSV_QUOTING.parameterName()
+        + " in '" + this.getLocation() + "'. Using minimal." );
+    }
+    String dateFormat = KettleParameter.RESPONSE_CSV_DATE_FORMAT.defaultValue( this.meta );
+    String numberFormat = KettleParameter.RESPONSE_CSV_NUMBER_FORMAT.defaultValue( this.meta );
+    try {
+      // validate the patterns now, rather than when the first row is written
+      if ( !dateFormat.isEmpty() ) {
+        new SimpleDateFormat( dateFormat );
+        format.setDateFormat( dateFormat );
+      }
+      if ( !numberFormat.isEmpty() ) {
+        new DecimalFormat( numberFormat );
+        format.setNumberFormat( numberFormat );
+      }
+    } catch ( IllegalArgumentException e ) {
+      logger.warn( "Invalid date or number format for the csv output of '" + this.getLocation() + "'", e );
+    }
+
+    return format
+      .setHeader( !"false".equalsIgnoreCase( KettleParameter.RESPONSE_CSV_HEADER.defaultValue( this.meta ) ) );
+  }
+
   // endregion
 
   // region Element Execution
   protected final KettleOutput inferResult( String kettleOutputType ) {
+    return this.inferResult( kettleOutputType, false );
+  }
+
+  protected final KettleOutput inferResult( String kettleOutputType, boolean stream ) {
 
      /*
      *  There are a few different types of kettle output processing.
@@ -307,9 +671,13 @@ public abstract class KettleElement<TMeta extends NamedParams>
      *  1. ResultOnly - we'll discard the output and print statistics only
      *  2. ResultFiles - Download the files we have as result filenames
      *  3. Json - Json output of the resultset
-     *  4. csv - CSV output of the resultset
-     *  5. SingleCell - We'll get the first line, first row
-     *  6. Infered - Infering
+     *  4. Csv - CSV output of the resultset, or Tsv with tabs as delimiter
+     *  5. NdJson - Json lines output of the resultset, one row per line
+     *  6. Columnar - Binary output of the resultset, in record batches of typed columns
+     *  7. SingleCell - We'll get the first line, first row
+     *  8. Infered - Infering
+     *
+     *  When stream is true, outputs that can write rows while they are produced are preferred.
      *
      *      These do:
      *  3. SingleCell
@@ -325,13 +693,21 @@ public abstract class KettleElement<TMeta extends NamedParams>
 
     KettleOutput kettleOutput;
     if ( kettleOutputType.equalsIgnoreCase( "Json" ) ) {
-      kettleOutput = new JsonKettleOutput();
+      kettleOutput = stream ? new StreamingJsonKettleOutput() : new JsonKettleOutput();
     } else if ( kettleOutputType.equalsIgnoreCase( "ResultFiles" ) ) {
       kettleOutput = new ResultFilesKettleOutput();
     } else if ( kettleOutputType.equalsIgnoreCase( "ResultOnly" ) ) {
       kettleOutput = new ResultOnlyKettleOutput();
     } else if ( kettleOutputType.equalsIgnoreCase( "SingleCell" ) ) {
       kettleOutput = new SingleCellKettleOutput();
+    } else if ( kettleOutputType.equalsIgnoreCase( "Csv" ) ) {
+      kettleOutput = new CsvKettleOutput( this.csvFormat );
+    } else if ( kettleOutputType.equalsIgnoreCase( "Tsv" ) ) {
+      kettleOutput = new CsvKettleOutput( this.csvFormat.clone().setDelimiter( '\t' ) );
+    } else if ( kettleOutputType.equalsIgnoreCase( "NdJson" ) ) {
+      kettleOutput = new NdJsonKettleOutput();
+    } else if ( kettleOutputType.equalsIgnoreCase( "Columnar" ) ) {
+      kettleOutput = new ColumnarKettleOutput( this.columnarBatchRows );
     } else {
       kettleOutput = new InferedKettleOutput();
     }
@@ -343,56 +719,414 @@ public abstract class KettleElement<TMeta extends NamedParams>
   @Override
   public final void processRequest( Map<String, Map<String, Object>> bloatedMap ) {
 
+    if ( !this.materialize() ) {
+      this.sendLoadError( (HttpServletResponse) bloatedMap.get( "path" ).get( "httpresponse" ) );
+      return;
+    }
+
     // "Parse" bloated map
     Map<String, Object> request = bloatedMap.get( "request" );
     String stepName = (String) request.get( RequestParameterName.STEP_NAME );
 
-    // if output type is not defined in request use value from default config.
-    // If not defined in default config use hardcoded default.
-    String kettleOutputType = this.getStringParameter( (String) request.get( RequestParameterName.KETTLE_OUTPUT ),
-                                                       this.getDefaultOutputConfiguration().getOutputType(),
-                                                       KettleParameter.RESPONSE_OUTPUT_TYPE.hardCodedDefaultValue() );
-
-    // if download parameter is not defined use value from default output configuration
-    String downloadStr = (String) request.get( RequestParameterName.DOWNLOAD );
-    boolean download = downloadStr != null ? Boolean.parseBoolean( downloadStr )
-      : this.getDefaultOutputConfiguration().getSendResultAsAttachment();
+    HttpServletRequest httpRequest = (HttpServletRequest) bloatedMap.get( "path" ).get( "httprequest" );
+    String kettleOutputType = this.getOutputType( request, httpRequest );
+    boolean download = this.getDownload( request );
 
     String bypassCacheStr = (String) request.get( RequestParameterName.BYPASS_CACHE );
     boolean bypassCache = Boolean.parseBoolean( bypassCacheStr != null ? bypassCacheStr : "false" );
 
+    // if stream parameter is not defined use value from default output configuration
+    String streamStr = (String) request.get( RequestParameterName.STREAM );
+    boolean stream = streamStr != null ? Boolean.parseBoolean( streamStr )
+      : this.getDefaultOutputConfiguration().getStreamResult() || isStreamedByDefault( kettleOutputType );
 
     HttpServletResponse httpResponse = (HttpServletResponse) bloatedMap.get( "path" ).get( "httpresponse" );
+    String ifNoneMatch = getHeader( httpRequest, "If-None-Match" );
 
     Map<String, String> kettleParameters = KettleElementHelper.getKettleParameters( request );
 
-    this.processRequest( kettleParameters, kettleOutputType , stepName, download, bypassCache, httpResponse );
+    String timeoutStr = (String) request.get( RequestParameterName.TIMEOUT_SECONDS );
+    ExecutionControl control = this.createExecutionControl( timeoutStr );
+
+    boolean async = Boolean.parseBoolean( (String) request.get( RequestParameterName.ASYNC ) );
+    if ( async && this.asyncExecutionStore != null ) {
+      this.processRequestAsync( kettleParameters, stepName, bypassCache, control, httpResponse );
+      return;
+    }
+
+    // get default configuration and overload download, stream and pagination values
+    KettleOutput.Configuration configuration = this.createOutputConfiguration();
+    configuration
+      .setSendResultAsAttachment( download )
+      .setStreamResult( stream )
+      .setFlushRows( parseInt( (String) request.get( RequestParameterName.FLUSH_ROWS ), configuration.getFlushRows() ) )
+      .setPageStart( parseInt( (String) request.get( RequestParameterName.PAGE_START ), 0 ) )
+      .setPageSize( parseInt( (String) request.get( RequestParameterName.PAGE_SIZE ), 0 ) )
+      .setCountRows( !"false".equalsIgnoreCase( (String) request.get( RequestParameterName.COUNT_ROWS ) ) )
+      .setAccept( getHeader( httpRequest, "Accept" ) )
+      .setAcceptEncoding( getHeader( httpRequest, "Accept-Encoding" ) )
+      .setVaryOnAccept( request.get( RequestParameterName.KETTLE_OUTPUT ) == null );
+
+    this.processRequest( kettleParameters, kettleOutputType, stepName, configuration, bypassCache, control,
+      httpResponse, ifNoneMatch );
+  }
+
+  /**
+   * @return If the output is meant for bulk exports or feeds, which are written while rows are produced unless the
+   * request asks otherwise, so that memory use does not depend on the number of rows.
+   */
+  private static boolean isStreamedByDefault( String outputType ) {
+    return "Csv".equalsIgnoreCase( outputType ) || "Tsv".equalsIgnoreCase( outputType )
+      || "NdJson".equalsIgnoreCase( outputType ) || "Columnar".equalsIgnoreCase( outputType );
+  }
+
+  private static String getHeader( HttpServletRequest httpRequest, String name ) {
+    return httpRequest != null ? httpRequest.getHeader( name ) : null;
   }
 
+  private static int parseInt( String value, int defaultValue ) {
+    try {
+      return value != null ? Integer.parseInt( value.trim() ) : defaultValue;
+    } catch ( NumberFormatException e ) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Creates the control of a new execution, with a deadline given by the element timeout and the request timeout.
+   * A request may shorten the element timeout, but not extend it.
+   * @param requestTimeoutSeconds The timeout, in seconds, requested by the client. May be null.
+   * @return the control of a new execution.
+   */
+  private ExecutionControl createExecutionControl( String requestTimeoutSeconds ) {
+    int timeout = this.getTimeoutSeconds();
+    if ( requestTimeoutSeconds != null ) {
+      try {
+        int requestTimeout = Integer.parseInt( requestTimeoutSeconds.trim() );
+        if ( requestTimeout > 0 && ( timeout <= 0 || requestTimeout < timeout ) ) {
+          timeout = requestTimeout;
+        }
+      } catch ( NumberFormatException e ) {
+        logger.warn( "Ignoring invalid request timeout '" + requestTimeoutSeconds + "' for '" + this.getName() + "'" );
+      }
+    }
+    return new ExecutionControl( timeout );
+  }
+
+
+  /**
+   * Writes the result of a previous execution of this element (e.g. an asynchronous execution) to the response,
+   * using the kettle output and download options of the request.
+   * @param result The result to write.
+   * @param bloatedMap The request and response of the call.
+   */
+  public final void processResult( KettleResult result, Map<String, Map<String, Object>> bloatedMap ) {
+    Map<String, Object> request = bloatedMap.get( "request" );
+    HttpServletResponse httpResponse = (HttpServletResponse) bloatedMap.get( "path" ).get( "httpresponse" );
+    if ( !this.materialize() ) {
+      this.sendLoadError( httpResponse );
+      return;
+    }
+
+    HttpServletRequest httpRequest = (HttpServletRequest) bloatedMap.get( "path" ).get( "httprequest" );
+    KettleOutput.Configuration configuration = this.createOutputConfiguration();
+    configuration
+      .setSendResultAsAttachment( this.getDownload( request ) )
+      .setStreamResult( false )
+      .setPageStart( parseInt( (String) request.get( RequestParameterName.PAGE_START ), 0 ) )
+      .setPageSize( parseInt( (String) request.get( RequestParameterName.PAGE_SIZE ), 0 ) )
+      .setAccept( getHeader( httpRequest, "Accept" ) )
+      .setAcceptEncoding( getHeader( httpRequest, "Accept-Encoding" ) )
+      .setVaryOnAccept( request.get( RequestParameterName.KETTLE_OUTPUT ) == null );
+
+    KettleOutput kettleOutput = this.inferResult( this.getOutputType( request, httpRequest ) );
+    kettleOutput
+      .setConfiguration( configuration )
+      .setResponse( httpResponse );
+    kettleOutput.processResult( result );
+  }
+
+  /**
+   * @return A copy of the default output configuration, with the max age of the responses, which depends on the
+   * time to live of the cache.
+   */
+  private KettleOutput.Configuration createOutputConfiguration() {
+    return this.getDefaultOutputConfiguration().clone().setMaxAge( this.getResponseMaxAge() );
+  }
+
+  private String getOutputType( Map<String, Object> request, HttpServletRequest httpRequest ) {
+    // if output type is not defined in request, a client that asks for the columnar format in the Accept header gets
+    // it. Otherwise use value from default config. If not defined in default config use hardcoded default.
+    if ( request.get( RequestParameterName.KETTLE_OUTPUT ) == null
+      && CpkUtils.isAccepted( getHeader( httpRequest, "Accept" ), ColumnarKettleOutput.MIME_TYPE ) ) {
+      return "Columnar";
+    }
+    return this.getStringParameter( (String) request.get( RequestParameterName.KETTLE_OUTPUT ),
+                                    this.getDefaultOutputConfiguration().getOutputType(),
+                                    KettleParameter.RESPONSE_OUTPUT_TYPE.hardCodedDefaultValue() );
+  }
+
+  private boolean getDownload( Map<String, Object> request ) {
+    // if download parameter is not defined use value from default output configuration
+    String downloadStr = (String) request.get( RequestParameterName.DOWNLOAD );
+    return downloadStr != null ? Boolean.parseBoolean( downloadStr )
+      : this.getDefaultOutputConfiguration().getSendResultAsAttachment();
+  }
+
+  /**
+   * Submits the execution to run in the background and responds with its id, so that its status can be followed
+   * and its result fetched later through the execution endpoints.
+   * @param kettleParameters Parameters to be passed into the kettle transformation/job.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param bypassCache If true, forces the request to be processed even if a value for it already exists in the cache.
+   * @param control The control of the execution, with its deadline.
+   * @param httpResponse The response where the execution id is written.
+   */
+  private void processRequestAsync( Map<String, String> kettleParameters, final String outputStepName,
+                                    final boolean bypassCache, ExecutionControl control,
+                                    HttpServletResponse httpResponse ) {
+    // injected parameters (e.g. session values) must be obtained in the request thread
+    final Map<String, String> executionParameters = this.getExecutionParameters( kettleParameters );
+
+    AsyncExecution<KettleResult> execution;
+    try {
+      execution = this.asyncExecutionStore.submit( this.getId(), KettleElementHelper.getCurrentUserName(), control,
+        new AsyncExecutionStore.Task<KettleResult>() {
+          @Override
+          public KettleResult run( ExecutionControl control ) {
+            return KettleElement.this.processExecutionRequest( executionParameters, outputStepName, bypassCache,
+              control );
+          }
+        } );
+    } catch ( ExecutionRejectedException e ) {
+      this.sendServiceUnavailable( httpResponse );
+      return;
+    }
+
+    logger.info( "Submitted asynchronous execution " + execution.getExecutionId() + " of '" + this.getName() + "'" );
+    if ( httpResponse == null ) {
+      return;
+    }
+    try {
+      httpResponse.setStatus( HttpServletResponse.SC_ACCEPTED );
+      httpResponse.setContentType( "application/json" );
+      new ObjectMapper().writeValue( httpResponse.getOutputStream(), execution );
+    } catch ( IOException e ) {
+      logger.error( "Failed to write asynchronous execution id.", e );
+    }
+  }
 
   // TODO: kettleoutput processing should be in the REST service layer
   private void processRequest( Map<String, String> kettleParameters, String outputType, String outputStepName,
-                               boolean download, boolean bypassCache, HttpServletResponse httpResponse ) {
+                               KettleOutput.Configuration configuration, boolean bypassCache,
+                               ExecutionControl control, HttpServletResponse httpResponse, String ifNoneMatch ) {
+
+    // without a cache to slice pages from, paginated rows are written while the execution runs,
+    // so that rows outside the page are only counted and the execution can stop early
+    boolean stream = configuration.getStreamResult()
+      || ( configuration.isPaginated() && !this.isResultsCacheEnabled() );
+    configuration.setStreamResult( stream );
+
+    // Choose kettle output type
+    KettleOutput kettleOutput = this.inferResult( outputType, stream );
+    kettleOutput
+      .setConfiguration( configuration )
+      .setResponse( httpResponse );
+    if ( kettleOutput instanceof CsvKettleOutput ) {
+      // a result without rows has no row metadata to take the header from
+      ( (CsvKettleOutput) kettleOutput ).setOutputFields( this.getOutputFields( outputStepName ) );
+    }
 
-    KettleResult result = this.processRequest( kettleParameters, outputStepName, bypassCache );
+    KettleResult result;
+    try {
+      if ( stream && kettleOutput instanceof StreamingKettleOutput ) {
+        result = this.processRequestStreaming( kettleParameters, outputStepName, bypassCache, control,
+          (StreamingKettleOutput) kettleOutput );
+      } else if ( this.isResponseCacheEnabled() ) {
+        result = this.processRequestRendered( kettleParameters, outputType, outputStepName, bypassCache, control,
+          kettleOutput, ifNoneMatch );
+      } else {
+        result = this.processRequest( kettleParameters, outputStepName, bypassCache, control );
+        if ( control.getStopReason() == ExecutionControl.StopReason.TIMEOUT ) {
+          this.sendGatewayTimeout( httpResponse );
+          return;
+        }
+        if ( result != null ) {
+          // TODO: pass configuration to process result
+          kettleOutput.processResult( result );
+        }
+      }
+    } catch ( ExecutionRejectedException e ) {
+      this.sendServiceUnavailable( httpResponse );
+      return;
+    }
 
     if ( result != null ) {
-      // get default configuration and overload download value
-      KettleOutput.Configuration configuration = this.getDefaultOutputConfiguration().clone();
-      configuration.setSendResultAsAttachment( download );
-
-      // Choose kettle output type and process result with it
-      KettleOutput kettleOutput = this.inferResult( outputType );
-      kettleOutput
-        .setConfiguration( configuration )
-        .setResponse( httpResponse );
-
-      // TODO: pass configuration to process result
-      kettleOutput.processResult( result );
       logger.info( "[ " + result + " ]" );
     }
   }
 
+  /**
+   * Executes the kettle transformation / job writing each result row to the output as soon as it is produced.
+   * A cached result is replayed into the output, but streamed results are not stored in the cache
+   * because their rows are not kept in memory.
+   * @param kettleParameters Parameters to be passed into the kettle transformation/job.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param bypassCache If true, ignores any value for this request that already exists in the cache.
+   * @param control The control of the execution. The execution is stopped if the client disconnects.
+   * @param kettleOutput The output where to write the result rows.
+   * @return The result of executing the kettle transformation / job, without rows.
+   */
+  private KettleResult processRequestStreaming( Map<String, String> kettleParameters, String outputStepName,
+                                                boolean bypassCache, final ExecutionControl control,
+                                                StreamingKettleOutput kettleOutput ) {
+    Map<String, String> executionParameters = this.getExecutionParameters( kettleParameters );
+
+    if ( this.isResultsCacheEnabled() && !bypassCache ) {
+      KettleResultKey cacheKey = this.createResultKey( outputStepName, executionParameters );
+      KettleResult result = this.getCache().get( cacheKey );
+      if ( result != null ) {
+        kettleOutput.processResult( result );
+        return result;
+      }
+    }
+
+    // rows can only fail to be written if the client is gone, there is no point in continuing the execution.
+    // Neither is there once the output has all the rows it needs.
+    final StreamingKettleOutput output = kettleOutput;
+    final RowListener outputListener = kettleOutput.getRowListener();
+    RowListener rowListener = new RowAdapter() {
+      @Override
+      public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] data ) throws KettleStepException {
+        if ( control.isStopped() ) {
+          return;
+        }
+        try {
+          outputListener.rowWrittenEvent( rowMeta, data );
+        } catch ( KettleStepException e ) {
+          control.stop( ExecutionControl.StopReason.DISCONNECTED );
+          throw e;
+        }
+        if ( output.isComplete() ) {
+          control.stop( ExecutionControl.StopReason.LIMIT_REACHED );
+        }
+      }
+    };
+
+    KettleResult result = this.execute( executionParameters, outputStepName, rowListener, control );
+    kettleOutput.finish( result, control.getStopReason() );
+    if ( control.getStopReason() == ExecutionControl.StopReason.TIMEOUT ) {
+      // only possible if no row was written yet
+      this.sendGatewayTimeout( kettleOutput.getResponse() );
+    }
+    return result;
+  }
+
+  /**
+   * Answers the request with a cached encoded response, or with a 304 (Not Modified) if the client already holds it.
+   * Otherwise executes the kettle transformation / job (or gets its result from the results cache) and caches the
+   * encoded response, together with its ETag.
+   * @param kettleParameters Parameters to be passed into the kettle transformation/job.
+   * @param outputType The type of the kettle output.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param bypassCache If true, ignores any response or result for this request that already exists in the cache.
+   * @param control The control of the execution.
+   * @param kettleOutput The output that encodes the result.
+   * @param ifNoneMatch The If-None-Match header of the request, or null.
+   * @return The result of executing the kettle transformation / job, or null if a cached response was used.
+   */
+  private KettleResult processRequestRendered( Map<String, String> kettleParameters, String outputType,
+                                               String outputStepName, boolean bypassCache, ExecutionControl control,
+                                               KettleOutput kettleOutput, String ifNoneMatch ) {
+    HttpServletResponse httpResponse = kettleOutput.getResponse();
+    Map<String, String> executionParameters = this.getExecutionParameters( kettleParameters );
+    KettleOutput.Configuration configuration = kettleOutput.getConfiguration();
+    KettleResponseKey responseKey = new KettleResponseKey( this.createResultKey( outputStepName, executionParameters ),
+      outputType, configuration.getMimeType(), configuration.getSendResultAsAttachment(),
+      configuration.getAttachmentName(), configuration.getPageStart(), configuration.getPageSize(),
+      configuration.getJsonMimeType(), configuration.getContentEncoding() );
+
+    if ( !bypassCache ) {
+      RenderedResponse rendered = this.responseCache.get( responseKey );
+      if ( rendered != null ) {
+        this.writeRendered( rendered, httpResponse, ifNoneMatch );
+        return null;
+      }
+    }
+
+    KettleResult result = this.processExecutionRequest( executionParameters, outputStepName, bypassCache, control );
+    if ( control.getStopReason() == ExecutionControl.StopReason.TIMEOUT ) {
+      this.sendGatewayTimeout( httpResponse );
+      return null;
+    }
+    if ( result == null ) {
+      return null;
+    }
+
+    ResponseCapture capture = new ResponseCapture( httpResponse, this.maxResponseSize );
+    kettleOutput.setResponse( capture );
+    kettleOutput.processResult( result );
+    try {
+      RenderedResponse rendered = capture.complete();
+      if ( rendered != null ) {
+        // results of stopped executions are incomplete, whichever request ran them
+        if ( isComplete( result ) ) {
+          this.responseCache.put( responseKey, rendered, this.getTimeToLive(), this.cacheTags );
+        }
+        rendered.writeTo( httpResponse, ifNoneMatch );
+      }
+    } catch ( IOException e ) {
+      logger.error( "Failed to write the response of '" + this.getName() + "'", e );
+    }
+    return result;
+  }
+
+  private void writeRendered( RenderedResponse rendered, HttpServletResponse httpResponse, String ifNoneMatch ) {
+    if ( httpResponse == null ) {
+      return;
+    }
+    try {
+      rendered.writeTo( httpResponse, ifNoneMatch );
+    } catch ( IOException e ) {
+      logger.error( "Failed to write the cached response of '" + this.getName() + "'", e );
+    }
+  }
+
+  private void sendLoadError( HttpServletResponse httpResponse ) {
+    if ( httpResponse == null ) {
+      return;
+    }
+    try {
+      httpResponse.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+        "Failed to load '" + this.getName() + "'" );
+    } catch ( IOException e ) {
+      logger.error( "Failed to send load error response.", e );
+    }
+  }
+
+  private void sendGatewayTimeout( HttpServletResponse httpResponse ) {
+    if ( httpResponse == null || httpResponse.isCommitted() ) {
+      return;
+    }
+    try {
+      httpResponse.sendError( HttpServletResponse.SC_GATEWAY_TIMEOUT );
+    } catch ( IOException e ) {
+      logger.error( "Failed to send gateway timeout response.", e );
+    }
+  }
+
+  private void sendServiceUnavailable( HttpServletResponse httpResponse ) {
+    if ( httpResponse == null ) {
+      return;
+    }
+    try {
+      int retryAfterSeconds = Math.max( 1, this.executionGate.getQueueTimeoutSeconds() );
+      httpResponse.setHeader( "Retry-After", String.valueOf( retryAfterSeconds ) );
+      httpResponse.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+    } catch ( IOException e ) {
+      logger.error( "Failed to send service unavailable response.", e );
+    }
+  }
 
   /**
    * Executes Executes the kettle transformation / job.
@@ -401,51 +1135,111 @@ public abstract class KettleElement<TMeta extends NamedParams>
    * @param bypassCache If true, forces the request to be processed even if a value for it already exists in the cache.
    *                    Bypassing the cache also updates the cache with the new obtained result.
    * @return The result of executing the kettle transformation / job.
+   * @throws ExecutionRejectedException if the element or the plugin is overloaded.
    */
   @Override
   public final KettleResult processRequest( Map<String, String> kettleParameters, String outputStepName,
                                       boolean bypassCache ) {
+    return this.processRequest( kettleParameters, outputStepName, bypassCache, this.createExecutionControl( null ) );
+  }
 
-    // remove parameters which name is reserved
-    Map<String, String> filteredKettleParameters = this.sanitizeKettleParameters( kettleParameters );
-    filteredKettleParameters.putAll( this.getInjectedParameters() );
+  /**
+   * Executes the kettle transformation / job.
+   * @param kettleParameters Parameters to be passed into the kettle transformation/job.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param bypassCache If true, forces the request to be processed even if a value for it already exists in the cache.
+   *                    Bypassing the cache also updates the cache with the new obtained result.
+   * @param control Allows the execution to be cancelled and its progress to be followed.
+   * @return The result of executing the kettle transformation / job.
+   * @throws ExecutionRejectedException if the element or the plugin is overloaded.
+   */
+  public final KettleResult processRequest( Map<String, String> kettleParameters, String outputStepName,
+                                            boolean bypassCache, ExecutionControl control ) {
+    if ( !this.materialize() ) {
+      return null;
+    }
+
+    Map<String, String> filteredKettleParameters = this.getExecutionParameters( kettleParameters );
+    return this.processExecutionRequest( filteredKettleParameters, outputStepName, bypassCache, control );
+  }
 
+  /**
+   * Executes the kettle transformation / job with parameters that were already sanitized and injected.
+   * Asynchronous executions use it because injected parameter values are only available in the request thread.
+   * @param filteredKettleParameters The result of getExecutionParameters for the request parameters.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param bypassCache If true, forces the request to be processed even if a value for it already exists in the cache.
+   * @param control Allows the execution to be cancelled and its progress to be followed.
+   * @return The result of executing the kettle transformation / job.
+   */
+  private KettleResult processExecutionRequest( Map<String, String> filteredKettleParameters, String outputStepName,
+                                                boolean bypassCache, ExecutionControl control ) {
     KettleResult result;
     if ( this.isResultsCacheEnabled() ) {
-      result = this.processRequestCached( filteredKettleParameters, outputStepName, bypassCache );
+      result = this.processRequestCached( filteredKettleParameters, outputStepName, bypassCache, control );
+    } else if ( this.isExecutionCoalesced() ) {
+      KettleResultKey key = this.createResultKey( outputStepName, filteredKettleParameters );
+      result = this.executeCoalesced( key, filteredKettleParameters, outputStepName, false, control );
     } else {
-      result = this.processRequest( filteredKettleParameters, outputStepName );
+      result = this.execute( filteredKettleParameters, outputStepName, null, control );
     }
     return result;
   }
 
+  /**
+   * @param kettleParameters The parameters received in the request.
+   * @return The parameters to pass into the kettle transformation / job: the request parameters which name is not
+   * reserved and that the transformation / job declares, plus the injected parameters.
+   */
+  private Map<String, String> getExecutionParameters( Map<String, String> kettleParameters ) {
+    // remove parameters which name is reserved
+    Map<String, String> filteredKettleParameters = this.sanitizeKettleParameters( kettleParameters );
+    filteredKettleParameters.putAll( this.getInjectedParameters() );
+    return filteredKettleParameters;
+  }
+
   /**
    *
    * @param kettleParameters The parameters to sanitize.
-   * @return A new Map with only the parameters which name is valid.
+   * @return A new Map with only the declared parameters which name is valid. Other parameters (e.g. cache busting
+   * timestamps) would be ignored by kettle anyway.
    */
   private Map<String, String> sanitizeKettleParameters( Map<String, String> kettleParameters ) {
     Map<String, String> sanitizedParameters = new HashMap<String, String>();
     for ( Map.Entry<String, String> parameter : kettleParameters.entrySet() ) {
-      if ( !KettleParameter.isReservedName( parameter.getKey() ) ) {
-        sanitizedParameters.put( parameter.getKey(), parameter.getValue() );
+      String name = parameter.getKey();
+      if ( this.parameterDefaults.containsKey( name ) && !KettleParameter.isReservedName( name ) ) {
+        sanitizedParameters.put( name, parameter.getValue() );
       }
     }
     return sanitizedParameters;
   }
 
+  /**
+   * Creates the key of the result of an execution. The declared parameters that were not given take their default
+   * value, so that omitting a parameter or giving its default value are answered by the same result. The values
+   * are part of the key exactly as they are passed to the transformation / job.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param executionParameters The result of getExecutionParameters for the request parameters.
+   * @return The key of the result.
+   */
+  private KettleResultKey createResultKey( String outputStepName, Map<String, String> executionParameters ) {
+    return new KettleResultKey( this.getPluginId(), this.getId(), outputStepName, this.parameterDefaults,
+      executionParameters );
+  }
+
   /**
    * Executes the kettle transformation / job if no cached valued is found or cache bypass is specified.
    * @param kettleParameters Parameters to be passed into the kettle transformation/job.
    * @param outputStepName The step name from where the result will be fetched.
    * @param bypassCache If true, forces the request to be processed even if a value for it already exists in the cache.
    *                    Bypassing the cache also updates the cache with the new obtained result.
+   * @param control Allows the execution to be cancelled and its progress to be followed.
    * @return The result of executing the kettle transformation / job.
    */
   private KettleResult processRequestCached( Map<String, String> kettleParameters, String outputStepName,
-                                             boolean bypassCache ) {
-    KettleResultKey cacheKey = new KettleResultKey( this.getPluginId(), this.getId(),
-      outputStepName, kettleParameters );
+                                             boolean bypassCache, ExecutionControl control ) {
+    KettleResultKey cacheKey = this.createResultKey( outputStepName, kettleParameters );
 
     KettleResult result;
     if ( !bypassCache ) {
@@ -455,12 +1249,136 @@ public abstract class KettleElement<TMeta extends NamedParams>
       }
     }
 
-    result = this.processRequest( kettleParameters, outputStepName );
-    // put new, or update current, result in cache.
-    this.getCache().put( cacheKey, result, this.getTimeToLive() );
+    if ( !bypassCache && this.isExecutionCoalesced() ) {
+      return this.executeCoalesced( cacheKey, kettleParameters, outputStepName, true, control );
+    }
+
+    result = this.execute( kettleParameters, outputStepName, null, control );
+    // put new, or update current, result in cache. Results of stopped executions are incomplete.
+    if ( isComplete( result ) ) {
+      this.putInCache( cacheKey, result );
+    }
     return result;
   }
 
+  /**
+   * @return If the result can be cached or shared: the execution that produced it finished without being stopped.
+   */
+  private static boolean isComplete( KettleResult result ) {
+    return result != null && result.getStopReason() == null;
+  }
+
+  private void putInCache( KettleResultKey key, KettleResult result ) {
+    this.getCache().put( key, result, this.getTimeToLive(), this.cacheTags );
+  }
+
+  /**
+   * @return The tag of every cached result of an element.
+   */
+  public static String elementCacheTag( String elementId ) {
+    return "element:" + elementId;
+  }
+
+  /**
+   * @return The tag of the cached results of the elements that declare the given tag in cpk.cache.tags.
+   */
+  public static String userCacheTag( String tag ) {
+    return "tag:" + tag;
+  }
+
+  /**
+   * Executes the kettle transformation / job, unless an execution with an equal key is already running.
+   * In that case waits for that execution to finish and returns its result. If that execution was stopped its
+   * result is incomplete, and the transformation / job is executed again.
+   * @param key The key that identifies equal executions.
+   * @param kettleParameters Parameters to be passed into the kettle transformation/job.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param storeInCache If true, the result is stored in the cache before concurrent requests are released.
+   * @param control Allows the execution to be cancelled and its progress to be followed. While waiting for an equal
+   *                execution, it bounds the wait by its deadline and ends it when stopped.
+   * @return The result of executing the kettle transformation / job, or null if the request was stopped while
+   * waiting for an equal execution.
+   */
+  private KettleResult executeCoalesced( final KettleResultKey key, final Map<String, String> kettleParameters,
+                                         final String outputStepName, final boolean storeInCache,
+                                         final ExecutionControl control ) {
+    return this.inFlightExecutions.execute( key, new Callable<KettleResult>() {
+      @Override
+      public KettleResult call() {
+        if ( storeInCache ) {
+          // an equal execution may have finished since the cache was checked
+          KettleResult result = KettleElement.this.getCache().get( key );
+          if ( result != null ) {
+            return result;
+          }
+        }
+
+        KettleResult result = KettleElement.this.execute( kettleParameters, outputStepName, null, control );
+        if ( storeInCache && isComplete( result ) ) {
+          KettleElement.this.putInCache( key, result );
+        }
+        return result;
+      }
+    }, control );
+  }
+
+  /**
+   * Executes the kettle transformation / job once admitted by the element and plugin execution gates.
+   * @param kettleParameters Parameters to be passed into the kettle transformation/job.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param rowListener If not null, receives the result rows instead of the result.
+   * @param control Allows the execution to be cancelled and its progress to be followed.
+   * @return The result of executing the kettle transformation / job.
+   * @throws ExecutionRejectedException if the element or the plugin is overloaded.
+   */
+  private KettleResult execute( Map<String, String> kettleParameters, String outputStepName,
+                                RowListener rowListener, ExecutionControl control ) {
+    // acquire the element slot first so that requests queued for a single element don't hold plugin slots
+    ExecutionGate elementGate = this.executionGate;
+    ExecutionGate pluginGate = this.pluginExecutionGate;
+    elementGate.acquire();
+    try {
+      if ( pluginGate != null ) {
+        pluginGate.acquire();
+      }
+      long start = System.currentTimeMillis();
+      try {
+        KettleResult result = this.processRequest( kettleParameters, outputStepName, rowListener, control );
+        if ( result != null ) {
+          result.setStopReason( control.getStopReason() );
+        }
+        return result;
+      } finally {
+        this.recordStop( control, System.currentTimeMillis() - start );
+        if ( pluginGate != null ) {
+          pluginGate.release();
+        }
+      }
+    } finally {
+      elementGate.release();
+    }
+  }
+
+  private void recordStop( ExecutionControl control, long runningMillis ) {
+    ExecutionControl.StopReason reason = control.getStopReason();
+    if ( reason != null ) {
+      long rowsWritten = control.getRowsWritten();
+      this.stopMetrics.record( reason, runningMillis, rowsWritten );
+      logger.info( "Execution of '" + this.getName() + "' stopped (" + reason + ") after " + runningMillis + " ms and "
+        + rowsWritten + " rows" );
+    }
+  }
+
+  /**
+   * Creates the context for a single execution of this element, with its own copy of the meta.
+   * The returned context must be released when the execution finishes.
+   * @param kettleParameters Parameters to be passed into the kettle transformation/job.
+   * @return the new execution context.
+   */
+  protected final KettleExecutionContext<TMeta> createExecutionContext( Map<String, String> kettleParameters ) {
+    return new KettleExecutionContext<TMeta>( this.metaPool ).setParameterValues( kettleParameters );
+  }
+
   private Map<String, String> getInjectedParameters() {
     return KettleElementHelper.getInjectedParameters( this.meta );
   }
@@ -483,7 +1401,36 @@ public abstract class KettleElement<TMeta extends NamedParams>
    * @param outputStepName The step name from where the result will be fetched.
    * @return The result of executing the kettle transformation / job.
    */
-  protected abstract KettleResult processRequest( Map<String, String> kettleParameters, String outputStepName );
+  protected final KettleResult processRequest( Map<String, String> kettleParameters, String outputStepName ) {
+    return this.processRequest( kettleParameters, outputStepName, null, this.createExecutionControl( null ) );
+  }
+
+  /**
+   * Executes the kettle transformation / job.
+   * @param kettleParameters Parameters to be passed into the kettle transformation/job.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param rowListener If not null, receives the result rows. Elements that can do it should pass each row as soon
+   *                    as it is produced, without keeping it in the result.
+   * @param control The running transformation / job must be attached to it while executing.
+   * @return The result of executing the kettle transformation / job.
+   */
+  protected abstract KettleResult processRequest( Map<String, String> kettleParameters, String outputStepName,
+                                                  RowListener rowListener, ExecutionControl control );
+
+  /**
+   * Passes the rows of an already obtained result to the listener.
+   * @param result The result which rows are to be passed.
+   * @param rowListener The listener that receives the result rows.
+   */
+  protected void replayRows( KettleResult result, RowListener rowListener ) {
+    try {
+      for ( RowMetaAndData row : result.getRows() ) {
+        rowListener.rowWrittenEvent( row.getRowMeta(), row.getData() );
+      }
+    } catch ( KettleStepException e ) {
+      logger.error( "Failed passing result rows of '" + this.getName() + "' to listener.", e );
+    }
+  }
 
   /**
    * Loads kettle element meta information from file.
@@ -492,11 +1439,27 @@ public abstract class KettleElement<TMeta extends NamedParams>
    */
   protected abstract TMeta loadMeta( String filePath );
 
+  /**
+   * Creates a copy of the kettle element meta information with an independent parameter and variable space.
+   * @param meta the meta information to copy.
+   * @return the copy.
+   */
+  protected abstract TMeta copyMeta( TMeta meta );
+
   /**
    * Gets the valid output names for the kettle element.
    * @return the valid output names for the kettle element.
    */
   protected abstract Collection<String> getOutputNames();
 
+  /**
+   * Gets the fields that an output writes, as described by the meta information.
+   * @param outputName The output name. If it is not a valid output name, the default output is used.
+   * @return The fields of the output, or null if they are not known.
+   */
+  protected RowMetaInterface getOutputFields( String outputName ) {
+    return null;
+  }
+
 
 }
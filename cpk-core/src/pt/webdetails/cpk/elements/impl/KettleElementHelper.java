@@ -269,6 +269,14 @@ public final class KettleElementHelper {
     return null;
   }
 
+  /**
+   * @return The name of the user of the current session, or null if there is no session.
+   */
+  public static String getCurrentUserName() {
+    IUserSession userSession = getPluginEnvironment().getSessionUtils().getCurrentSession();
+    return userSession != null ? userSession.getUserName() : null;
+  }
+
   private static String getInjectedParameterCurrentValue( String paramName ) {
     // session parameter
     if ( paramName.startsWith( CPK_SESSION_PARAM_PREFIX ) ) {
@@ -321,6 +329,14 @@ public final class KettleElementHelper {
     TResult call( T arg );
   }
 
+  /**
+   * @param parameter The composed parameter (parameter name and transformation names).
+   * @return If the value of the parameter is taken from the session of the user, and so differs between users.
+   */
+  public static boolean isSessionParameter( String parameter ) {
+    return getName( parameter ).startsWith( CPK_SESSION_PARAM_PREFIX );
+  }
+
   /**
    * Checks if the value for the given parameter is injected by CPK.
    * @param paramName The name of the parameter to check for value injection.
@@ -0,0 +1,69 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.elements.impl;
+
+import org.pentaho.di.core.parameters.NamedParams;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The isolated parameter/variable space of a single kettle element execution.
+ * Wraps a meta borrowed from the element's KettleMetaPool and gives it back, clean, when released.
+ * @param <TMeta> The type of meta (TransMeta / JobMeta) of the execution.
+ */
+public final class KettleExecutionContext<TMeta extends NamedParams> {
+
+  private final KettleMetaPool<TMeta> pool;
+  private TMeta meta;
+  private Collection<String> setParameters = Collections.emptyList();
+
+  public KettleExecutionContext( KettleMetaPool<TMeta> pool ) {
+    this.pool = pool;
+    this.meta = pool.borrow();
+  }
+
+  /**
+   * @return The meta that is private to this execution.
+   */
+  public TMeta getMeta() {
+    return this.meta;
+  }
+
+  /**
+   * Sets the values of the request parameters in this execution meta.
+   * @param kettleParameters The parameters to set the value.
+   * @return this execution context.
+   */
+  public KettleExecutionContext<TMeta> setParameterValues( Map<String, String> kettleParameters ) {
+    if ( kettleParameters != null ) {
+      this.setParameters = KettleElementHelper.setKettleParameterValues( this.meta, kettleParameters );
+    }
+    return this;
+  }
+
+  /**
+   * Clears the request parameters and returns the meta to the pool. The context must not be used afterwards.
+   */
+  public void release() {
+    if ( this.meta == null ) {
+      return;
+    }
+    KettleElementHelper.clearParameters( this.meta, this.setParameters );
+    this.pool.release( this.meta );
+    this.meta = null;
+  }
+
+}
@@ -16,11 +16,13 @@ package pt.webdetails.cpk.elements.impl;
 import org.pentaho.di.core.Result;
 import org.pentaho.di.job.Job;
 import org.pentaho.di.job.JobMeta;
+import org.pentaho.di.trans.step.RowListener;
 import pt.webdetails.cpk.datasources.DataSource;
 import pt.webdetails.cpk.datasources.DataSourceMetadata;
 import pt.webdetails.cpk.datasources.KettleElementDefinition;
 import pt.webdetails.cpk.datasources.KettleElementMetadata;
 import pt.webdetails.cpk.elements.IDataSourceProvider;
+import pt.webdetails.cpk.execution.ExecutionControl;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -41,6 +43,13 @@ public class KettleJobElement extends KettleElement<JobMeta> implements IDataSou
     }
   }
 
+  @Override
+  protected JobMeta copyMeta( JobMeta meta ) {
+    JobMeta copy = (JobMeta) meta.clone();
+    copy.copyVariablesFrom( meta );
+    return copy;
+  }
+
   protected DataSourceMetadata getMetadata() {
     return new KettleElementMetadata()
       .setEndpointName( this.getName() );
@@ -67,32 +76,61 @@ public class KettleJobElement extends KettleElement<JobMeta> implements IDataSou
     return Collections.<String>emptyList();
   }
 
+  /**
+   * Executes the job. Jobs only have a result after finishing, so result rows are passed to the row listener then.
+   * @param kettleParameters Parameters to be passed into the kettle job.
+   * @param outputJobEntryName Ignored, the result is always the result of the job.
+   * @param rowListener If not null, receives the result rows after the job finishes.
+   * @param control The running job is attached to it while executing.
+   * @return The result of executing the job.
+   */
   @Override
-  public KettleResult processRequest( Map<String, String> kettleParameters, String outputJobEntryName ) {
+  protected KettleResult processRequest( Map<String, String> kettleParameters, String outputJobEntryName,
+                                         RowListener rowListener, ExecutionControl control ) {
     logger.info( "Starting job '" + this.getName() + "' (" + this.meta.getName() + ")" );
     long start = System.currentTimeMillis();
 
-    // add request parameters
-    Collection<String> setParameters = Collections.emptyList();
-    if ( kettleParameters != null ) {
-      setParameters = KettleElementHelper.setKettleParameterValues( this.meta, kettleParameters );
+    // each execution works on its own meta copy so that concurrent requests don't share parameter values
+    KettleExecutionContext<JobMeta> context = this.createExecutionContext( kettleParameters );
+    KettleResult result;
+    try {
+      // create a new job
+      final Job job = new Job( null, context.getMeta() );
+
+      // allow the job to be stopped while running
+      control.attach( new ExecutionControl.RunningExecution() {
+        @Override
+        public void stop() {
+          job.stopAll();
+        }
+
+        @Override
+        public long getRowsWritten() {
+          // job result rows are only known when it finishes
+          return 0;
+        }
+      } );
+
+      // start job thread and wait until it finishes
+      try {
+        job.start();
+        job.waitUntilFinished();
+      } finally {
+        control.detach();
+      }
+
+      // assemble kettle result
+      Result jobResult = this.getResult( job );
+      result = new KettleResult( jobResult );
+      result.setKettleType( KettleResult.KettleType.JOB );
+      if ( rowListener != null ) {
+        this.replayRows( result, rowListener );
+      }
+    } finally {
+      // clear request parameters and give the meta back
+      context.release();
     }
 
-    // create a new job
-    Job job = new Job( null, this.meta );
-
-    // start job thread and wait until it finishes
-    job.start();
-    job.waitUntilFinished();
-
-    // assemble kettle result
-    Result jobResult = this.getResult( job );
-    KettleResult result = new KettleResult( jobResult );
-    result.setKettleType( KettleResult.KettleType.JOB );
-
-    // clear request parameters
-    KettleElementHelper.clearParameters( this.meta, setParameters );
-
     long end = System.currentTimeMillis();
     this.logger.info( "Finished job '" + this.getName()
       + "' (" + this.meta.getName() + ") in " + ( end - start ) + " ms" );
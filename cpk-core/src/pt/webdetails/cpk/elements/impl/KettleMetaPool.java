@@ -0,0 +1,92 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.elements.impl;
+
+import org.pentaho.di.core.parameters.NamedParams;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of private copies of a kettle element meta (TransMeta / JobMeta).
+ * Each request borrows its own copy so that parameter values set for one execution are never seen by another.
+ * Returned copies are kept idle (up to a maximum) to avoid paying the clone cost on every request.
+ * @param <TMeta> The type of meta being pooled.
+ */
+public abstract class KettleMetaPool<TMeta extends NamedParams> {
+
+  private final TMeta template;
+  private final int maxIdle;
+  private final Queue<TMeta> idle = new ConcurrentLinkedQueue<TMeta>();
+  private final AtomicInteger idleCount = new AtomicInteger( 0 );
+
+  /**
+   * @param template The meta loaded from the ktr/kjb. It is only read, never handed out to executions.
+   * @param maxIdle The maximum number of copies that are kept idle waiting for a request.
+   */
+  public KettleMetaPool( TMeta template, int maxIdle ) {
+    this.template = template;
+    this.maxIdle = maxIdle;
+  }
+
+  public TMeta getTemplate() {
+    return this.template;
+  }
+
+  /**
+   * @return An idle copy of the template meta, or a new one if none is available.
+   */
+  public TMeta borrow() {
+    TMeta meta = this.idle.poll();
+    if ( meta != null ) {
+      this.idleCount.decrementAndGet();
+      return meta;
+    }
+    return this.copy( this.template );
+  }
+
+  /**
+   * Returns a copy to the pool. The caller must have cleared any request parameter values beforehand.
+   * @param meta The copy previously obtained with borrow().
+   */
+  public void release( TMeta meta ) {
+    if ( meta == null || meta == this.template ) {
+      return;
+    }
+    if ( this.idleCount.incrementAndGet() <= this.maxIdle ) {
+      this.idle.offer( meta );
+    } else {
+      // pool is full, let this copy be garbage collected
+      this.idleCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Removes all idle copies from the pool.
+   */
+  public void clear() {
+    while ( this.idle.poll() != null ) {
+      this.idleCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Creates a new copy, with an independent parameter and variable space, of the template meta.
+   * @param template The meta to copy.
+   * @return The new copy.
+   */
+  protected abstract TMeta copy( TMeta template );
+
+}
@@ -0,0 +1,74 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk.elements.impl;
+
+import java.io.Serializable;
+
+/**
+ * Identifies a cached rendered response: the key of the result it was rendered from plus every option of the request
+ * that changes how that result is encoded, including the Json encoding negotiated from the Accept header and the
+ * content coding, so that compressed responses are stored already compressed.
+ */
+public final class KettleResponseKey implements Serializable {
+  private static final long serialVersionUID = 573920184656L;
+
+  private final KettleResultKey resultKey;
+  private final String variant;
+
+  public KettleResultKey getResultKey() {
+    return this.resultKey;
+  }
+
+  /**
+   * @return The output options of the rendered response, in a canonical form.
+   */
+  public String getVariant() {
+    return this.variant;
+  }
+
+  // region Constructors
+
+  public KettleResponseKey( KettleResultKey resultKey, String outputType, String mimeType, boolean attachment,
+                            String attachmentName, int pageStart, int pageSize, String jsonMimeType,
+                            String contentEncoding ) {
+    this.resultKey = resultKey;
+    this.variant = ( outputType != null ? outputType.toLowerCase() : "" )
+      + "|" + ( mimeType != null ? mimeType : "" )
+      + "|" + ( attachment ? ( attachmentName != null ? attachmentName : "" ) : "-" )
+      + "|" + ( pageSize > 0 ? pageStart + "+" + pageSize : "all" )
+      + "|" + ( jsonMimeType != null ? jsonMimeType : "" )
+      + "|" + ( contentEncoding != null ? contentEncoding : "identity" );
+  }
+
+  // endregion
+
+  @Override
+  public boolean equals( final Object other ) {
+    if ( this == other ) {
+      return true;
+    }
+    if ( other == null || getClass() != other.getClass() ) {
+      return false;
+    }
+
+    final KettleResponseKey that = (KettleResponseKey) other;
+    return this.resultKey.equals( that.resultKey ) && this.variant.equals( that.variant );
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * this.resultKey.hashCode() + this.variant.hashCode();
+  }
+}
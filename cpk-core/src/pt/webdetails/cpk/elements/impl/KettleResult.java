@@ -18,11 +18,11 @@ import org.apache.commons.logging.LogFactory;
 import org.pentaho.di.core.Result;
 import org.pentaho.di.core.ResultFile;
 import org.pentaho.di.core.RowMetaAndData;
-import org.pentaho.di.core.exception.KettleException;
-import org.pentaho.di.core.xml.XMLHandler;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
+import pt.webdetails.cpk.cache.ISizedValue;
+import pt.webdetails.cpk.execution.ExecutionControl;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collections;
@@ -31,13 +31,16 @@ import java.util.List;
 /**
  * Wrapper class for org.pentaho.di.core.Result to have a Serializable result for disk caching.
  */
-public final class KettleResult implements Serializable {
+public final class KettleResult implements Serializable, ISizedValue {
 
   // region Constants and Definitions
-  private static final long serialVersionUID = 110982374129L;
+  // changed with the binary serialization format, so that results cached in the previous one are discarded
+  private static final long serialVersionUID = 110982374130L;
 
   protected transient Log logger = LogFactory.getLog( this.getClass() );
   private transient Result result;
+  private transient long estimatedSize;
+  private transient ExecutionControl.StopReason stopReason;
 
   private KettleType kettleType;
 
@@ -64,6 +67,28 @@ public final class KettleResult implements Serializable {
     return this.result.getRows();
   }
 
+  /**
+   * @return The estimated heap footprint of the result, in bytes.
+   */
+  @Override
+  public long getEstimatedSize() {
+    // computed once, results are not changed after being cached
+    if ( this.estimatedSize == 0 ) {
+      this.estimatedSize = KettleResultCodec.estimateSize( this.result );
+    }
+    return this.estimatedSize;
+  }
+
+  /**
+   * @return Why the execution that produced this result was stopped before finishing, or null if it finished.
+   * Results of stopped executions are incomplete, and are neither cached nor shared.
+   */
+  public ExecutionControl.StopReason getStopReason() { return this.stopReason; }
+  public KettleResult setStopReason( ExecutionControl.StopReason stopReason ) {
+    this.stopReason = stopReason;
+    return this;
+  }
+
   /**
    * Gets the type (job or transformation) of the kettle that returned this result.
    * @return
@@ -88,22 +113,15 @@ public final class KettleResult implements Serializable {
   {
     out.defaultWriteObject();
 
-    String resultXmlString = this.result.getXML();
-    out.writeUTF( resultXmlString );
+    // the log text is not needed to answer requests from cache
+    KettleResultCodec.write( this.result, new DataOutputStream( out ), false );
   }
 
   private void readObject( java.io.ObjectInputStream in ) throws IOException, ClassNotFoundException
   {
     in.defaultReadObject();
 
-    String resultXmlString = in.readUTF();
-    try {
-      Document document = XMLHandler.loadXMLString( resultXmlString );
-      Node resultNode = XMLHandler.getSubNode( document, Result.XML_TAG );
-      this.result = new Result( resultNode );
-    } catch ( KettleException e ) {
-      this.logger.error( "Unable to deserialize KettleResult.", e );
-    }
+    this.result = KettleResultCodec.read( new DataInputStream( in ) );
   }
 
   // endregion
@@ -0,0 +1,365 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.elements.impl;
+
+import org.pentaho.di.core.Result;
+import org.pentaho.di.core.ResultFile;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.vfs.KettleVFS;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary form of a kettle Result, used to serialize cached results.
+ *
+ * The rows are written column by column type as given by their RowMetaInterface, using kettle's own binary row
+ * format. A row meta is written once and then referred to by index by every row that has the same layout.
+ * The log text is optional, as it is usually larger than the result itself and is not needed to answer requests.
+ *
+ * Format (version 1):
+ * <pre>
+ *   int     magic
+ *   byte    version
+ *   byte    flags (HAS_LOG_TEXT)
+ *   ...     result counters and flags
+ *   string  log channel id, [log text]
+ *   int     number of result files, followed by each one
+ *   int     number of rows, followed by each one as:
+ *             int   row meta index; a new index is followed by the row meta
+ *             ...   row data
+ * </pre>
+ * Strings are written as their UTF-8 byte length (-1 for null) followed by the bytes, so they are not limited to
+ * 64KB like {@link java.io.DataOutput#writeUTF(String)}.
+ */
+public final class KettleResultCodec {
+
+  public static final int VERSION = 1;
+
+  private static final int MAGIC = 0x43504b52; // CPKR
+  private static final int HAS_LOG_TEXT = 1;
+
+  // rough heap sizes, in bytes, of the objects held by a result
+  private static final int RESULT_OVERHEAD = 512;
+  private static final int RESULT_FILE_OVERHEAD = 256;
+  private static final int VALUE_META_OVERHEAD = 1024;
+  private static final int ROW_OVERHEAD = 48;
+  private static final int REFERENCE = 8;
+  private static final int BOXED_VALUE = 16;
+
+  private KettleResultCodec() {
+  }
+
+  /**
+   * Writes a result.
+   * @param result The result to write.
+   * @param out The stream where to write. It is neither flushed nor closed.
+   * @param includeLogText Whether to write the log text of the result.
+   * @throws IOException if the stream fails or the rows contain values that can not be written.
+   */
+  public static void write( Result result, DataOutputStream out, boolean includeLogText ) throws IOException {
+    out.writeInt( MAGIC );
+    out.writeByte( VERSION );
+    out.writeByte( includeLogText ? HAS_LOG_TEXT : 0 );
+
+    out.writeBoolean( result.getResult() );
+    out.writeInt( result.getExitStatus() );
+    out.writeBoolean( result.isStopped() );
+    out.writeInt( result.getEntryNr() );
+    out.writeLong( result.getNrErrors() );
+    out.writeLong( result.getNrLinesInput() );
+    out.writeLong( result.getNrLinesOutput() );
+    out.writeLong( result.getNrLinesRead() );
+    out.writeLong( result.getNrLinesWritten() );
+    out.writeLong( result.getNrLinesUpdated() );
+    out.writeLong( result.getNrLinesRejected() );
+    out.writeLong( result.getNrLinesDeleted() );
+    out.writeLong( result.getNrFilesRetrieved() );
+    writeString( out, result.getLogChannelId() );
+    if ( includeLogText ) {
+      writeString( out, result.getLogText() );
+    }
+
+    writeResultFiles( out, result.getResultFiles() );
+    writeRows( out, result.getRows() );
+  }
+
+  /**
+   * Reads a result written by {@link #write(Result, DataOutputStream, boolean)}.
+   * @param in The stream to read from. It is not closed.
+   * @return The result.
+   * @throws IOException if the stream fails or does not hold a result of a known version.
+   */
+  public static Result read( DataInputStream in ) throws IOException {
+    if ( in.readInt() != MAGIC ) {
+      throw new InvalidObjectException( "Not a serialized kettle result" );
+    }
+    int version = in.readUnsignedByte();
+    if ( version != VERSION ) {
+      throw new InvalidObjectException( "Unsupported serialized kettle result version " + version );
+    }
+    int flags = in.readUnsignedByte();
+
+    Result result = new Result();
+    result.setResult( in.readBoolean() );
+    result.setExitStatus( in.readInt() );
+    result.setStopped( in.readBoolean() );
+    result.setEntryNr( in.readInt() );
+    result.setNrErrors( in.readLong() );
+    result.setNrLinesInput( in.readLong() );
+    result.setNrLinesOutput( in.readLong() );
+    result.setNrLinesRead( in.readLong() );
+    result.setNrLinesWritten( in.readLong() );
+    result.setNrLinesUpdated( in.readLong() );
+    result.setNrLinesRejected( in.readLong() );
+    result.setNrLinesDeleted( in.readLong() );
+    result.setNrFilesRetrieved( in.readLong() );
+    result.setLogChannelId( readString( in ) );
+    if ( ( flags & HAS_LOG_TEXT ) != 0 ) {
+      result.setLogText( readString( in ) );
+    }
+
+    result.setResultFiles( readResultFiles( in ) );
+    result.setRows( readRows( in ) );
+    return result;
+  }
+
+  /**
+   * Estimates the heap footprint of a result, from the type and length of its values.
+   * Row metas shared by several rows are counted once.
+   * @param result The result.
+   * @return The estimated size in bytes.
+   */
+  public static long estimateSize( Result result ) {
+    long size = RESULT_OVERHEAD + sizeOf( result.getLogText() );
+    if ( result.getResultFiles() != null ) {
+      size += (long) RESULT_FILE_OVERHEAD * result.getResultFiles().size();
+    }
+    List<RowMetaAndData> rows = result.getRows();
+    if ( rows == null ) {
+      return size;
+    }
+
+    Set<RowMetaInterface> rowMetas = Collections.newSetFromMap( new IdentityHashMap<RowMetaInterface, Boolean>() );
+    for ( RowMetaAndData row : rows ) {
+      if ( row.getRowMeta() != null && rowMetas.add( row.getRowMeta() ) ) {
+        size += (long) VALUE_META_OVERHEAD * row.getRowMeta().size();
+      }
+      Object[] data = row.getData();
+      size += ROW_OVERHEAD;
+      if ( data != null ) {
+        size += (long) REFERENCE * data.length;
+        for ( Object value : data ) {
+          size += sizeOf( value );
+        }
+      }
+    }
+    return size;
+  }
+
+  private static long sizeOf( Object value ) {
+    if ( value == null ) {
+      return 0;
+    } else if ( value instanceof String ) {
+      return 40 + 2L * ( (String) value ).length();
+    } else if ( value instanceof byte[] ) {
+      return 16 + ( (byte[]) value ).length;
+    } else if ( value instanceof BigDecimal ) {
+      return 40 + ( (BigDecimal) value ).unscaledValue().bitLength() / 8;
+    } else if ( value instanceof Date ) {
+      return value instanceof Timestamp ? 32 : 24;
+    } else if ( value instanceof InetAddress ) {
+      return 64;
+    }
+    return BOXED_VALUE;
+  }
+
+  // region Result files
+
+  private static void writeResultFiles( DataOutputStream out, Map<String, ResultFile> resultFiles )
+    throws IOException {
+    if ( resultFiles == null ) {
+      out.writeInt( 0 );
+      return;
+    }
+    out.writeInt( resultFiles.size() );
+    for ( Map.Entry<String, ResultFile> entry : resultFiles.entrySet() ) {
+      ResultFile file = entry.getValue();
+      writeString( out, entry.getKey() );
+      out.writeInt( file.getType() );
+      writeString( out, file.getFile().getName().getURI() );
+      writeString( out, file.getOriginParent() );
+      writeString( out, file.getOrigin() );
+      writeString( out, file.getComment() );
+      out.writeLong( file.getTimestamp() != null ? file.getTimestamp().getTime() : -1 );
+    }
+  }
+
+  private static Map<String, ResultFile> readResultFiles( DataInputStream in ) throws IOException {
+    int count = in.readInt();
+    Map<String, ResultFile> resultFiles = new LinkedHashMap<String, ResultFile>( count * 2 );
+    for ( int i = 0; i < count; i++ ) {
+      String key = readString( in );
+      int type = in.readInt();
+      String uri = readString( in );
+      String originParent = readString( in );
+      String origin = readString( in );
+      String comment = readString( in );
+      long timestamp = in.readLong();
+      try {
+        ResultFile file = new ResultFile( type, KettleVFS.getFileObject( uri ), originParent, origin );
+        file.setComment( comment );
+        file.setTimestamp( timestamp >= 0 ? new Date( timestamp ) : null );
+        resultFiles.put( key, file );
+      } catch ( KettleException e ) {
+        throw new IOException( "Unable to read result file " + uri, e );
+      }
+    }
+    return resultFiles;
+  }
+
+  // endregion
+
+  // region Rows
+
+  private static void writeRows( DataOutputStream out, List<RowMetaAndData> rows ) throws IOException {
+    if ( rows == null ) {
+      out.writeInt( 0 );
+      return;
+    }
+    out.writeInt( rows.size() );
+
+    List<RowMetaInterface> rowMetas = new ArrayList<RowMetaInterface>();
+    int last = -1;
+    for ( RowMetaAndData row : rows ) {
+      RowMetaInterface rowMeta = row.getRowMeta();
+      int index = last >= 0 && sameLayout( rowMetas.get( last ), rowMeta ) ? last : indexOf( rowMetas, rowMeta );
+      try {
+        if ( index < 0 ) {
+          index = rowMetas.size();
+          rowMetas.add( rowMeta );
+          out.writeInt( index );
+          rowMeta.writeMeta( out );
+        } else {
+          out.writeInt( index );
+        }
+        rowMetas.get( index ).writeData( out, row.getData() );
+      } catch ( KettleException e ) {
+        throw new IOException( "Unable to write result row", e );
+      }
+      last = index;
+    }
+  }
+
+  private static List<RowMetaAndData> readRows( DataInputStream in ) throws IOException {
+    int count = in.readInt();
+    List<RowMetaAndData> rows = new ArrayList<RowMetaAndData>( count );
+    List<RowMetaInterface> rowMetas = new ArrayList<RowMetaInterface>();
+    for ( int i = 0; i < count; i++ ) {
+      int index = in.readInt();
+      try {
+        if ( index == rowMetas.size() ) {
+          rowMetas.add( new RowMeta( in ) );
+        } else if ( index < 0 || index > rowMetas.size() ) {
+          throw new InvalidObjectException( "Invalid row meta index " + index );
+        }
+        RowMetaInterface rowMeta = rowMetas.get( index );
+        rows.add( new RowMetaAndData( rowMeta, rowMeta.readData( in ) ) );
+      } catch ( KettleException e ) {
+        throw new IOException( "Unable to read result row", e );
+      }
+    }
+    return rows;
+  }
+
+  private static int indexOf( List<RowMetaInterface> rowMetas, RowMetaInterface rowMeta ) {
+    for ( int i = 0; i < rowMetas.size(); i++ ) {
+      if ( sameLayout( rowMetas.get( i ), rowMeta ) ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Rows of a result do not always share the same row meta instance, but they usually share the same layout.
+   */
+  private static boolean sameLayout( RowMetaInterface a, RowMetaInterface b ) {
+    if ( a == b ) {
+      return true;
+    }
+    if ( a.size() != b.size() ) {
+      return false;
+    }
+    for ( int i = 0; i < a.size(); i++ ) {
+      ValueMetaInterface x = a.getValueMeta( i );
+      ValueMetaInterface y = b.getValueMeta( i );
+      if ( x.getType() != y.getType() || x.getStorageType() != y.getStorageType()
+        || x.getLength() != y.getLength() || x.getPrecision() != y.getPrecision()
+        || !equals( x.getName(), y.getName() ) || !equals( x.getConversionMask(), y.getConversionMask() )
+        || x.getStorageMetadata() != y.getStorageMetadata() ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean equals( Object a, Object b ) {
+    return a == null ? b == null : a.equals( b );
+  }
+
+  // endregion
+
+  // region Strings
+
+  private static void writeString( DataOutputStream out, String value ) throws IOException {
+    if ( value == null ) {
+      out.writeInt( -1 );
+      return;
+    }
+    byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+    out.writeInt( bytes.length );
+    out.write( bytes );
+  }
+
+  private static String readString( DataInputStream in ) throws IOException {
+    int length = in.readInt();
+    if ( length < 0 ) {
+      return null;
+    }
+    byte[] bytes = new byte[ length ];
+    in.readFully( bytes );
+    return new String( bytes, StandardCharsets.UTF_8 );
+  }
+
+  // endregion
+}
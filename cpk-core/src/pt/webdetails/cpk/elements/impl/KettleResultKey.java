@@ -14,17 +14,29 @@
 package pt.webdetails.cpk.elements.impl;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+/**
+ * Identifies a cached result. The parameters are kept in a canonical byte form, sorted by name, with the hash code
+ * computed once, so that equal parameters given in any order produce equal keys.
+ */
 public final class KettleResultKey implements Serializable {
-  private static final long serialVersionUID = 928475298475L;
+  private static final long serialVersionUID = 928475298476L;
 
   private final String pluginId;
   private final String elementId;
   private final String outputStepName;
-  private final Map<String, String> parameters;
+  private final byte[] parameters;
+  private final int hashCode;
 
   public String getPluginId() {
     return this.pluginId;
@@ -35,16 +47,38 @@ public final class KettleResultKey implements Serializable {
   public String getOutputStepName() {
     return this.outputStepName;
   }
-  public Map<String, String> getParameters() { return Collections.unmodifiableMap( this.parameters ); }
+  public Map<String, String> getParameters() { return Collections.unmodifiableMap( decode( this.parameters ) ); }
 
 
   // region Constructors
 
   public KettleResultKey( String pluginId, String elementId, String outputStepName, Map<String, String> parameters ) {
+    this( pluginId, elementId, outputStepName,
+      encode( parameters instanceof SortedMap && ( (SortedMap<?, ?>) parameters ).comparator() == null
+        ? parameters : new TreeMap<String, String>( parameters ) ) );
+  }
+
+  /**
+   * @param defaults The parameters that are always part of the key, with their default values, sorted by name in
+   *                 natural order.
+   * @param values The given parameter values, which replace the defaults.
+   */
+  public KettleResultKey( String pluginId, String elementId, String outputStepName,
+                          SortedMap<String, String> defaults, Map<String, String> values ) {
+    this( pluginId, elementId, outputStepName, encode( defaults, values ) );
+  }
+
+  private KettleResultKey( String pluginId, String elementId, String outputStepName, byte[] parameters ) {
     this.pluginId = pluginId;
     this.elementId = elementId;
     this.outputStepName = outputStepName;
-    this.parameters = new HashMap<String, String>( parameters );
+    this.parameters = parameters;
+
+    int result = stringHashCode( this.pluginId );
+    result = 31 * result + stringHashCode( this.elementId );
+    result = 31 * result + stringHashCode( this.outputStepName );
+    result = 31 * result + Arrays.hashCode( this.parameters );
+    this.hashCode = result;
   }
 
   // endregion
@@ -60,10 +94,11 @@ public final class KettleResultKey implements Serializable {
 
     final KettleResultKey that = (KettleResultKey) other;
 
-    return stringEquals( this.pluginId, that.pluginId )
+    return this.hashCode == that.hashCode
+      && stringEquals( this.pluginId, that.pluginId )
       && stringEquals( this.elementId, that.elementId )
       && stringEquals( this.outputStepName, that.outputStepName )
-      && this.parameters.equals( that.parameters );
+      && Arrays.equals( this.parameters, that.parameters );
   }
 
   private static boolean stringEquals( String textL, String testR ) {
@@ -72,15 +107,125 @@ public final class KettleResultKey implements Serializable {
 
   @Override
   public int hashCode() {
-    int result = stringHashCode( this.pluginId );
-    result = 31 * result + stringHashCode( this.elementId );
-    result = 31 * result + stringHashCode( this.outputStepName );
-    result = 31 * result + this.parameters.hashCode();
-    return result;
+    return this.hashCode;
   }
 
   private static int stringHashCode( String text ) {
     return text != null ? text.hashCode() : 0;
   }
 
+  // region Canonical form
+
+  /**
+   * Writes the sorted parameters as consecutive name and value strings, each one as its UTF-8 length
+   * (-1 for null) followed by its bytes.
+   */
+  private static byte[] encode( Map<String, String> sortedParameters ) {
+    CanonicalWriter writer = new CanonicalWriter();
+    for ( Map.Entry<String, String> parameter : sortedParameters.entrySet() ) {
+      writer.write( parameter.getKey() );
+      writer.write( parameter.getValue() );
+    }
+    return writer.toByteArray();
+  }
+
+  /**
+   * Writes the defaults with the given values in their place, merged in name order with the given values that have
+   * no default, as encode would for the merged map.
+   */
+  private static byte[] encode( SortedMap<String, String> defaults, Map<String, String> values ) {
+    // given values without a default, usually none or a few injected ones
+    List<String> extraNames = Collections.emptyList();
+    for ( String name : values.keySet() ) {
+      if ( !defaults.containsKey( name ) ) {
+        if ( extraNames.isEmpty() ) {
+          extraNames = new ArrayList<String>();
+        }
+        extraNames.add( name );
+      }
+    }
+    Collections.sort( extraNames );
+
+    CanonicalWriter writer = new CanonicalWriter();
+    Iterator<Map.Entry<String, String>> defaultsIterator = defaults.entrySet().iterator();
+    Map.Entry<String, String> nextDefault = defaultsIterator.hasNext() ? defaultsIterator.next() : null;
+    int extraIndex = 0;
+    while ( nextDefault != null || extraIndex < extraNames.size() ) {
+      String extraName = extraIndex < extraNames.size() ? extraNames.get( extraIndex ) : null;
+      if ( nextDefault != null && ( extraName == null || nextDefault.getKey().compareTo( extraName ) < 0 ) ) {
+        String name = nextDefault.getKey();
+        writer.write( name );
+        writer.write( values.containsKey( name ) ? values.get( name ) : nextDefault.getValue() );
+        nextDefault = defaultsIterator.hasNext() ? defaultsIterator.next() : null;
+      } else {
+        writer.write( extraName );
+        writer.write( values.get( extraName ) );
+        extraIndex++;
+      }
+    }
+    return writer.toByteArray();
+  }
+
+  /**
+   * Appends strings to the canonical form.
+   */
+  private static final class CanonicalWriter {
+    private byte[] bytes = new byte[ 128 ];
+    private int length = 0;
+
+    void write( String text ) {
+      byte[] string = toBytes( text );
+      int stringLength = string != null ? string.length : -1;
+      this.ensureCapacity( 4 + Math.max( stringLength, 0 ) );
+      this.bytes[ this.length++ ] = (byte) ( stringLength >>> 24 );
+      this.bytes[ this.length++ ] = (byte) ( stringLength >>> 16 );
+      this.bytes[ this.length++ ] = (byte) ( stringLength >>> 8 );
+      this.bytes[ this.length++ ] = (byte) stringLength;
+      if ( string != null ) {
+        System.arraycopy( string, 0, this.bytes, this.length, string.length );
+        this.length += string.length;
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf( this.bytes, this.length );
+    }
+
+    private void ensureCapacity( int extra ) {
+      if ( this.length + extra > this.bytes.length ) {
+        this.bytes = Arrays.copyOf( this.bytes, Math.max( this.bytes.length * 2, this.length + extra ) );
+      }
+    }
+  }
+
+  private static Map<String, String> decode( byte[] bytes ) {
+    Map<String, String> parameters = new LinkedHashMap<String, String>();
+    int offset = 0;
+    String name = null;
+    boolean isName = true;
+    while ( offset < bytes.length ) {
+      int length = ( bytes[ offset ] & 0xff ) << 24 | ( bytes[ offset + 1 ] & 0xff ) << 16
+        | ( bytes[ offset + 2 ] & 0xff ) << 8 | ( bytes[ offset + 3 ] & 0xff );
+      offset += 4;
+      String string = null;
+      if ( length >= 0 ) {
+        string = new String( bytes, offset, length, StandardCharsets.UTF_8 );
+        offset += length;
+      }
+      if ( isName ) {
+        name = string;
+      } else {
+        parameters.put( name, string );
+      }
+      isName = !isName;
+    }
+    return parameters;
+  }
+
+  private static byte[] toBytes( String text ) {
+    return text != null ? text.getBytes( StandardCharsets.UTF_8 ) : null;
+  }
+
+  // endregion
+
 }
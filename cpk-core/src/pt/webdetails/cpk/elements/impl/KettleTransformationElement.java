@@ -22,6 +22,7 @@ import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.RowListener;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import pt.webdetails.cpk.datasources.DataSource;
@@ -29,18 +30,54 @@ import pt.webdetails.cpk.datasources.DataSourceMetadata;
 import pt.webdetails.cpk.datasources.KettleElementDefinition;
 import pt.webdetails.cpk.datasources.KettleElementMetadata;
 import pt.webdetails.cpk.elements.IDataSourceProvider;
+import pt.webdetails.cpk.execution.ExecutionControl;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class KettleTransformationElement extends KettleElement<TransMeta> implements IDataSourceProvider {
 
+  private PreparedTransformationPool preparedPool;
+  private final ConcurrentMap<String, RowMetaInterface> outputFields =
+    new ConcurrentHashMap<String, RowMetaInterface>();
+
   public KettleTransformationElement() {
   }
 
+  @Override
+  protected boolean load() {
+    if ( !super.load() ) {
+      return false;
+    }
+
+    // opt-in warm pool of prepared transformations
+    int poolSize = this.getIntParameter( KettleParameter.POOL_SIZE );
+    if ( poolSize > 0 ) {
+      logger.info( "Keeping up to " + poolSize + " prepared transformations for '" + this.getName() + "'" );
+      this.preparedPool = new PreparedTransformationPool( this.getPluginId() + ":" + this.getId(), poolSize,
+        this.getIntParameter( KettleParameter.POOL_TIME_TO_LIVE_SECONDS ), new PreparedTransformationPool.Preparer() {
+          @Override
+          public PreparedTransformation prepare( Map<String, String> parameters ) throws KettleException {
+            return KettleTransformationElement.this.prepareTransformation( parameters );
+          }
+        } );
+    }
+    return true;
+  }
+
+  @Override
+  public void dispose() {
+    if ( this.preparedPool != null ) {
+      this.preparedPool.close();
+    }
+    super.dispose();
+  }
+
   @Override
   protected TransMeta loadMeta( String filePath ) {
     // load transformation meta info
@@ -51,11 +88,19 @@ public class KettleTransformationElement extends KettleElement<TransMeta> implem
     }
   }
 
+  @Override
+  protected TransMeta copyMeta( TransMeta meta ) {
+    TransMeta copy = (TransMeta) meta.clone();
+    copy.copyVariablesFrom( meta );
+    return copy;
+  }
+
   protected DataSourceMetadata getMetadata() {
-    Iterable<StepMeta> steps = this.meta.getSteps();
     Collection<String> stepNames = new ArrayList<String>();
-    for ( StepMeta step : steps ) {
-      stepNames.add( step.getName() );
+    if ( this.meta != null ) {
+      for ( StepMeta step : this.meta.getSteps() ) {
+        stepNames.add( step.getName() );
+      }
     }
 
     return new KettleElementMetadata()
@@ -64,6 +109,7 @@ public class KettleTransformationElement extends KettleElement<TransMeta> implem
   }
 
   public DataSource getDataSource() {
+    this.materialize();
     DataSource dataSource = new DataSource();
     dataSource.setDefinition( new KettleElementDefinition() )
               .setMetadata( this.getMetadata() );
@@ -71,32 +117,41 @@ public class KettleTransformationElement extends KettleElement<TransMeta> implem
     return dataSource;
   }
 
+  /**
+   * Executes the transformation.
+   * @param kettleParameters Parameters to be passed into the kettle transformation.
+   * @param outputStepName The step name from where the result will be fetched.
+   * @param rowListener If not null, receives each row written by the output step as soon as it is written.
+   *                    Rows passed to the listener are not kept in the result.
+   * @param control The running transformation is attached to it while executing.
+   * @return The result of executing the transformation.
+   */
   @Override
-  protected KettleResult processRequest( Map<String, String> kettleParameters, String outputStepName ) {
+  protected KettleResult processRequest( Map<String, String> kettleParameters, String outputStepName,
+                                         RowListener rowListener, ExecutionControl control ) {
     logger.info( "Starting transformation '" + this.getName() + "' (" + this.meta.getName() + ")" );
     long start = System.currentTimeMillis();
 
     KettleResult result = null;
     final List<RowMetaAndData> rows = new ArrayList<RowMetaAndData>(  );
 
+    PreparedTransformation prepared = null;
     try {
-      // clean?
-      this.meta.setResultRows( new ArrayList<RowMetaAndData>() );
-      this.meta.setResultFiles( new ArrayList<ResultFile>() );
-
-      // add parameters
-      Collection<String> setParameters = Collections.emptyList();
-      if ( kettleParameters != null ) {
-        setParameters = KettleElementHelper.setKettleParameterValues( this.meta, kettleParameters );
+      // use a warm transformation if one is ready for these parameters
+      if ( this.preparedPool != null ) {
+        prepared = this.preparedPool.take( kettleParameters );
       }
-
-      // create a new transformation
-      Trans transformation = new Trans( this.meta );
-      transformation.prepareExecution( null ); // get the step threads after this line
+      if ( prepared == null ) {
+        prepared = this.prepareTransformation( kettleParameters );
+      }
+      final Trans transformation = prepared.getTransformation();
 
       // get step to listen to written rows
-      StepInterface step = this.getRunThread(transformation, outputStepName );
-      if ( step != null ) {
+      final StepInterface step = this.getRunThread(transformation, outputStepName );
+      if ( step != null && rowListener != null ) {
+        // Stream the written rows
+        step.addRowListener( rowListener );
+      } else if ( step != null ) {
         // Store the written rows for later processing
         step.addRowListener( new RowAdapter() {
           @Override
@@ -109,9 +164,26 @@ public class KettleTransformationElement extends KettleElement<TransMeta> implem
           + "' nor default output step '" + this.getDefaultOutputName() + "'." );
       }
 
+      // allow the transformation to be stopped and followed while running
+      control.attach( new ExecutionControl.RunningExecution() {
+        @Override
+        public void stop() {
+          transformation.stopAll();
+        }
+
+        @Override
+        public long getRowsWritten() {
+          return step != null ? step.getLinesWritten() : 0;
+        }
+      } );
+
       // start transformation threads and wait until they finish
-      transformation.startThreads(); // all the operations to get step names need to be placed above this line
-      transformation.waitUntilFinished();
+      try {
+        transformation.startThreads(); // all the operations to get step names need to be placed above this line
+        transformation.waitUntilFinished();
+      } finally {
+        control.detach();
+      }
 
       // assemble kettle result
       Result transformationResult = transformation.getResult();
@@ -119,11 +191,13 @@ public class KettleTransformationElement extends KettleElement<TransMeta> implem
       result = new KettleResult( transformationResult );
       result.setKettleType( KettleResult.KettleType.TRANSFORMATION );
 
-      // clear request parameters
-      KettleElementHelper.clearParameters( meta, setParameters );
-
     } catch ( KettleException e ) {
       logger.debug( "KETTLE EXCEPTION: " + e, e );
+    } finally {
+      // clear request parameters and give the meta back
+      if ( prepared != null ) {
+        prepared.release();
+      }
     }
 
     long end = System.currentTimeMillis();
@@ -133,6 +207,38 @@ public class KettleTransformationElement extends KettleElement<TransMeta> implem
     return result;
   }
 
+  /**
+   * Creates a transformation for the given parameter values and prepares it for execution:
+   * steps are instantiated and initialized, but not started.
+   * @param kettleParameters Parameters to be passed into the kettle transformation.
+   * @return The prepared transformation.
+   * @throws KettleException if the transformation could not be prepared.
+   */
+  protected PreparedTransformation prepareTransformation( Map<String, String> kettleParameters )
+    throws KettleException {
+    // each execution works on its own meta copy so that concurrent requests don't share parameter values
+    KettleExecutionContext<TransMeta> context = this.createExecutionContext( kettleParameters );
+    try {
+      TransMeta transMeta = context.getMeta();
+
+      // clean?
+      transMeta.setResultRows( new ArrayList<RowMetaAndData>() );
+      transMeta.setResultFiles( new ArrayList<ResultFile>() );
+
+      // create a new transformation
+      Trans transformation = new Trans( transMeta );
+      transformation.prepareExecution( null ); // get the step threads after this line
+
+      return new PreparedTransformation( context, transformation, kettleParameters );
+    } catch ( KettleException e ) {
+      context.release();
+      throw e;
+    } catch ( RuntimeException e ) {
+      context.release();
+      throw e;
+    }
+  }
+
   /**
    *
    * @param transformation
@@ -153,6 +259,34 @@ public class KettleTransformationElement extends KettleElement<TransMeta> implem
     return step;
   }
 
+  /**
+   * Gets the fields of an output step, computed from the transformation meta once per step.
+   */
+  @Override
+  protected RowMetaInterface getOutputFields( String outputName ) {
+    String stepName = this.getOutputNames().contains( outputName ) ? outputName : this.getDefaultOutputName();
+    if ( stepName == null || this.meta == null ) {
+      return null;
+    }
+    RowMetaInterface fields = this.outputFields.get( stepName );
+    if ( fields == null ) {
+      try {
+        // the meta keeps caches that are not safe for concurrent use
+        synchronized ( this.meta ) {
+          fields = this.meta.getStepFields( stepName );
+        }
+      } catch ( KettleStepException e ) {
+        logger.warn( "Failed getting the fields of step '" + stepName + "' of '" + this.getName() + "'", e );
+        return null;
+      }
+      if ( fields == null ) {
+        return null;
+      }
+      this.outputFields.put( stepName, fields );
+    }
+    return fields;
+  }
+
   /**
    * Gets the names of the transformation steps which can be used for output.
    * @return
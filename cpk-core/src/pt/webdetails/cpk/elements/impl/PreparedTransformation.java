@@ -0,0 +1,71 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.elements.impl;
+
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMetaDataCombi;
+
+import java.util.Map;
+
+/**
+ * A transformation that was prepared for execution (steps instantiated and initialized) but not yet started.
+ * It owns the execution context of its meta until it is released.
+ */
+public final class PreparedTransformation {
+
+  private final KettleExecutionContext<TransMeta> context;
+  private final Trans transformation;
+  private final Map<String, String> parameters;
+  private final long creationTime = System.currentTimeMillis();
+
+  public PreparedTransformation( KettleExecutionContext<TransMeta> context, Trans transformation,
+                                 Map<String, String> parameters ) {
+    this.context = context;
+    this.transformation = transformation;
+    this.parameters = parameters;
+  }
+
+  public Trans getTransformation() { return this.transformation; }
+
+  /**
+   * @return The parameter values the transformation was prepared with.
+   */
+  public Map<String, String> getParameters() { return this.parameters; }
+
+  /**
+   * @return When the transformation was prepared, in milliseconds since the epoch.
+   */
+  public long getCreationTime() { return this.creationTime; }
+
+  /**
+   * Releases the execution context. Must be called after the transformation finishes.
+   */
+  public void release() {
+    this.context.release();
+  }
+
+  /**
+   * Disposes the initialized steps of a transformation that will never be started, and releases its context.
+   */
+  public void discard() {
+    try {
+      for ( StepMetaDataCombi combi : this.transformation.getSteps() ) {
+        combi.step.dispose( combi.meta, combi.data );
+      }
+    } finally {
+      this.release();
+    }
+  }
+}
@@ -0,0 +1,252 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.elements.impl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.di.core.exception.KettleException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps transformations that are prepared but not started, ready to be handed to requests.
+ * A prepared transformation can only serve requests with the same parameter values it was prepared with, since
+ * steps take their variables when initialized. Each time one is handed out a replacement for the same parameter
+ * values is prepared in the background. Parameter values that miss are only prepared once they are hot, i.e. missed
+ * again within the time to live, so that one-off values don't fill the pool. At most size prepared transformations
+ * are kept; the oldest one is discarded to make room for a new one. Prepared transformations that stay idle longer
+ * than the time to live are discarded, as the database connections they hold go stale.
+ */
+public final class PreparedTransformationPool {
+
+  private static final Log logger = LogFactory.getLog( PreparedTransformationPool.class );
+
+  /**
+   * Prepares a transformation for the given parameter values.
+   */
+  public interface Preparer {
+    PreparedTransformation prepare( Map<String, String> parameters ) throws KettleException;
+  }
+
+  // background preparation is shared by the pools of all elements
+  private static final ExecutorService preparationExecutor = createPreparationExecutor();
+
+  private static ExecutorService createPreparationExecutor() {
+    int threads = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+    ThreadPoolExecutor executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger( 0 );
+
+        @Override
+        public Thread newThread( Runnable runnable ) {
+          Thread thread = new Thread( runnable, "cpk-transformation-preparer-" + this.count.incrementAndGet() );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    executor.allowCoreThreadTimeOut( true );
+    return executor;
+  }
+
+  // discarding of idle transformations is also shared by the pools of all elements
+  private static final ScheduledExecutorService expirationScheduler =
+    Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+      @Override
+      public Thread newThread( Runnable runnable ) {
+        Thread thread = new Thread( runnable, "cpk-transformation-pool-expiration" );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+
+  private final String name;
+  private final int size;
+  private final Preparer preparer;
+  private final long timeToLiveMillis;
+  private final LinkedList<PreparedTransformation> idle = new LinkedList<PreparedTransformation>();
+  // when parameter values last missed, in order to tell hot ones
+  private final Map<Map<String, String>, Long> misses;
+  private final AtomicInteger pending = new AtomicInteger( 0 );
+  private final ScheduledFuture<?> expiration;
+  private volatile boolean closed = false;
+
+  /**
+   * @param name The name used to identify this pool in logs.
+   * @param size The maximum number of prepared transformations to keep.
+   * @param timeToLiveSeconds How long a prepared transformation may stay idle. No limit if <= 0.
+   * @param preparer Prepares the transformations.
+   */
+  public PreparedTransformationPool( String name, int size, int timeToLiveSeconds, Preparer preparer ) {
+    this.name = name;
+    this.size = size;
+    this.preparer = preparer;
+    this.timeToLiveMillis = timeToLiveSeconds > 0 ? TimeUnit.SECONDS.toMillis( timeToLiveSeconds ) : Long.MAX_VALUE;
+    this.misses = new LinkedHashMap<Map<String, String>, Long>() {
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<Map<String, String>, Long> eldest ) {
+        return this.size() > PreparedTransformationPool.this.size;
+      }
+    };
+    this.expiration = timeToLiveSeconds > 0
+      ? expirationScheduler.scheduleWithFixedDelay( new Runnable() {
+        @Override
+        public void run() {
+          PreparedTransformationPool.this.discardExpired();
+        }
+      }, timeToLiveSeconds, timeToLiveSeconds, TimeUnit.SECONDS )
+      : null;
+  }
+
+  /**
+   * Takes a prepared transformation for the given parameter values. If there is one, or the parameter values are
+   * hot, schedules the preparation of a (further) transformation for them.
+   * @param parameters The parameter values of the request.
+   * @return A prepared transformation, or null if none is ready for these parameter values.
+   */
+  public PreparedTransformation take( Map<String, String> parameters ) {
+    PreparedTransformation prepared = null;
+    List<PreparedTransformation> expired = new ArrayList<PreparedTransformation>();
+    boolean isHot;
+    long now = System.currentTimeMillis();
+    synchronized ( this.idle ) {
+      Iterator<PreparedTransformation> iterator = this.idle.iterator();
+      while ( iterator.hasNext() ) {
+        PreparedTransformation candidate = iterator.next();
+        if ( this.isExpired( candidate, now ) ) {
+          iterator.remove();
+          expired.add( candidate );
+        } else if ( candidate.getParameters().equals( parameters ) ) {
+          iterator.remove();
+          prepared = candidate;
+          break;
+        }
+      }
+
+      if ( prepared != null ) {
+        isHot = true;
+      } else {
+        Long lastMiss = this.misses.put( parameters, now );
+        isHot = lastMiss != null && now - lastMiss < this.timeToLiveMillis;
+      }
+    }
+    discard( expired );
+
+    if ( isHot ) {
+      this.replenish( parameters );
+    }
+    return prepared;
+  }
+
+  /**
+   * Discards all prepared transformations. The pool keeps no transformations afterwards.
+   */
+  public void close() {
+    this.closed = true;
+    if ( this.expiration != null ) {
+      this.expiration.cancel( false );
+    }
+    synchronized ( this.idle ) {
+      for ( PreparedTransformation prepared : this.idle ) {
+        prepared.discard();
+      }
+      this.idle.clear();
+      this.misses.clear();
+    }
+  }
+
+  private void discardExpired() {
+    List<PreparedTransformation> expired = new ArrayList<PreparedTransformation>();
+    long now = System.currentTimeMillis();
+    synchronized ( this.idle ) {
+      Iterator<PreparedTransformation> iterator = this.idle.iterator();
+      while ( iterator.hasNext() ) {
+        PreparedTransformation candidate = iterator.next();
+        if ( this.isExpired( candidate, now ) ) {
+          iterator.remove();
+          expired.add( candidate );
+        }
+      }
+    }
+    if ( !expired.isEmpty() ) {
+      logger.debug( "Discarding " + expired.size() + " idle prepared transformations of pool '" + this.name + "'" );
+    }
+    discard( expired );
+  }
+
+  private boolean isExpired( PreparedTransformation prepared, long now ) {
+    return now - prepared.getCreationTime() >= this.timeToLiveMillis;
+  }
+
+  private static void discard( List<PreparedTransformation> expired ) {
+    for ( PreparedTransformation prepared : expired ) {
+      try {
+        prepared.discard();
+      } catch ( Exception e ) {
+        logger.warn( "Failed discarding prepared transformation", e );
+      }
+    }
+  }
+
+  private void replenish( final Map<String, String> parameters ) {
+    // don't queue more preparations than the pool can hold
+    if ( this.closed || this.pending.incrementAndGet() > this.size ) {
+      this.pending.decrementAndGet();
+      return;
+    }
+
+    preparationExecutor.execute( new Runnable() {
+      @Override
+      public void run() {
+        try {
+          PreparedTransformationPool.this.add( PreparedTransformationPool.this.preparer.prepare( parameters ) );
+        } catch ( Exception e ) {
+          logger.warn( "Failed preparing transformation for pool '" + PreparedTransformationPool.this.name + "'", e );
+        } finally {
+          PreparedTransformationPool.this.pending.decrementAndGet();
+        }
+      }
+    } );
+  }
+
+  private void add( PreparedTransformation prepared ) {
+    PreparedTransformation evicted = null;
+    synchronized ( this.idle ) {
+      if ( !this.closed ) {
+        this.idle.addLast( prepared );
+        if ( this.idle.size() > this.size ) {
+          evicted = this.idle.removeFirst();
+        }
+      } else {
+        evicted = prepared;
+      }
+    }
+    if ( evicted != null ) {
+      evicted.discard();
+    }
+  }
+}
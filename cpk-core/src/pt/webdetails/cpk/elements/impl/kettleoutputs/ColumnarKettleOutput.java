@@ -0,0 +1,350 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import pt.webdetails.cpk.elements.impl.KettleResult;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Binary columnar output of the resultset, written while rows are produced. Rows are grouped in record batches of a
+ * fixed number of rows (the last one may be smaller), where every column is written as a validity bitmap followed by
+ * an array of values of its type, so that clients can load numeric columns without parsing text.
+ * The format is described in the README, under "Columnar output". All numbers are big-endian.
+ */
+public class ColumnarKettleOutput extends StreamingKettleOutput {
+
+  public static final String MIME_TYPE = "application/x-cpk-columnar";
+
+  /**
+   * The first bytes of the output: "CPKC".
+   */
+  public static final int MAGIC = 0x43504B43;
+  public static final int VERSION = 1;
+
+  // column types
+  public static final byte TYPE_LONG = 1;
+  public static final byte TYPE_DOUBLE = 2;
+  public static final byte TYPE_BOOLEAN = 3;
+  public static final byte TYPE_TIMESTAMP = 4;
+  public static final byte TYPE_STRING = 5;
+  public static final byte TYPE_DECIMAL = 6;
+  public static final byte TYPE_BINARY = 7;
+
+  public static final int DEFAULT_BATCH_ROWS = 4096;
+
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+  private final int batchRows;
+
+  private DataOutputStream data;
+  private Column[] columns;
+  private int batchSize = 0;
+  private int rowIndex = 0;
+
+  /**
+   * @param batchRows The number of rows of each record batch. If <= 0 the default is used.
+   */
+  public ColumnarKettleOutput( int batchRows ) {
+    this.batchRows = batchRows > 0 ? batchRows : DEFAULT_BATCH_ROWS;
+  }
+
+  @Override
+  public ColumnarKettleOutput setConfiguration( Configuration configuration ) {
+    configuration.setMimeType( MIME_TYPE );
+    super.setConfiguration( configuration );
+
+    return this;
+  }
+
+  @Override
+  protected void startStream() throws IOException {
+    logger.debug( "Process Columnar (streaming)" );
+
+    this.setResponseHeaders( this.getConfiguration().getMimeType() );
+    this.data = new DataOutputStream( new BufferedOutputStream( this.getOut() ) );
+  }
+
+  @Override
+  protected void writeRowData( RowMetaInterface rowMeta, Object[] data ) throws IOException {
+    if ( this.columns == null ) {
+      this.writeSchema( rowMeta );
+    }
+
+    // rows outside the page are only counted
+    Configuration configuration = this.getConfiguration();
+    boolean inPage = !configuration.isPaginated() || ( this.rowIndex >= configuration.getPageStart()
+      && this.rowIndex < configuration.getPageStart() + configuration.getPageSize() );
+    this.rowIndex++;
+    if ( !inPage ) {
+      return;
+    }
+
+    // the schema is given by the first row, the data array may have trailing null elements
+    for ( int i = 0; i < this.columns.length; i++ ) {
+      this.columns[ i ].set( this.batchSize, i < data.length ? data[ i ] : null );
+    }
+    this.batchSize++;
+    if ( this.batchSize == this.batchRows ) {
+      this.writeBatch();
+    }
+  }
+
+  @Override
+  public synchronized boolean isComplete() {
+    // with countRows=false one row past the page is enough to know there are more pages
+    Configuration configuration = this.getConfiguration();
+    return configuration.isPaginated() && !configuration.getCountRows()
+      && this.rowIndex > configuration.getPageStart() + configuration.getPageSize();
+  }
+
+  @Override
+  protected void finishStream( KettleResult result ) throws IOException {
+    if ( this.columns == null ) {
+      this.writeSchema( null );
+    }
+    if ( this.batchSize > 0 ) {
+      this.writeBatch();
+    }
+    this.data.writeInt( 0 );
+    this.data.writeLong( this.rowIndex );
+  }
+
+  @Override
+  protected void abortStream() throws IOException {
+    // the rows of the last batch are still sent, but not the end of the result
+    if ( this.batchSize > 0 ) {
+      this.writeBatch();
+    }
+  }
+
+  @Override
+  protected void flush() throws IOException {
+    this.data.flush();
+    super.flush();
+  }
+
+  private void writeSchema( RowMetaInterface rowMeta ) throws IOException {
+    int nrColumns = rowMeta != null ? rowMeta.size() : 0;
+    this.data.writeInt( MAGIC );
+    this.data.writeByte( VERSION );
+    this.data.writeInt( nrColumns );
+
+    this.columns = new Column[ nrColumns ];
+    for ( int i = 0; i < nrColumns; i++ ) {
+      ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+      Column column = this.createColumn( valueMeta.getType() );
+      this.data.writeByte( column.type );
+      writeBytes( this.data, valueMeta.getName().getBytes( UTF_8 ) );
+      this.columns[ i ] = column;
+    }
+  }
+
+  private void writeBatch() throws IOException {
+    this.data.writeInt( this.batchSize );
+    for ( Column column : this.columns ) {
+      column.write( this.data, this.batchSize );
+      column.clear();
+    }
+    this.batchSize = 0;
+  }
+
+  private Column createColumn( int kettleType ) {
+    switch ( kettleType ) {
+      case ValueMetaInterface.TYPE_INTEGER:
+        return new LongColumn( TYPE_LONG, this.batchRows );
+      case ValueMetaInterface.TYPE_NUMBER:
+        return new DoubleColumn( this.batchRows );
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return new BooleanColumn( this.batchRows );
+      case ValueMetaInterface.TYPE_DATE:
+      case ValueMetaInterface.TYPE_TIMESTAMP:
+        return new LongColumn( TYPE_TIMESTAMP, this.batchRows );
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return new BytesColumn( TYPE_DECIMAL, this.batchRows );
+      case ValueMetaInterface.TYPE_BINARY:
+        return new BytesColumn( TYPE_BINARY, this.batchRows );
+      default:
+        return new BytesColumn( TYPE_STRING, this.batchRows );
+    }
+  }
+
+  private static void writeBytes( DataOutputStream out, byte[] bytes ) throws IOException {
+    out.writeInt( bytes.length );
+    out.write( bytes );
+  }
+
+  /**
+   * The values of a column in the current record batch.
+   */
+  private abstract static class Column {
+    final byte type;
+    private final byte[] validity;
+
+    Column( byte type, int capacity ) {
+      this.type = type;
+      this.validity = new byte[ bitmapSize( capacity ) ];
+    }
+
+    void set( int row, Object value ) {
+      if ( value != null ) {
+        this.validity[ row >> 3 ] |= 1 << ( row & 7 );
+      }
+      this.setValue( row, value );
+    }
+
+    /**
+     * Sets the value of a row. Null values are set to zero, or empty.
+     */
+    abstract void setValue( int row, Object value );
+
+    void write( DataOutputStream out, int rows ) throws IOException {
+      out.write( this.validity, 0, bitmapSize( rows ) );
+      this.writeValues( out, rows );
+    }
+
+    abstract void writeValues( DataOutputStream out, int rows ) throws IOException;
+
+    void clear() {
+      Arrays.fill( this.validity, (byte) 0 );
+    }
+
+    static int bitmapSize( int rows ) {
+      return ( rows + 7 ) >> 3;
+    }
+  }
+
+  private static class LongColumn extends Column {
+    private final long[] values;
+
+    LongColumn( byte type, int capacity ) {
+      super( type, capacity );
+      this.values = new long[ capacity ];
+    }
+
+    @Override
+    void setValue( int row, Object value ) {
+      this.values[ row ] = value instanceof Date ? ( (Date) value ).getTime()
+        : value != null ? ( (Number) value ).longValue() : 0L;
+    }
+
+    @Override
+    void writeValues( DataOutputStream out, int rows ) throws IOException {
+      for ( int i = 0; i < rows; i++ ) {
+        out.writeLong( this.values[ i ] );
+      }
+    }
+  }
+
+  private static class DoubleColumn extends Column {
+    private final double[] values;
+
+    DoubleColumn( int capacity ) {
+      super( TYPE_DOUBLE, capacity );
+      this.values = new double[ capacity ];
+    }
+
+    @Override
+    void setValue( int row, Object value ) {
+      this.values[ row ] = value != null ? ( (Number) value ).doubleValue() : 0.0;
+    }
+
+    @Override
+    void writeValues( DataOutputStream out, int rows ) throws IOException {
+      for ( int i = 0; i < rows; i++ ) {
+        out.writeDouble( this.values[ i ] );
+      }
+    }
+  }
+
+  private static class BooleanColumn extends Column {
+    private final byte[] values;
+
+    BooleanColumn( int capacity ) {
+      super( TYPE_BOOLEAN, capacity );
+      this.values = new byte[ bitmapSize( capacity ) ];
+    }
+
+    @Override
+    void setValue( int row, Object value ) {
+      if ( Boolean.TRUE.equals( value ) ) {
+        this.values[ row >> 3 ] |= 1 << ( row & 7 );
+      }
+    }
+
+    @Override
+    void writeValues( DataOutputStream out, int rows ) throws IOException {
+      out.write( this.values, 0, bitmapSize( rows ) );
+    }
+
+    @Override
+    void clear() {
+      super.clear();
+      Arrays.fill( this.values, (byte) 0 );
+    }
+  }
+
+  /**
+   * Variable length values, written as the offsets of each value followed by the concatenated bytes of all values.
+   */
+  private static class BytesColumn extends Column {
+    private final int[] offsets;
+    private byte[] bytes = new byte[ 1024 ];
+
+    BytesColumn( byte type, int capacity ) {
+      super( type, capacity );
+      this.offsets = new int[ capacity + 1 ];
+    }
+
+    @Override
+    void setValue( int row, Object value ) {
+      byte[] valueBytes = this.toBytes( value );
+      int start = this.offsets[ row ];
+      int end = start + valueBytes.length;
+      if ( end > this.bytes.length ) {
+        this.bytes = Arrays.copyOf( this.bytes, Math.max( end, this.bytes.length * 2 ) );
+      }
+      System.arraycopy( valueBytes, 0, this.bytes, start, valueBytes.length );
+      this.offsets[ row + 1 ] = end;
+    }
+
+    private byte[] toBytes( Object value ) {
+      if ( value == null ) {
+        return new byte[ 0 ];
+      }
+      if ( value instanceof byte[] ) {
+        return (byte[]) value;
+      }
+      String text = value instanceof BigDecimal ? ( (BigDecimal) value ).toPlainString() : value.toString();
+      return text.getBytes( UTF_8 );
+    }
+
+    @Override
+    void writeValues( DataOutputStream out, int rows ) throws IOException {
+      for ( int i = 0; i <= rows; i++ ) {
+        out.writeInt( this.offsets[ i ] );
+      }
+      out.write( this.bytes, 0, this.offsets[ rows ] );
+    }
+  }
+}
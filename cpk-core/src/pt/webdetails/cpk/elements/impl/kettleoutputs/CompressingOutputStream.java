@@ -0,0 +1,199 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the content of a response with gzip or deflate. The first bytes are held back until there are more
+ * than the minimum size, so that small responses are sent as they are, without the Content-Encoding header.
+ * Flushing sends everything compressed so far, so streamed rows still reach the client as they are written.
+ */
+public final class CompressingOutputStream extends OutputStream {
+
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final HttpServletResponse response;
+  private final OutputStream out;
+  private final String encoding;
+  private final int level;
+
+  private byte[] pending;
+  private int pendingCount;
+  private Deflater deflater;
+  private DeflaterOutputStream compressor;
+  private boolean isClosed;
+
+  /**
+   * @param response The response, where the Content-Encoding header is set.
+   * @param out The stream where to write the content.
+   * @param encoding Either gzip or deflate.
+   * @param level The compression level, from 1 (fastest) to 9 (smallest).
+   * @param minSize The size, in bytes, up to which the content is not compressed.
+   */
+  public CompressingOutputStream( HttpServletResponse response, OutputStream out, String encoding, int level,
+                                  int minSize ) {
+    this.response = response;
+    this.out = out;
+    this.encoding = encoding;
+    this.level = Math.max( Deflater.BEST_SPEED, Math.min( Deflater.BEST_COMPRESSION, level ) );
+    this.pending = new byte[ Math.max( 0, minSize ) ];
+  }
+
+  /**
+   * Chooses the content coding of a response from the Accept-Encoding header of the request.
+   * @param acceptEncoding The Accept-Encoding header, or null.
+   * @return gzip or deflate, whichever the client prefers (gzip if both are equally preferred), or null if the
+   * client accepts neither.
+   */
+  public static String negotiate( String acceptEncoding ) {
+    if ( acceptEncoding == null ) {
+      return null;
+    }
+    float gzip = -1;
+    float deflate = -1;
+    float any = -1;
+    for ( String coding : acceptEncoding.split( "," ) ) {
+      String[] parts = coding.split( ";" );
+      String name = parts[ 0 ].trim().toLowerCase();
+      float quality = 1;
+      for ( int i = 1; i < parts.length; i++ ) {
+        String parameter = parts[ i ].trim();
+        if ( parameter.startsWith( "q=" ) ) {
+          try {
+            quality = Float.parseFloat( parameter.substring( 2 ).trim() );
+          } catch ( NumberFormatException e ) {
+            quality = 0;
+          }
+        }
+      }
+      if ( name.equals( GZIP ) || name.equals( "x-gzip" ) ) {
+        gzip = quality;
+      } else if ( name.equals( DEFLATE ) ) {
+        deflate = quality;
+      } else if ( name.equals( "*" ) ) {
+        any = quality;
+      }
+    }
+    gzip = gzip < 0 ? any : gzip;
+    deflate = deflate < 0 ? any : deflate;
+    if ( gzip > 0 && gzip >= deflate ) {
+      return GZIP;
+    }
+    return deflate > 0 ? DEFLATE : null;
+  }
+
+  @Override
+  public void write( int b ) throws IOException {
+    this.write( new byte[] { (byte) b }, 0, 1 );
+  }
+
+  @Override
+  public void write( byte[] b, int off, int len ) throws IOException {
+    if ( this.compressor != null ) {
+      this.compressor.write( b, off, len );
+    } else if ( this.pendingCount + len <= this.pending.length ) {
+      System.arraycopy( b, off, this.pending, this.pendingCount, len );
+      this.pendingCount += len;
+    } else {
+      this.startCompressing();
+      this.compressor.write( b, off, len );
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    // held back bytes are kept until it is known if they are to be compressed
+    if ( this.compressor != null ) {
+      this.compressor.flush();
+    }
+  }
+
+  /**
+   * Writes the remaining content, compressed or not, without closing the underlying stream.
+   */
+  public void finish() throws IOException {
+    if ( this.isClosed ) {
+      return;
+    }
+    this.isClosed = true;
+    if ( this.compressor != null ) {
+      try {
+        this.compressor.finish();
+      } finally {
+        this.deflater.end();
+      }
+    } else {
+      this.out.write( this.pending, 0, this.pendingCount );
+    }
+    this.pending = null;
+    this.out.flush();
+  }
+
+  /**
+   * Ends the stream without writing the remaining content, so that the client sees it as truncated.
+   */
+  public void abort() {
+    if ( this.isClosed ) {
+      return;
+    }
+    this.isClosed = true;
+    if ( this.deflater != null ) {
+      this.deflater.end();
+    }
+    this.pending = null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.finish();
+  }
+
+  private void startCompressing() throws IOException {
+    this.response.setHeader( "Content-Encoding", this.encoding );
+    if ( GZIP.equals( this.encoding ) ) {
+      GzipOutputStream gzip = new GzipOutputStream( this.out, this.level );
+      this.deflater = gzip.getDeflater();
+      this.compressor = gzip;
+    } else {
+      this.deflater = new Deflater( this.level );
+      this.compressor = new DeflaterOutputStream( this.out, this.deflater, BUFFER_SIZE, true );
+    }
+    this.compressor.write( this.pending, 0, this.pendingCount );
+    this.pending = null;
+  }
+
+  /**
+   * Gzip stream that exposes its deflater, so that the compression level can be chosen.
+   */
+  private static final class GzipOutputStream extends GZIPOutputStream {
+    GzipOutputStream( OutputStream out, int level ) throws IOException {
+      super( out, BUFFER_SIZE, true );
+      this.def.setLevel( level );
+    }
+
+    Deflater getDeflater() {
+      return this.def;
+    }
+  }
+}
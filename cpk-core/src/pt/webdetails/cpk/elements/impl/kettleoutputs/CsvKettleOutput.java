@@ -0,0 +1,314 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import pt.webdetails.cpk.elements.impl.KettleResult;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Delimited text output of the resultset (CSV, or TSV with a tab delimiter), one line per row, preceded by a header
+ * line with the column names. Rows are written while they are produced, so memory use does not depend on the number
+ * of rows. Lines end with CRLF and values are quoted as in RFC 4180.
+ */
+public class CsvKettleOutput extends StreamingKettleOutput {
+
+  public static final String CSV_MIME_TYPE = "text/csv";
+  public static final String TSV_MIME_TYPE = "text/tab-separated-values";
+
+  private static final String LINE_SEPARATOR = "\r\n";
+
+  /**
+   * How values are quoted.
+   */
+  public enum Quoting {
+    /**
+     * Only values with the delimiter, the quote or line breaks are quoted.
+     */
+    MINIMAL,
+    /**
+     * Every value but nulls is quoted.
+     */
+    ALL,
+    /**
+     * No value is quoted. Values must not have the delimiter or line breaks.
+     */
+    NONE
+  }
+
+  public static final class Format implements Cloneable {
+    private char delimiter = ',';
+    private char quote = '"';
+    private Quoting quoting = Quoting.MINIMAL;
+    private boolean header = true;
+    private String dateFormat = "yyyy-MM-dd HH:mm:ss.SSS";
+    private String numberFormat;
+
+    /**
+     *
+     * @return The character that separates values.
+     */
+    public char getDelimiter() { return this.delimiter; }
+    public Format setDelimiter( char delimiter ) {
+      this.delimiter = delimiter;
+      return this;
+    }
+
+    /**
+     *
+     * @return The character that encloses quoted values. Quotes within values are doubled.
+     */
+    public char getQuote() { return this.quote; }
+    public Format setQuote( char quote ) {
+      this.quote = quote;
+      return this;
+    }
+
+    /**
+     *
+     * @return Which values are quoted.
+     */
+    public Quoting getQuoting() { return this.quoting; }
+    public Format setQuoting( Quoting quoting ) {
+      this.quoting = quoting;
+      return this;
+    }
+
+    /**
+     *
+     * @return If the first line has the column names.
+     */
+    public boolean getHeader() { return this.header; }
+    public Format setHeader( boolean header ) {
+      this.header = header;
+      return this;
+    }
+
+    /**
+     *
+     * @return The SimpleDateFormat pattern of date and timestamp values.
+     */
+    public String getDateFormat() { return this.dateFormat; }
+    public Format setDateFormat( String dateFormat ) {
+      this.dateFormat = dateFormat;
+      return this;
+    }
+
+    /**
+     *
+     * @return The DecimalFormat pattern of number and big number values, or null to write them in full, without
+     * exponent.
+     */
+    public String getNumberFormat() { return this.numberFormat; }
+    public Format setNumberFormat( String numberFormat ) {
+      this.numberFormat = numberFormat;
+      return this;
+    }
+
+    @Override
+    public Format clone() {
+      return new Format()
+        .setDelimiter( this.delimiter )
+        .setQuote( this.quote )
+        .setQuoting( this.quoting )
+        .setHeader( this.header )
+        .setDateFormat( this.dateFormat )
+        .setNumberFormat( this.numberFormat );
+    }
+  }
+
+  private final Format format;
+  private RowMetaInterface outputFields;
+  private Writer writer;
+  private SimpleDateFormat dateFormat;
+  private NumberFormat numberFormat;
+  private int rowIndex = 0;
+
+  public CsvKettleOutput( Format format ) {
+    this.format = format;
+  }
+
+  /**
+   * @param outputFields The fields of the output step, whose names are the header of a result without rows.
+   * If null, such results have no header.
+   */
+  public CsvKettleOutput setOutputFields( RowMetaInterface outputFields ) {
+    this.outputFields = outputFields;
+    return this;
+  }
+
+  @Override
+  public CsvKettleOutput setConfiguration( Configuration configuration ) {
+    configuration.setMimeType( this.format.getDelimiter() == '\t' ? TSV_MIME_TYPE : CSV_MIME_TYPE );
+    super.setConfiguration( configuration );
+
+    return this;
+  }
+
+  @Override
+  protected void startStream() throws IOException {
+    logger.debug( "Process Csv (streaming)" );
+
+    Configuration configuration = this.getConfiguration();
+    String attachmentName = null;
+    if ( configuration.getSendResultAsAttachment() ) {
+      attachmentName = configuration.getAttachmentName() != null ? configuration.getAttachmentName()
+        : this.format.getDelimiter() == '\t' ? "result.tsv" : "result.csv";
+    }
+    this.setResponseHeaders( configuration.getMimeType() + "; charset=" + ENCODING, attachmentName );
+
+    this.writer = new BufferedWriter( new OutputStreamWriter( this.getOut(), ENCODING ) );
+    this.dateFormat = new SimpleDateFormat( this.format.getDateFormat() );
+    if ( this.format.getNumberFormat() != null ) {
+      this.numberFormat = new DecimalFormat( this.format.getNumberFormat(),
+        DecimalFormatSymbols.getInstance( Locale.ROOT ) );
+    }
+  }
+
+  @Override
+  protected void writeRowData( RowMetaInterface rowMeta, Object[] data ) throws IOException {
+    if ( this.rowIndex == 0 ) {
+      this.writeHeader( rowMeta );
+    }
+
+    // rows outside the page are only counted
+    Configuration configuration = this.getConfiguration();
+    boolean inPage = !configuration.isPaginated() || ( this.rowIndex >= configuration.getPageStart()
+      && this.rowIndex < configuration.getPageStart() + configuration.getPageSize() );
+    this.rowIndex++;
+    if ( !inPage ) {
+      return;
+    }
+
+    // only write the values described by the metadata, the data array may have trailing null elements
+    int rowSize = rowMeta.size();
+    for ( int i = 0; i < rowSize; i++ ) {
+      if ( i > 0 ) {
+        this.writer.write( this.format.getDelimiter() );
+      }
+      Object value = i < data.length ? data[ i ] : null;
+      if ( value != null ) {
+        this.writeText( this.toText( rowMeta.getValueMeta( i ), value ) );
+      }
+    }
+    this.writer.write( LINE_SEPARATOR );
+  }
+
+  @Override
+  public synchronized boolean isComplete() {
+    // rows past the page are not written, nor counted, so they are not needed
+    Configuration configuration = this.getConfiguration();
+    return configuration.isPaginated() && this.rowIndex >= configuration.getPageStart() + configuration.getPageSize();
+  }
+
+  @Override
+  protected void finishStream( KettleResult result ) throws IOException {
+    if ( this.rowIndex == 0 && this.outputFields != null ) {
+      this.writeHeader( this.outputFields );
+    }
+    this.writer.flush();
+  }
+
+  @Override
+  protected void flush() throws IOException {
+    this.writer.flush();
+    super.flush();
+  }
+
+  private void writeHeader( RowMetaInterface rowMeta ) throws IOException {
+    if ( !this.format.getHeader() ) {
+      return;
+    }
+    for ( int i = 0; i < rowMeta.size(); i++ ) {
+      if ( i > 0 ) {
+        this.writer.write( this.format.getDelimiter() );
+      }
+      this.writeText( rowMeta.getValueMeta( i ).getName() );
+    }
+    this.writer.write( LINE_SEPARATOR );
+  }
+
+  private String toText( ValueMetaInterface valueMeta, Object value ) {
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_DATE:
+      case ValueMetaInterface.TYPE_TIMESTAMP:
+        return value instanceof Date ? this.dateFormat.format( (Date) value ) : value.toString();
+      case ValueMetaInterface.TYPE_NUMBER:
+        if ( value instanceof Double ) {
+          double number = (Double) value;
+          if ( this.numberFormat != null ) {
+            return this.numberFormat.format( number );
+          }
+          return Double.isNaN( number ) || Double.isInfinite( number ) ? value.toString()
+            : BigDecimal.valueOf( number ).toPlainString();
+        }
+        return value.toString();
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        if ( value instanceof BigDecimal ) {
+          return this.numberFormat != null ? this.numberFormat.format( value ) : ( (BigDecimal) value ).toPlainString();
+        }
+        return value.toString();
+      case ValueMetaInterface.TYPE_BINARY:
+        return value instanceof byte[] ? Base64.getEncoder().encodeToString( (byte[]) value ) : value.toString();
+      default:
+        return value.toString();
+    }
+  }
+
+  private void writeText( String text ) throws IOException {
+    Quoting quoting = this.format.getQuoting();
+    boolean quote = quoting == Quoting.ALL || ( quoting == Quoting.MINIMAL && this.needsQuotes( text ) );
+    if ( !quote ) {
+      this.writer.write( text );
+      return;
+    }
+
+    char quoteChar = this.format.getQuote();
+    this.writer.write( quoteChar );
+    int start = 0;
+    for ( int i = text.indexOf( quoteChar ); i >= 0; i = text.indexOf( quoteChar, start ) ) {
+      this.writer.write( text, start, i + 1 - start );
+      this.writer.write( quoteChar );
+      start = i + 1;
+    }
+    this.writer.write( text, start, text.length() - start );
+    this.writer.write( quoteChar );
+  }
+
+  private boolean needsQuotes( String text ) {
+    char delimiter = this.format.getDelimiter();
+    char quote = this.format.getQuote();
+    for ( int i = 0; i < text.length(); i++ ) {
+      char c = text.charAt( i );
+      if ( c == delimiter || c == quote || c == '\n' || c == '\r' ) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
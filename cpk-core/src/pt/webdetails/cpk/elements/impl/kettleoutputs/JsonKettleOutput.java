@@ -14,23 +14,20 @@
 package pt.webdetails.cpk.elements.impl.kettleoutputs;
 
 
-import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.row.RowMetaInterface;
-import pt.webdetails.cpf.utils.MimeTypes;
 import pt.webdetails.cpk.elements.impl.KettleResult;
-import pt.webdetails.cpk.utils.CpkUtils;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
+import java.util.List;
 
 public class JsonKettleOutput extends KettleOutput {
 
   @Override
   public JsonKettleOutput setConfiguration( Configuration configuration ) {
-    configuration.setMimeType( MimeTypes.JSON );
+    negotiateJsonMimeType( configuration );
     super.setConfiguration( configuration );
 
     return this;
@@ -41,22 +38,35 @@ public class JsonKettleOutput extends KettleOutput {
     logger.debug( "Process Json" );
 
     // TODO: Check: This is assuming that all rows have the same metadata! This could eventually lead to an error.
-    RowMetaInterface rowMeta = result.getRows().size() > 0 ? result.getRows().get( 0 ).getRowMeta() : null;
-    Collection<Object[]> rows = new ArrayList<Object[]>();
-    if ( rowMeta != null ) {
-      int rowSize = rowMeta.size();
-      for ( RowMetaAndData row : result.getRows() ) {
-        // array needs copy to truncate null elements
-        rows.add( Arrays.copyOfRange( row.getData(), 0, rowSize ) );
-      }
-    }
+    List<RowMetaAndData> resultRows = result.getRows();
+    RowMetaInterface rowMeta = resultRows.size() > 0 ? resultRows.get( 0 ).getRowMeta() : null;
 
-    RowsJson rowsJson = new RowsJson( rows, rowMeta );
+    // when paginating only the rows of the requested page are output
+    Configuration configuration = this.getConfiguration();
+    int totalRows = resultRows.size();
+    int fromIndex = configuration.isPaginated() ? Math.min( configuration.getPageStart(), totalRows ) : 0;
+    int toIndex = configuration.isPaginated() ? Math.min( fromIndex + configuration.getPageSize(), totalRows )
+      : totalRows;
 
     try {
-      CpkUtils.setResponseHeaders( this.getResponse(), this.getConfiguration().getMimeType() );
-      ObjectMapper mapper = new ObjectMapper();
-      mapper.writeValue( this.getOut(), rowsJson );
+      this.setResponseHeaders( this.getConfiguration().getMimeType() );
+      JsonGenerator generator = this.getJsonMapper().getJsonFactory()
+        .createJsonGenerator( this.getOut(), JsonEncoding.UTF8 );
+      RowsJsonWriter writer = new RowsJsonWriter( generator );
+      if ( configuration.isPaginated() ) {
+        writer.setPage( configuration.getPageStart(), configuration.getPageSize() );
+      }
+
+      // rows are written as they are kept in the result, rows outside the page are only counted
+      writer.writeStart();
+      writer.skipRows( rowMeta, fromIndex );
+      for ( RowMetaAndData row : resultRows.subList( fromIndex, toIndex ) ) {
+        writer.writeRow( row.getRowMeta(), row.getData() );
+      }
+      writer.skipRows( rowMeta, totalRows - toIndex );
+      writer.writeEnd();
+      generator.close();
+      this.finishOut();
     } catch ( IOException ex ) {
       this.logger.error( "IO Error processing Json kettle output.", ex );
     }
@@ -0,0 +1,147 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Writes the values of a column of a given kettle type straight to a JsonGenerator, without looking up a serializer
+ * for every value. The output is the same as that of an ObjectMapper with the default configuration: numbers as
+ * numbers, dates as milliseconds since the epoch and binaries as base64. Values of an unexpected class (e.g. kettle
+ * values in binary string storage) are written by the codec of the generator.
+ */
+abstract class JsonValueWriter {
+
+  abstract void write( JsonGenerator generator, Object value ) throws IOException;
+
+  /**
+   * @return The writer of the values described by a value meta.
+   */
+  static JsonValueWriter forValueMeta( ValueMetaInterface valueMeta ) {
+    if ( valueMeta == null ) {
+      return OBJECT;
+    }
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_STRING:
+        return STRING;
+      case ValueMetaInterface.TYPE_INTEGER:
+        return INTEGER;
+      case ValueMetaInterface.TYPE_NUMBER:
+        return NUMBER;
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return BIGNUMBER;
+      case ValueMetaInterface.TYPE_DATE:
+      case ValueMetaInterface.TYPE_TIMESTAMP:
+        return DATE;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return BOOLEAN;
+      case ValueMetaInterface.TYPE_BINARY:
+        return BINARY;
+      default:
+        return OBJECT;
+    }
+  }
+
+  static final JsonValueWriter OBJECT = new JsonValueWriter() {
+    @Override
+    void write( JsonGenerator generator, Object value ) throws IOException {
+      generator.writeObject( value );
+    }
+  };
+
+  static final JsonValueWriter STRING = new JsonValueWriter() {
+    @Override
+    void write( JsonGenerator generator, Object value ) throws IOException {
+      if ( value instanceof String ) {
+        generator.writeString( (String) value );
+      } else {
+        generator.writeObject( value );
+      }
+    }
+  };
+
+  static final JsonValueWriter INTEGER = new JsonValueWriter() {
+    @Override
+    void write( JsonGenerator generator, Object value ) throws IOException {
+      if ( value instanceof Long ) {
+        generator.writeNumber( ( (Long) value ).longValue() );
+      } else {
+        generator.writeObject( value );
+      }
+    }
+  };
+
+  static final JsonValueWriter NUMBER = new JsonValueWriter() {
+    @Override
+    void write( JsonGenerator generator, Object value ) throws IOException {
+      if ( value instanceof Double ) {
+        generator.writeNumber( ( (Double) value ).doubleValue() );
+      } else {
+        generator.writeObject( value );
+      }
+    }
+  };
+
+  static final JsonValueWriter BIGNUMBER = new JsonValueWriter() {
+    @Override
+    void write( JsonGenerator generator, Object value ) throws IOException {
+      if ( value instanceof BigDecimal ) {
+        generator.writeNumber( (BigDecimal) value );
+      } else {
+        generator.writeObject( value );
+      }
+    }
+  };
+
+  static final JsonValueWriter DATE = new JsonValueWriter() {
+    @Override
+    void write( JsonGenerator generator, Object value ) throws IOException {
+      // java.sql.Date and Time are serialized as strings, only these two as timestamps
+      if ( value != null && ( value.getClass() == Date.class || value.getClass() == Timestamp.class ) ) {
+        generator.writeNumber( ( (Date) value ).getTime() );
+      } else {
+        generator.writeObject( value );
+      }
+    }
+  };
+
+  static final JsonValueWriter BOOLEAN = new JsonValueWriter() {
+    @Override
+    void write( JsonGenerator generator, Object value ) throws IOException {
+      if ( value instanceof Boolean ) {
+        generator.writeBoolean( ( (Boolean) value ).booleanValue() );
+      } else {
+        generator.writeObject( value );
+      }
+    }
+  };
+
+  static final JsonValueWriter BINARY = new JsonValueWriter() {
+    @Override
+    void write( JsonGenerator generator, Object value ) throws IOException {
+      if ( value instanceof byte[] ) {
+        generator.writeBinary( (byte[]) value );
+      } else {
+        generator.writeObject( value );
+      }
+    }
+  };
+}
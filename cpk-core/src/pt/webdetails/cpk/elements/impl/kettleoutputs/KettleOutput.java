@@ -15,6 +15,10 @@ package pt.webdetails.cpk.elements.impl.kettleoutputs;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import pt.webdetails.cpf.utils.MimeTypes;
+import pt.webdetails.cpk.utils.CpkUtils;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
@@ -22,6 +26,11 @@ import java.io.OutputStream;
 
 public abstract class KettleOutput implements IKettleOutput {
 
+  /**
+   * The media type of Json in the Smile binary encoding.
+   */
+  public static final String SMILE_MIME_TYPE = "application/x-jackson-smile";
+
   public static final class Configuration implements Cloneable {
 
     // TODO: change to enum
@@ -29,6 +38,18 @@ public abstract class KettleOutput implements IKettleOutput {
     private String mimeType;
     private String attachmentName;
     private boolean sendResultAsAttachment = false;
+    private boolean streamResult = false;
+    private int flushRows = 0;
+    private int pageStart = 0;
+    private int pageSize = 0;
+    private boolean countRows = true;
+    private int maxAge = 0;
+    private boolean sharedCaching = false;
+    private String accept;
+    private String acceptEncoding;
+    private boolean varyOnAccept = false;
+    private int compressionLevel = 0;
+    private int compressionMinSize = 0;
 
     /**
      *
@@ -50,6 +71,154 @@ public abstract class KettleOutput implements IKettleOutput {
       return this;
     }
 
+    /**
+     *
+     * @return If result rows are to be written to the response while the transformation is still running.
+     */
+    public boolean getStreamResult() { return this.streamResult; }
+    public Configuration setStreamResult( boolean streamResult ) {
+      this.streamResult = streamResult;
+      return this;
+    }
+
+    /**
+     *
+     * @return The number of rows after which a streamed response is flushed. If <= 0 a default is used.
+     */
+    public int getFlushRows() { return this.flushRows; }
+    public Configuration setFlushRows( int flushRows ) {
+      this.flushRows = flushRows;
+      return this;
+    }
+
+    /**
+     *
+     * @return The index of the first result row to output, when paginating.
+     */
+    public int getPageStart() { return this.pageStart; }
+    public Configuration setPageStart( int pageStart ) {
+      this.pageStart = Math.max( 0, pageStart );
+      return this;
+    }
+
+    /**
+     *
+     * @return The maximum number of result rows to output. If <= 0 all rows are output.
+     */
+    public int getPageSize() { return this.pageSize; }
+    public Configuration setPageSize( int pageSize ) {
+      this.pageSize = pageSize;
+      return this;
+    }
+
+    /**
+     *
+     * @return If the result is to be paginated.
+     */
+    public boolean isPaginated() { return this.pageSize > 0; }
+
+    /**
+     *
+     * @return If all result rows are to be counted when paginating. If false the execution may be stopped
+     * as soon as one row past the page is produced.
+     */
+    public boolean getCountRows() { return this.countRows; }
+    public Configuration setCountRows( boolean countRows ) {
+      this.countRows = countRows;
+      return this;
+    }
+
+    /**
+     *
+     * @return How long, in seconds, browsers and proxies may reuse the response. If <= 0 it is not to be stored.
+     */
+    public int getMaxAge() { return this.maxAge; }
+    public Configuration setMaxAge( int maxAge ) {
+      this.maxAge = maxAge;
+      return this;
+    }
+
+    /**
+     *
+     * @return If shared caches (e.g. proxies) may store the response, which is only the case when it is the same
+     * for every user.
+     */
+    public boolean getSharedCaching() { return this.sharedCaching; }
+    public Configuration setSharedCaching( boolean sharedCaching ) {
+      this.sharedCaching = sharedCaching;
+      return this;
+    }
+
+    /**
+     *
+     * @return The Accept header of the request, or null.
+     */
+    public String getAccept() { return this.accept; }
+    public Configuration setAccept( String accept ) {
+      this.accept = accept;
+      return this;
+    }
+
+    /**
+     *
+     * @return The media type in which Json content is to be written: Smile if the client lists it in the Accept
+     * header, otherwise plain text Json.
+     */
+    public String getJsonMimeType() {
+      return CpkUtils.isAccepted( this.accept, SMILE_MIME_TYPE ) ? SMILE_MIME_TYPE : MimeTypes.JSON;
+    }
+
+    /**
+     *
+     * @return The Accept-Encoding header of the request, or null.
+     */
+    public String getAcceptEncoding() { return this.acceptEncoding; }
+    public Configuration setAcceptEncoding( String acceptEncoding ) {
+      this.acceptEncoding = acceptEncoding;
+      return this;
+    }
+
+    /**
+     *
+     * @return If the response depends on the Accept header of the request, e.g. when the output type was not given
+     * and is negotiated from it.
+     */
+    public boolean getVaryOnAccept() { return this.varyOnAccept; }
+    public Configuration setVaryOnAccept( boolean varyOnAccept ) {
+      this.varyOnAccept = varyOnAccept;
+      return this;
+    }
+
+    /**
+     *
+     * @return The level, from 1 (fastest) to 9 (smallest), used to compress the response. If <= 0 the response is
+     * not compressed.
+     */
+    public int getCompressionLevel() { return this.compressionLevel; }
+    public Configuration setCompressionLevel( int compressionLevel ) {
+      this.compressionLevel = compressionLevel;
+      return this;
+    }
+
+    /**
+     *
+     * @return The size, in bytes, up to which the response is not compressed.
+     */
+    public int getCompressionMinSize() { return this.compressionMinSize; }
+    public Configuration setCompressionMinSize( int compressionMinSize ) {
+      this.compressionMinSize = compressionMinSize;
+      return this;
+    }
+
+    /**
+     *
+     * @return The content coding (gzip or deflate) in which the response is to be compressed, if larger than the
+     * minimum size, or null if it is not to be compressed.
+     */
+    public String getContentEncoding() {
+      return this.compressionLevel > 0 ? CompressingOutputStream.negotiate( this.acceptEncoding ) : null;
+    }
+
     /**
      *
      * @return The name of the attachment to use when sending the result as an attachment.
@@ -77,6 +246,18 @@ public abstract class KettleOutput implements IKettleOutput {
         .setAttachmentName( this.attachmentName )
         .setMimeType( this.mimeType )
         .setSendResultAsAttachment( this.sendResultAsAttachment )
+        .setStreamResult( this.streamResult )
+        .setFlushRows( this.flushRows )
+        .setPageStart( this.pageStart )
+        .setPageSize( this.pageSize )
+        .setCountRows( this.countRows )
+        .setMaxAge( this.maxAge )
+        .setSharedCaching( this.sharedCaching )
+        .setAccept( this.accept )
+        .setAcceptEncoding( this.acceptEncoding )
+        .setVaryOnAccept( this.varyOnAccept )
+        .setCompressionLevel( this.compressionLevel )
+        .setCompressionMinSize( this.compressionMinSize )
         .setOutputType( this.outputType );
 
       return clone;
@@ -84,6 +265,16 @@ public abstract class KettleOutput implements IKettleOutput {
 
   }
 
+  // the mappers only write values of unexpected classes, they are thread safe once configured
+  private static final ObjectMapper jsonMapper = new ObjectMapper();
+  private static final SmileFactory smileFactory = new SmileFactory();
+  private static final ObjectMapper smileMapper = new ObjectMapper( smileFactory );
+
+  static {
+    // generators created by the factory write values through the mapper
+    smileFactory.setCodec( smileMapper );
+  }
+
   protected Log logger = LogFactory.getLog( this.getClass() );
   protected final String ENCODING = "UTF-8";
 
@@ -111,4 +302,85 @@ public abstract class KettleOutput implements IKettleOutput {
     return this;
   }
 
+  /**
+   * Sets the content type of the response and the caching headers given by the configuration.
+   * If the client accepts it, content written from now on to getOut() is compressed, and must be ended with
+   * finishOut().
+   */
+  protected void setResponseHeaders( String mimeType ) {
+    this.setResponseHeaders( mimeType, null );
+  }
+
+  /**
+   * Sets the content type of the response, and the caching and compression given by the configuration.
+   * @param mimeType The content type.
+   * @param attachmentName If not null, the response is sent as an attachment with this file name.
+   */
+  protected void setResponseHeaders( String mimeType, String attachmentName ) {
+    CpkUtils.setResponseHeaders( this.getResponse(), mimeType, this.configuration.getMaxAge(),
+      this.configuration.getSharedCaching(), attachmentName, 0 );
+    this.setVaryHeaders();
+
+    if ( this.configuration.getCompressionLevel() > 0 ) {
+      this.getResponse().addHeader( "Vary", "Accept-Encoding" );
+      String encoding = this.configuration.getContentEncoding();
+      if ( encoding != null && !( this.out instanceof CompressingOutputStream ) ) {
+        this.out = new CompressingOutputStream( this.getResponse(), this.out, encoding,
+          this.configuration.getCompressionLevel(), this.configuration.getCompressionMinSize() );
+      }
+    }
+  }
+
+  /**
+   * Sets the media type of Json content to the encoding negotiated with the client. Since it depends on the Accept
+   * header, the response varies on it.
+   * @param configuration The configuration of the output.
+   */
+  protected static void negotiateJsonMimeType( Configuration configuration ) {
+    configuration
+      .setMimeType( configuration.getJsonMimeType() )
+      .setVaryOnAccept( true );
+  }
+
+  /**
+   * @return The mapper that writes Json in the encoding of the configured media type, Smile or plain text.
+   * Its Json factory creates generators in the same encoding.
+   */
+  protected ObjectMapper getJsonMapper() {
+    return SMILE_MIME_TYPE.equals( this.configuration.getMimeType() ) ? smileMapper : jsonMapper;
+  }
+
+  /**
+   * Writes whatever content the compression of the response still holds. Nothing else may be written afterwards.
+   */
+  protected void finishOut() throws IOException {
+    if ( this.out instanceof CompressingOutputStream ) {
+      ( (CompressingOutputStream) this.out ).finish();
+    }
+  }
+
+  /**
+   * Ends an incomplete response without writing what would mark it as complete, as the end of a compressed stream.
+   */
+  protected void abortOut() {
+    if ( this.out instanceof CompressingOutputStream ) {
+      ( (CompressingOutputStream) this.out ).abort();
+    }
+  }
+
+  /**
+   * Sets the caching headers given by the configuration.
+   */
+  protected void setCacheHeaders() {
+    CpkUtils.setCacheHeaders( this.getResponse(), this.configuration.getMaxAge(),
+      this.configuration.getSharedCaching() );
+    this.setVaryHeaders();
+  }
+
+  private void setVaryHeaders() {
+    if ( this.configuration.getVaryOnAccept() ) {
+      this.getResponse().addHeader( "Vary", "Accept" );
+    }
+  }
+
 }
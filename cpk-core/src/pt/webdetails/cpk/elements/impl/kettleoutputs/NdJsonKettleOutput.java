@@ -0,0 +1,149 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+import org.pentaho.di.core.row.RowMetaInterface;
+import pt.webdetails.cpk.elements.impl.KettleResult;
+
+import java.io.IOException;
+
+/**
+ * Newline delimited Json output of the resultset, written while rows are produced. Every line is a Json object:
+ * the first holds the metadata, followed by one object per row, keyed by column name, and the last holds the
+ * queryInfo. The queryInfo line is only written if the execution succeeds and is not stopped before all the rows
+ * were written, so that clients can tell a complete result from a truncated one.
+ */
+public class NdJsonKettleOutput extends StreamingKettleOutput {
+
+  public static final String MIME_TYPE = "application/x-ndjson";
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final JsonFactory factory = mapper.getJsonFactory();
+
+  private JsonGenerator generator;
+  private RowMetaInterface rowMeta;
+  private String[] columnNames;
+  private JsonValueWriter[] writers;
+  private int rowIndex = 0;
+
+  /**
+   * Separates root level values with a line break instead of a space, leaving out any other whitespace.
+   */
+  private static class LinePrettyPrinter extends MinimalPrettyPrinter {
+    @Override
+    public void writeRootValueSeparator( JsonGenerator generator ) throws IOException {
+      generator.writeRaw( '\n' );
+    }
+  }
+
+  @Override
+  public NdJsonKettleOutput setConfiguration( Configuration configuration ) {
+    configuration.setMimeType( MIME_TYPE );
+    super.setConfiguration( configuration );
+
+    return this;
+  }
+
+  @Override
+  protected void startStream() throws IOException {
+    logger.debug( "Process NdJson (streaming)" );
+
+    this.setResponseHeaders( this.getConfiguration().getMimeType() + "; charset=" + ENCODING );
+    this.generator = factory.createJsonGenerator( this.getOut(), JsonEncoding.UTF8 );
+    this.generator.setPrettyPrinter( new LinePrettyPrinter() );
+  }
+
+  @Override
+  protected void writeRowData( RowMetaInterface rowMeta, Object[] data ) throws IOException {
+    if ( this.rowIndex == 0 ) {
+      this.writeHeader( rowMeta );
+    }
+
+    // rows outside the page are only counted
+    Configuration configuration = this.getConfiguration();
+    boolean inPage = !configuration.isPaginated() || ( this.rowIndex >= configuration.getPageStart()
+      && this.rowIndex < configuration.getPageStart() + configuration.getPageSize() );
+    this.rowIndex++;
+    if ( !inPage ) {
+      return;
+    }
+
+    // only write the values described by the metadata, the data array may have trailing null elements
+    this.prepareColumns( rowMeta );
+    this.generator.writeStartObject();
+    for ( int i = 0; i < this.writers.length; i++ ) {
+      Object value = i < data.length ? data[ i ] : null;
+      this.generator.writeFieldName( this.columnNames[ i ] );
+      if ( value == null ) {
+        this.generator.writeNull();
+      } else {
+        this.writers[ i ].write( this.generator, value );
+      }
+    }
+    this.generator.writeEndObject();
+  }
+
+  @Override
+  public synchronized boolean isComplete() {
+    // with countRows=false one row past the page is enough to know there are more pages
+    Configuration configuration = this.getConfiguration();
+    return configuration.isPaginated() && !configuration.getCountRows()
+      && this.rowIndex > configuration.getPageStart() + configuration.getPageSize();
+  }
+
+  @Override
+  protected void finishStream( KettleResult result ) throws IOException {
+    if ( this.rowIndex == 0 ) {
+      this.writeHeader( null );
+    }
+    Configuration configuration = this.getConfiguration();
+    this.generator.writeStartObject();
+    RowsJsonWriter.writeQueryInfo( this.generator, this.rowIndex, configuration.getPageStart(),
+      configuration.getPageSize() );
+    this.generator.writeEndObject();
+    this.generator.writeRaw( '\n' );
+  }
+
+  @Override
+  protected void flush() throws IOException {
+    this.generator.flush();
+    super.flush();
+  }
+
+  private void writeHeader( RowMetaInterface rowMeta ) throws IOException {
+    this.generator.writeStartObject();
+    RowsJsonWriter.writeMetadata( this.generator, rowMeta );
+    this.generator.writeEndObject();
+  }
+
+  private void prepareColumns( RowMetaInterface rowMeta ) {
+    // rows of a result usually share the same metadata instance
+    if ( rowMeta != this.rowMeta ) {
+      int nrColumns = rowMeta.size();
+      this.columnNames = new String[ nrColumns ];
+      this.writers = new JsonValueWriter[ nrColumns ];
+      for ( int i = 0; i < nrColumns; i++ ) {
+        this.columnNames[ i ] = rowMeta.getValueMeta( i ).getName();
+        this.writers[ i ] = JsonValueWriter.forValueMeta( rowMeta.getValueMeta( i ) );
+      }
+      this.rowMeta = rowMeta;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import pt.webdetails.cpk.cache.ISizedValue;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The encoded bytes of a kettle output, with the headers it set, so that equal requests can be answered without
+ * encoding the result again. The ETag is a hash of the content, so it stays the same for as long as the content
+ * does, whichever cache entry or execution produced it.
+ */
+public final class RenderedResponse implements Serializable, ISizedValue {
+  private static final long serialVersionUID = 384710293847L;
+
+  private static final String CACHE_CONTROL = "Cache-Control";
+  // the response may be kept by the client, but must be revalidated with its ETag before being reused
+  private static final String REVALIDATE = "private, no-cache";
+  private static final String NO_STORE = "no-store";
+
+  private final String[] headerNames;
+  private final String[] headerValues;
+  private final byte[] body;
+  private final String etag;
+  private final String cacheControl;
+  private final long creationTime;
+
+  public byte[] getBody() { return this.body; }
+  public String getETag() { return this.etag; }
+
+  public RenderedResponse( String[] headerNames, String[] headerValues, byte[] body ) {
+    this.headerNames = headerNames;
+    this.headerValues = headerValues;
+    this.body = body;
+    this.etag = computeETag( body );
+    this.creationTime = System.currentTimeMillis();
+
+    // responses without caching directives can at least be revalidated, now that they have an ETag.
+    // An explicit no-store is kept, as the client must not keep those at all.
+    String cacheControl = null;
+    for ( int i = 0; i < headerNames.length; i++ ) {
+      if ( CACHE_CONTROL.equalsIgnoreCase( headerNames[ i ] ) ) {
+        cacheControl = headerValues[ i ];
+      }
+    }
+    this.cacheControl = cacheControl == null ? REVALIDATE : cacheControl;
+  }
+
+  /**
+   * Writes the response, or just its headers with the status 304 (Not Modified) if the client already holds it.
+   * @param response The response where to write.
+   * @param ifNoneMatch The If-None-Match header of the request, or null.
+   */
+  public void writeTo( HttpServletResponse response, String ifNoneMatch ) throws IOException {
+    // set, rather than add, the first value of each header, as the response may already have it
+    Set<String> names = new HashSet<String>();
+    for ( int i = 0; i < this.headerNames.length; i++ ) {
+      String name = this.headerNames[ i ];
+      if ( CACHE_CONTROL.equalsIgnoreCase( name ) || "Content-Length".equalsIgnoreCase( name ) ) {
+        continue;
+      }
+      if ( names.add( name.toLowerCase() ) ) {
+        response.setHeader( name, this.headerValues[ i ] );
+      } else {
+        response.addHeader( name, this.headerValues[ i ] );
+      }
+    }
+    response.setHeader( "ETag", this.etag );
+    response.setHeader( CACHE_CONTROL, this.cacheControl );
+    // reused responses are only fresh for what remains of their max-age
+    long age = ( System.currentTimeMillis() - this.creationTime ) / 1000;
+    if ( age > 0 && !REVALIDATE.equals( this.cacheControl ) && !this.cacheControl.contains( NO_STORE ) ) {
+      response.setHeader( "Age", String.valueOf( age ) );
+    }
+
+    if ( this.matches( ifNoneMatch ) ) {
+      response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+      return;
+    }
+    response.setHeader( "Content-Length", String.valueOf( this.body.length ) );
+    response.getOutputStream().write( this.body );
+  }
+
+  /**
+   * @param ifNoneMatch A list of (possibly weak) entity tags separated by commas, or *.
+   * @return If the list includes the ETag of this response.
+   */
+  public boolean matches( String ifNoneMatch ) {
+    if ( ifNoneMatch == null ) {
+      return false;
+    }
+    for ( String tag : ifNoneMatch.split( "," ) ) {
+      tag = tag.trim();
+      if ( tag.startsWith( "W/" ) ) {
+        tag = tag.substring( 2 );
+      }
+      if ( tag.equals( "*" ) || tag.equals( this.etag ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public long getEstimatedSize() {
+    long size = 64 + this.body.length + this.etag.length() * 2;
+    for ( int i = 0; i < this.headerNames.length; i++ ) {
+      size += 80 + ( this.headerNames[ i ].length() + this.headerValues[ i ].length() ) * 2;
+    }
+    return size;
+  }
+
+  private static String computeETag( byte[] body ) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance( "SHA-1" ).digest( body );
+    } catch ( NoSuchAlgorithmException e ) {
+      throw new IllegalStateException( "SHA-1 is not available", e );
+    }
+
+    StringBuilder etag = new StringBuilder( 2 + 32 );
+    etag.append( '"' );
+    // the first 128 bits are enough to tell contents apart
+    for ( int i = 0; i < 16; i++ ) {
+      etag.append( Character.forDigit( ( digest[ i ] >> 4 ) & 0xf, 16 ) )
+        .append( Character.forDigit( digest[ i ] & 0xf, 16 ) );
+    }
+    return etag.append( '"' ).toString();
+  }
+}
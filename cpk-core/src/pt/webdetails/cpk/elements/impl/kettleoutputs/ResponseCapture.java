@@ -0,0 +1,225 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps what a kettle output writes to a response, so that it can be stored as a {@link RenderedResponse}.
+ * Headers reach the wrapped response as they are set, but the body is held back until {@link #complete()}.
+ * Once the body grows past its limit, or the output sets an error status, nothing more is kept and the body is
+ * written straight to the wrapped response.
+ */
+public final class ResponseCapture extends HttpServletResponseWrapper {
+
+  private final int maxBodySize;
+  private final List<String> headerNames = new ArrayList<String>();
+  private final List<String> headerValues = new ArrayList<String>();
+  private ByteArrayOutputStream body = new ByteArrayOutputStream();
+  private boolean isCacheable = true;
+  private ServletOutputStream outputStream;
+
+  /**
+   * @param response The response to wrap.
+   * @param maxBodySize The size, in bytes, over which the body is no longer kept.
+   */
+  public ResponseCapture( HttpServletResponse response, int maxBodySize ) {
+    super( response );
+    this.maxBodySize = maxBodySize;
+  }
+
+  /**
+   * Ends the capture.
+   * @return The captured response, that the caller must write to the wrapped response, or null if the response was
+   * not kept, in which case it was already written.
+   */
+  public RenderedResponse complete() throws IOException {
+    if ( this.body == null ) {
+      return null;
+    }
+    if ( !this.isCacheable ) {
+      this.passThrough();
+      return null;
+    }
+    RenderedResponse rendered = new RenderedResponse( this.headerNames.toArray( new String[ 0 ] ),
+      this.headerValues.toArray( new String[ 0 ] ), this.body.toByteArray() );
+    this.body = null;
+    return rendered;
+  }
+
+  private void passThrough() throws IOException {
+    if ( this.body != null ) {
+      ServletOutputStream out = super.getOutputStream();
+      this.body.writeTo( out );
+      this.body = null;
+      this.isCacheable = false;
+    }
+  }
+
+  // region Headers
+
+  @Override
+  public void setHeader( String name, String value ) {
+    super.setHeader( name, value );
+    for ( int i = this.headerNames.size() - 1; i >= 0; i-- ) {
+      if ( this.headerNames.get( i ).equalsIgnoreCase( name ) ) {
+        this.headerNames.remove( i );
+        this.headerValues.remove( i );
+      }
+    }
+    this.addCapturedHeader( name, value );
+  }
+
+  @Override
+  public void addHeader( String name, String value ) {
+    super.addHeader( name, value );
+    this.addCapturedHeader( name, value );
+  }
+
+  @Override
+  public void setIntHeader( String name, int value ) {
+    this.setHeader( name, String.valueOf( value ) );
+  }
+
+  @Override
+  public void addIntHeader( String name, int value ) {
+    this.addHeader( name, String.valueOf( value ) );
+  }
+
+  @Override
+  public void setDateHeader( String name, long date ) {
+    // dates would have to be formatted as the container does, it is simpler not to keep these responses
+    super.setDateHeader( name, date );
+    this.isCacheable = false;
+  }
+
+  @Override
+  public void addDateHeader( String name, long date ) {
+    super.addDateHeader( name, date );
+    this.isCacheable = false;
+  }
+
+  @Override
+  public void setContentType( String type ) {
+    super.setContentType( type );
+    this.setHeader( "Content-Type", type );
+  }
+
+  private void addCapturedHeader( String name, String value ) {
+    if ( name != null && value != null ) {
+      this.headerNames.add( name );
+      this.headerValues.add( value );
+    }
+  }
+
+  // endregion
+
+  // region Status
+
+  @Override
+  public void setStatus( int sc ) {
+    super.setStatus( sc );
+    this.isCacheable &= sc == SC_OK;
+  }
+
+  @Override
+  public void sendError( int sc, String msg ) throws IOException {
+    this.isCacheable = false;
+    this.body = null;
+    super.sendError( sc, msg );
+  }
+
+  @Override
+  public void sendError( int sc ) throws IOException {
+    this.isCacheable = false;
+    this.body = null;
+    super.sendError( sc );
+  }
+
+  @Override
+  public void sendRedirect( String location ) throws IOException {
+    this.isCacheable = false;
+    this.body = null;
+    super.sendRedirect( location );
+  }
+
+  // endregion
+
+  // region Body
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if ( this.outputStream == null ) {
+      this.outputStream = new ServletOutputStream() {
+        @Override
+        public void write( int b ) throws IOException {
+          if ( ResponseCapture.this.body == null ) {
+            ResponseCapture.super.getOutputStream().write( b );
+            return;
+          }
+          ResponseCapture.this.body.write( b );
+          ResponseCapture.this.checkSize();
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+          if ( ResponseCapture.this.body == null ) {
+            ResponseCapture.super.getOutputStream().write( b, off, len );
+            return;
+          }
+          ResponseCapture.this.body.write( b, off, len );
+          ResponseCapture.this.checkSize();
+        }
+
+        @Override
+        public void flush() throws IOException {
+          // the captured body is only flushed on completion
+          if ( ResponseCapture.this.body == null ) {
+            ResponseCapture.super.getOutputStream().flush();
+          }
+        }
+      };
+    }
+    return this.outputStream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    this.passThrough();
+    return super.getWriter();
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if ( this.body == null ) {
+      super.flushBuffer();
+    }
+  }
+
+  private void checkSize() throws IOException {
+    if ( this.body.size() > this.maxBodySize ) {
+      this.passThrough();
+    }
+  }
+
+  // endregion
+}
@@ -47,6 +47,7 @@ public class ResultFilesKettleOutput extends KettleOutput {
     }
 
     String defaultAttachmentName = this.getConfiguration().getAttachmentName();
+    this.setCacheHeaders();
     try {
       if ( files.size() == 1 && files.get( 0 ).getType() == FileType.FILE ) {
         // Singe file
@@ -14,10 +14,7 @@
 package pt.webdetails.cpk.elements.impl.kettleoutputs;
 
 import org.codehaus.jackson.annotate.JsonProperty;
-import org.codehaus.jackson.map.ObjectMapper;
-import pt.webdetails.cpf.utils.MimeTypes;
 import pt.webdetails.cpk.elements.impl.KettleResult;
-import pt.webdetails.cpk.utils.CpkUtils;
 
 import java.io.IOException;
 
@@ -59,7 +56,7 @@ public class ResultOnlyKettleOutput extends KettleOutput {
 
   @Override
   public ResultOnlyKettleOutput setConfiguration( Configuration configuration ) {
-    configuration.setMimeType( MimeTypes.JSON );
+    negotiateJsonMimeType( configuration );
     super.setConfiguration( configuration );
 
     return this;
@@ -72,9 +69,9 @@ public class ResultOnlyKettleOutput extends KettleOutput {
     ResultStruct resultStruct = new ResultStruct( result );
 
     try {
-      CpkUtils.setResponseHeaders( this.getResponse(), this.getConfiguration().getMimeType() );
-      ObjectMapper mapper = new ObjectMapper();
-      mapper.writeValue( this.getOut(), resultStruct );
+      this.setResponseHeaders( this.getConfiguration().getMimeType() );
+      this.getJsonMapper().writeValue( this.getOut(), resultStruct );
+      this.finishOut();
     } catch ( IOException ex ) {
       this.logger.fatal( null, ex );
     }
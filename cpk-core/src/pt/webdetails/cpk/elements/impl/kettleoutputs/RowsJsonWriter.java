@@ -0,0 +1,175 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.IOException;
+
+/**
+ * Incremental writer of the CDA-like JSON output (metadata/resultset/queryInfo).
+ * Rows are written one at a time; metadata is taken from the first row and queryInfo is written at the end.
+ * Values are written by a writer chosen once per column from its kettle type.
+ */
+public class RowsJsonWriter {
+
+  private final JsonGenerator generator;
+  private boolean inResultset = false;
+  private int rowCount = 0;
+  private int pageStart = 0;
+  private int pageSize = 0;
+
+  private RowMetaInterface writersRowMeta;
+  private JsonValueWriter[] writers;
+
+  /**
+   * @param generator The generator where to write. It must have an ObjectCodec to write the row values.
+   */
+  public RowsJsonWriter( JsonGenerator generator ) {
+    this.generator = generator;
+  }
+
+  /**
+   * Only writes the rows of a page. All rows are still counted in totalRows.
+   * @param pageStart The index of the first row of the page.
+   * @param pageSize The maximum number of rows of the page. If <= 0 all rows are written.
+   * @return this writer.
+   */
+  public RowsJsonWriter setPage( int pageStart, int pageSize ) {
+    this.pageStart = Math.max( 0, pageStart );
+    this.pageSize = pageSize;
+    return this;
+  }
+
+  /**
+   * @return The number of rows received so far, including the ones outside the page.
+   */
+  public int getRowCount() {
+    return this.rowCount;
+  }
+
+  /**
+   * @return If all rows of the page were already written.
+   */
+  public boolean isPageWritten() {
+    return this.pageSize > 0 && this.rowCount >= this.pageStart + this.pageSize;
+  }
+
+  public void writeStart() throws IOException {
+    this.generator.writeStartObject();
+  }
+
+  public void writeRow( RowMetaInterface rowMeta, Object[] data ) throws IOException {
+    if ( !this.inResultset ) {
+      this.writeResultsetStart( rowMeta );
+    }
+
+    // rows outside the page are only counted
+    if ( this.rowCount >= this.pageStart && !this.isPageWritten() ) {
+      // only write the values described by the metadata, the data array may have trailing null elements
+      JsonValueWriter[] writers = this.getWriters( rowMeta );
+      this.generator.writeStartArray();
+      for ( int i = 0; i < writers.length; i++ ) {
+        Object value = i < data.length ? data[ i ] : null;
+        if ( value == null ) {
+          this.generator.writeNull();
+        } else {
+          writers[ i ].write( this.generator, value );
+        }
+      }
+      this.generator.writeEndArray();
+    }
+    this.rowCount++;
+  }
+
+  /**
+   * Counts rows that are known not to be in the page, without writing them.
+   * @param rowMeta The metadata of the rows, written as the result metadata if no row was received yet.
+   * @param count The number of rows.
+   */
+  public void skipRows( RowMetaInterface rowMeta, int count ) throws IOException {
+    if ( !this.inResultset ) {
+      this.writeResultsetStart( rowMeta );
+    }
+    this.rowCount += count;
+  }
+
+  private JsonValueWriter[] getWriters( RowMetaInterface rowMeta ) {
+    // rows of a result usually share the same metadata instance
+    if ( rowMeta != this.writersRowMeta ) {
+      JsonValueWriter[] writers = new JsonValueWriter[ rowMeta.size() ];
+      for ( int i = 0; i < writers.length; i++ ) {
+        writers[ i ] = JsonValueWriter.forValueMeta( rowMeta.getValueMeta( i ) );
+      }
+      this.writers = writers;
+      this.writersRowMeta = rowMeta;
+    }
+    return this.writers;
+  }
+
+  public void writeEnd() throws IOException {
+    if ( !this.inResultset ) {
+      this.writeResultsetStart( null );
+    }
+    this.generator.writeEndArray();
+
+    writeQueryInfo( this.generator, this.rowCount, this.pageStart, this.pageSize );
+
+    this.generator.writeEndObject();
+    this.generator.flush();
+  }
+
+  private void writeResultsetStart( RowMetaInterface rowMeta ) throws IOException {
+    writeMetadata( this.generator, rowMeta );
+
+    this.generator.writeArrayFieldStart( "resultset" );
+    this.inResultset = true;
+  }
+
+  /**
+   * Writes the metadata field, describing the columns of the result.
+   * @param rowMeta The metadata of the result rows, or null if there were none.
+   */
+  static void writeMetadata( JsonGenerator generator, RowMetaInterface rowMeta ) throws IOException {
+    generator.writeArrayFieldStart( "metadata" );
+    if ( rowMeta != null ) {
+      int nrColumns = rowMeta.size();
+      for ( int i = 0; i < nrColumns; i++ ) {
+        ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+        generator.writeStartObject();
+        generator.writeNumberField( "colIndex", i );
+        generator.writeStringField( "colType", valueMeta.getTypeDesc() );
+        generator.writeStringField( "colName", valueMeta.getName() );
+        generator.writeEndObject();
+      }
+    }
+    generator.writeEndArray();
+  }
+
+  /**
+   * Writes the queryInfo field, with the total number of rows and the page, if paginated.
+   */
+  static void writeQueryInfo( JsonGenerator generator, int totalRows, int pageStart, int pageSize )
+    throws IOException {
+    generator.writeObjectFieldStart( "queryInfo" );
+    generator.writeNumberField( "totalRows", totalRows );
+    if ( pageSize > 0 ) {
+      generator.writeNumberField( "pageStart", pageStart );
+      generator.writeNumberField( "pageSize", pageSize );
+    }
+    generator.writeEndObject();
+  }
+}
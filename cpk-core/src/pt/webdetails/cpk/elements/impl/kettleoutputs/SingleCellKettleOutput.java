@@ -37,6 +37,7 @@ public class SingleCellKettleOutput extends KettleOutput {
         String defaultAttachmentName = this.getConfiguration().getAttachmentName();
         String attachmentName = defaultAttachmentName != null ? defaultAttachmentName : "singleCell";
 
+        this.setCacheHeaders();
         CpkUtils.send( this.getResponse(), resultInputStream, mimeType, attachmentName,
           this.getConfiguration().getSendResultAsAttachment(), attachmentSize );
       }
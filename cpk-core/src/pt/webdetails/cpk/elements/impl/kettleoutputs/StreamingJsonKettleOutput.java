@@ -0,0 +1,75 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.pentaho.di.core.row.RowMetaInterface;
+import pt.webdetails.cpk.elements.impl.KettleResult;
+
+import java.io.IOException;
+
+/**
+ * Json output of the resultset, in the same format as JsonKettleOutput, written while rows are produced.
+ */
+public class StreamingJsonKettleOutput extends StreamingKettleOutput {
+
+  private JsonGenerator generator;
+  private RowsJsonWriter writer;
+
+  @Override
+  public StreamingJsonKettleOutput setConfiguration( Configuration configuration ) {
+    negotiateJsonMimeType( configuration );
+    super.setConfiguration( configuration );
+
+    return this;
+  }
+
+  @Override
+  protected void startStream() throws IOException {
+    logger.debug( "Process Json (streaming)" );
+
+    this.setResponseHeaders( this.getConfiguration().getMimeType() );
+    this.generator = this.getJsonMapper().getJsonFactory().createJsonGenerator( this.getOut(), JsonEncoding.UTF8 );
+    this.writer = new RowsJsonWriter( this.generator );
+    if ( this.getConfiguration().isPaginated() ) {
+      this.writer.setPage( this.getConfiguration().getPageStart(), this.getConfiguration().getPageSize() );
+    }
+    this.writer.writeStart();
+  }
+
+  @Override
+  protected void writeRowData( RowMetaInterface rowMeta, Object[] data ) throws IOException {
+    this.writer.writeRow( rowMeta, data );
+  }
+
+  @Override
+  public synchronized boolean isComplete() {
+    // with countRows=false one row past the page is enough to know there are more pages
+    Configuration configuration = this.getConfiguration();
+    return this.writer != null && configuration.isPaginated() && !configuration.getCountRows()
+      && this.writer.getRowCount() > configuration.getPageStart() + configuration.getPageSize();
+  }
+
+  @Override
+  protected void finishStream( KettleResult result ) throws IOException {
+    this.writer.writeEnd();
+  }
+
+  @Override
+  protected void flush() throws IOException {
+    this.generator.flush();
+    super.flush();
+  }
+}
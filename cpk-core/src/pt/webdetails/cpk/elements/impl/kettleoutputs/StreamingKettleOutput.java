@@ -0,0 +1,182 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.elements.impl.kettleoutputs;
+
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.RowListener;
+import pt.webdetails.cpk.elements.impl.KettleResult;
+import pt.webdetails.cpk.execution.ExecutionControl;
+
+import java.io.IOException;
+
+/**
+ * Kettle output that writes result rows incrementally to the response.
+ * When listening to a running transformation (see getRowListener()) rows are written as soon as the output step
+ * emits them and are never kept in memory. Results obtained otherwise (e.g. from cache) are replayed row by row.
+ */
+public abstract class StreamingKettleOutput extends KettleOutput {
+
+  /**
+   * Number of rows after which the response is flushed, so that the client starts receiving data early,
+   * unless the configuration sets another one.
+   */
+  protected static final int FLUSH_ROW_INTERVAL = 1000;
+
+  private boolean started = false;
+  private boolean finished = false;
+  private long rowCount = 0;
+
+  /**
+   * @return The number of rows written so far.
+   */
+  public synchronized long getRowCount() { return this.rowCount; }
+
+  /**
+   * @return A row listener that writes every row it receives to the response.
+   */
+  public RowListener getRowListener() {
+    return new RowAdapter() {
+      @Override
+      public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] data ) throws KettleStepException {
+        StreamingKettleOutput.this.writeRow( rowMeta, data );
+      }
+    };
+  }
+
+  /**
+   * Writes a row to the response, starting the response if this is the first row.
+   * @param rowMeta The metadata of the row.
+   * @param data The row values. It may have more elements than described in rowMeta.
+   * @throws KettleStepException if the row could not be written (e.g. the client closed the connection).
+   */
+  public synchronized void writeRow( RowMetaInterface rowMeta, Object[] data ) throws KettleStepException {
+    try {
+      this.start();
+      this.writeRowData( rowMeta, data );
+      this.rowCount++;
+      if ( this.rowCount % this.getFlushRowInterval() == 0 ) {
+        this.flush();
+      }
+    } catch ( IOException e ) {
+      throw new KettleStepException( "Failed writing row to the response.", e );
+    }
+  }
+
+  /**
+   * @return The number of rows after which the response is flushed.
+   */
+  protected int getFlushRowInterval() {
+    int flushRows = this.getConfiguration().getFlushRows();
+    return flushRows > 0 ? flushRows : FLUSH_ROW_INTERVAL;
+  }
+
+  /**
+   * Terminates the response after all rows were written. If the execution failed, or was stopped before all the rows
+   * the output needs were written, the response is aborted instead: whatever follows the last row is left out, so
+   * that clients can tell a truncated result from a complete one.
+   * @param result The result of the execution, without rows. If null the execution failed.
+   * @param stopReason Why the execution was stopped before finishing, or null if it was not.
+   */
+  public synchronized void finish( KettleResult result, ExecutionControl.StopReason stopReason ) {
+    if ( this.finished ) {
+      return;
+    }
+    this.finished = true;
+    if ( result == null || ( stopReason != null && stopReason != ExecutionControl.StopReason.LIMIT_REACHED ) ) {
+      this.abort();
+      return;
+    }
+    try {
+      this.start();
+      this.finishStream( result );
+      this.flush();
+      this.finishOut();
+    } catch ( IOException e ) {
+      this.logger.error( "IO Error finishing streamed kettle output.", e );
+    }
+  }
+
+  private void abort() {
+    if ( !this.started ) {
+      return;
+    }
+    try {
+      this.abortStream();
+      this.flush();
+    } catch ( IOException e ) {
+      // the client is likely gone
+      this.logger.debug( "IO Error flushing aborted streamed kettle output.", e );
+    }
+    this.abortOut();
+  }
+
+  /**
+   * @return true if the output does not need any more rows, in which case the execution may be stopped.
+   */
+  public boolean isComplete() {
+    return false;
+  }
+
+  @Override
+  public void processResult( KettleResult result ) {
+    try {
+      for ( RowMetaAndData row : result.getRows() ) {
+        this.writeRow( row.getRowMeta(), row.getData() );
+      }
+    } catch ( KettleStepException e ) {
+      this.logger.error( "IO Error processing streamed kettle output.", e );
+      return;
+    }
+    this.finish( result, null );
+  }
+
+  private void start() throws IOException {
+    if ( !this.started ) {
+      this.started = true;
+      this.startStream();
+    }
+  }
+
+  /**
+   * Sets the response headers and writes anything that precedes the first row.
+   */
+  protected abstract void startStream() throws IOException;
+
+  /**
+   * Writes a single row.
+   */
+  protected abstract void writeRowData( RowMetaInterface rowMeta, Object[] data ) throws IOException;
+
+  /**
+   * Writes anything that follows the last row. Only called if all the rows the output needs were written.
+   * @param result The result of the execution, without rows.
+   */
+  protected abstract void finishStream( KettleResult result ) throws IOException;
+
+  /**
+   * Writes whatever is held back of the rows written so far, when the response is aborted.
+   */
+  protected void abortStream() throws IOException {
+  }
+
+  /**
+   * Sends everything written so far to the client.
+   */
+  protected void flush() throws IOException {
+    this.getOut().flush();
+  }
+}
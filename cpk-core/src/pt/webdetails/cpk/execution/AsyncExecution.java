@@ -0,0 +1,164 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.execution;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * A kettle element execution that runs in the background, detached from the request that submitted it.
+ * Its status is serialized as Json by the execution status endpoint.
+ * @param <V> The type of the execution result.
+ */
+public final class AsyncExecution<V> {
+
+  public enum State {
+    QUEUED, RUNNING, FINISHED, FAILED, CANCELLED;
+
+    public boolean isDone() {
+      return this == FINISHED || this == FAILED || this == CANCELLED;
+    }
+  }
+
+  private final String id;
+  private final String elementId;
+  private final String owner;
+  private final ExecutionControl control;
+  private final Date submitted = new Date();
+
+  private State state = State.QUEUED;
+  private Date started;
+  private Date finished;
+  private V result;
+  private String error;
+
+  AsyncExecution( String elementId, String owner, ExecutionControl control ) {
+    this.id = UUID.randomUUID().toString();
+    this.elementId = elementId;
+    this.owner = owner;
+    this.control = control;
+  }
+
+  public String getExecutionId() { return this.id; }
+
+  public String getElementId() { return this.elementId; }
+
+  /**
+   * @return The name of the user that submitted the execution, if any.
+   */
+  @JsonIgnore
+  public String getOwner() { return this.owner; }
+
+  @JsonIgnore
+  public ExecutionControl getControl() { return this.control; }
+
+  public synchronized State getStatus() { return this.state; }
+
+  public Date getSubmitted() { return this.submitted; }
+
+  public synchronized Date getStarted() { return this.started; }
+
+  public synchronized Date getFinished() { return this.finished; }
+
+  /**
+   * @return The number of result rows produced so far.
+   */
+  public long getRowsWritten() { return this.control.getRowsWritten(); }
+
+  /**
+   * @return The error message if the execution failed.
+   */
+  public synchronized String getError() { return this.error; }
+
+  /**
+   * @return The result of the execution, if it is finished.
+   */
+  @JsonIgnore
+  public synchronized V getResult() { return this.result; }
+
+  /**
+   * @param owner The name of the user trying to access this execution.
+   * @return true if the user is the one that submitted this execution.
+   */
+  public boolean isOwnedBy( String owner ) {
+    return this.owner == null ? owner == null : this.owner.equals( owner );
+  }
+
+  /**
+   * Cancels the execution. A running execution is stopped.
+   * @return false if the execution had already ended.
+   */
+  public boolean cancel() {
+    synchronized ( this ) {
+      if ( this.state.isDone() ) {
+        return false;
+      }
+      this.state = State.CANCELLED;
+      this.finished = new Date();
+    }
+    this.control.cancel();
+    return true;
+  }
+
+  /**
+   * @return false if the execution was cancelled before it could start.
+   */
+  synchronized boolean start() {
+    if ( this.state != State.QUEUED ) {
+      return false;
+    }
+    this.state = State.RUNNING;
+    this.started = new Date();
+    return true;
+  }
+
+  /**
+   * @param result The result of the execution, null if it failed.
+   */
+  synchronized void finish( V result ) {
+    if ( this.state == State.RUNNING ) {
+      if ( this.control.getStopReason() == ExecutionControl.StopReason.TIMEOUT ) {
+        this.state = State.FAILED;
+        this.error = "Execution timed out";
+      } else if ( result == null ) {
+        // the transformation / job errors are logged by the element, that then returns no result
+        this.state = State.FAILED;
+        this.error = "Execution failed, see the server log for details";
+      } else {
+        this.state = State.FINISHED;
+        this.result = result;
+      }
+      this.finished = new Date();
+    }
+  }
+
+  synchronized void fail( Throwable error ) {
+    if ( this.state == State.RUNNING ) {
+      this.state = State.FAILED;
+      this.error = error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+      this.finished = new Date();
+    }
+  }
+
+  /**
+   * @param now The current time, in milliseconds.
+   * @param expiryMillis How long an ended execution is kept.
+   * @return true if the execution ended more than expiryMillis ago.
+   */
+  synchronized boolean isExpired( long now, long expiryMillis ) {
+    return this.finished != null && now - this.finished.getTime() > expiryMillis;
+  }
+}
@@ -0,0 +1,162 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.execution;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs executions in the background and keeps them, with their results, until they are fetched or expire.
+ * The number of kept executions is bounded: when the store is full new submissions are rejected.
+ * @param <V> The type of the execution results.
+ */
+public final class AsyncExecutionStore<V> {
+
+  /**
+   * The work done by an asynchronous execution.
+   */
+  public interface Task<V> {
+    /**
+     * @param control The control that must be attached to the running transformation / job.
+     * @return The result of the execution.
+     */
+    V run( ExecutionControl control ) throws Exception;
+  }
+
+  private static final Log logger = LogFactory.getLog( AsyncExecutionStore.class );
+
+  private final String name;
+  private final int maxEntries;
+  private final long expiryMillis;
+  private final ThreadPoolExecutor executor;
+  private final Map<String, AsyncExecution<V>> executions = new ConcurrentHashMap<String, AsyncExecution<V>>();
+
+  /**
+   * @param name The name used to identify this store in logs and in the name of its threads.
+   * @param maxEntries The maximum number of executions kept, either queued, running or waiting to be fetched.
+   * @param threads The number of executions that run at the same time.
+   * @param expirySeconds How long an ended execution is kept waiting for its result to be fetched.
+   */
+  public AsyncExecutionStore( final String name, int maxEntries, int threads, int expirySeconds ) {
+    this.name = name;
+    this.maxEntries = Math.max( 1, maxEntries );
+    this.expiryMillis = TimeUnit.SECONDS.toMillis( Math.max( 0, expirySeconds ) );
+
+    int poolSize = Math.max( 1, threads );
+    this.executor = new ThreadPoolExecutor( poolSize, poolSize, 60L, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger( 0 );
+
+        @Override
+        public Thread newThread( Runnable runnable ) {
+          Thread thread = new Thread( runnable, name + "-async-" + this.count.incrementAndGet() );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    this.executor.allowCoreThreadTimeOut( true );
+  }
+
+  public int getMaxEntries() { return this.maxEntries; }
+
+  public int getSize() { return this.executions.size(); }
+
+  /**
+   * Submits a new execution to be run in the background.
+   * @param elementId The id of the element being executed.
+   * @param owner The name of the user submitting the execution.
+   * @param control The control of the execution, that may hold its deadline.
+   * @param task The work to execute.
+   * @return The submitted execution.
+   * @throws ExecutionRejectedException if the store is full.
+   */
+  public AsyncExecution<V> submit( String elementId, String owner, ExecutionControl control, final Task<V> task ) {
+    this.purgeExpired();
+    if ( this.executions.size() >= this.maxEntries ) {
+      throw new ExecutionRejectedException( "Execution of '" + elementId + "' rejected by '" + this.name
+        + "': too many asynchronous executions (" + this.maxEntries + ")" );
+    }
+
+    final AsyncExecution<V> execution = new AsyncExecution<V>( elementId, owner, control );
+    this.executions.put( execution.getExecutionId(), execution );
+    this.executor.execute( new Runnable() {
+      @Override
+      public void run() {
+        if ( !execution.start() ) {
+          return;
+        }
+        try {
+          execution.finish( task.run( execution.getControl() ) );
+        } catch ( Throwable e ) {
+          logger.error( "Asynchronous execution " + execution.getExecutionId() + " of '"
+            + execution.getElementId() + "' failed.", e );
+          execution.fail( e );
+        }
+      }
+    } );
+    return execution;
+  }
+
+  /**
+   * @param executionId The id of the execution.
+   * @return The execution or null if it does not exist or has expired.
+   */
+  public AsyncExecution<V> get( String executionId ) {
+    this.purgeExpired();
+    return executionId != null ? this.executions.get( executionId ) : null;
+  }
+
+  /**
+   * Removes a finished execution from the store. Its result can only be taken once.
+   * @param executionId The id of the execution.
+   * @return The finished execution or null if it does not exist or has not finished.
+   */
+  public AsyncExecution<V> takeFinished( String executionId ) {
+    AsyncExecution<V> execution = this.get( executionId );
+    if ( execution == null || execution.getStatus() != AsyncExecution.State.FINISHED ) {
+      return null;
+    }
+    return this.executions.remove( executionId ) != null ? execution : null;
+  }
+
+  /**
+   * Cancels all executions and stops the background threads.
+   */
+  public void shutdown() {
+    for ( AsyncExecution<V> execution : this.executions.values() ) {
+      execution.cancel();
+    }
+    this.executions.clear();
+    this.executor.shutdown();
+  }
+
+  private void purgeExpired() {
+    long now = System.currentTimeMillis();
+    Iterator<AsyncExecution<V>> iterator = this.executions.values().iterator();
+    while ( iterator.hasNext() ) {
+      if ( iterator.next().isExpired( now, this.expiryMillis ) ) {
+        iterator.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.execution;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Control over a single kettle element execution: allows it to be stopped and to report its progress
+ * while it is running. An execution may also be given a deadline after which it is stopped.
+ */
+public final class ExecutionControl {
+
+  /**
+   * The running kettle transformation / job, as seen by its ExecutionControl.
+   */
+  public interface RunningExecution {
+    /**
+     * Stops the execution.
+     */
+    void stop();
+
+    /**
+     * @return The number of result rows produced so far.
+     */
+    long getRowsWritten();
+  }
+
+  /**
+   * Why an execution was stopped before finishing.
+   * LIMIT_REACHED means the execution already produced all the rows that were requested.
+   */
+  public enum StopReason {
+    CANCELLED, TIMEOUT, DISCONNECTED, LIMIT_REACHED
+  }
+
+  // shared by all executions, a single thread is enough as it only calls stop()
+  private static final ScheduledExecutorService deadlineScheduler =
+    Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+      @Override
+      public Thread newThread( Runnable runnable ) {
+        Thread thread = new Thread( runnable, "cpk-execution-deadlines" );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+
+  private RunningExecution running;
+  private StopReason stopReason;
+  private long rowsWritten = 0;
+  private long deadline = 0;
+  private ScheduledFuture<?> deadlineTimer;
+
+  public ExecutionControl() {
+  }
+
+  /**
+   * @param timeoutSeconds The execution is stopped if it is still running timeoutSeconds after this moment.
+   *                       No deadline if <= 0.
+   */
+  public ExecutionControl( int timeoutSeconds ) {
+    if ( timeoutSeconds > 0 ) {
+      this.deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis( timeoutSeconds );
+    }
+  }
+
+  /**
+   * Attaches the running execution to this control. If the control was already stopped, or its deadline has
+   * passed, the execution is stopped.
+   * @param running The running execution.
+   */
+  public void attach( RunningExecution running ) {
+    long remaining = this.getRemainingMillis();
+    if ( remaining <= 0 ) {
+      this.stop( StopReason.TIMEOUT );
+    }
+
+    boolean stop;
+    synchronized ( this ) {
+      this.running = running;
+      stop = this.stopReason != null;
+      if ( !stop && this.deadline > 0 ) {
+        this.deadlineTimer = deadlineScheduler.schedule( new Runnable() {
+          @Override
+          public void run() {
+            ExecutionControl.this.stop( StopReason.TIMEOUT );
+          }
+        }, remaining, TimeUnit.MILLISECONDS );
+      }
+    }
+    if ( stop ) {
+      running.stop();
+    }
+  }
+
+  /**
+   * @return The milliseconds left until the deadline, or Long.MAX_VALUE if there is no deadline.
+   */
+  public long getRemainingMillis() {
+    return this.deadline > 0 ? this.deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+  }
+
+  /**
+   * Detaches the finished execution from this control, keeping its final progress.
+   */
+  public synchronized void detach() {
+    if ( this.deadlineTimer != null ) {
+      this.deadlineTimer.cancel( false );
+      this.deadlineTimer = null;
+    }
+    if ( this.running != null ) {
+      this.rowsWritten = this.running.getRowsWritten();
+      this.running = null;
+    }
+  }
+
+  /**
+   * Cancels the execution, stopping it if it is running.
+   * @return false if the execution was already stopped.
+   */
+  public boolean cancel() {
+    return this.stop( StopReason.CANCELLED );
+  }
+
+  /**
+   * Stops the execution if it is running, or prevents it from running if it was not started yet.
+   * @param reason Why the execution is being stopped.
+   * @return false if the execution was already stopped.
+   */
+  public boolean stop( StopReason reason ) {
+    RunningExecution toStop;
+    synchronized ( this ) {
+      if ( this.stopReason != null ) {
+        return false;
+      }
+      this.stopReason = reason;
+      toStop = this.running;
+    }
+    if ( toStop != null ) {
+      toStop.stop();
+    }
+    return true;
+  }
+
+  public synchronized boolean isCancelled() {
+    return this.stopReason == StopReason.CANCELLED;
+  }
+
+  /**
+   * @return true if the execution was stopped, for any reason, before finishing.
+   */
+  public synchronized boolean isStopped() {
+    return this.stopReason != null;
+  }
+
+  /**
+   * @return Why the execution was stopped, or null if it was not.
+   */
+  public synchronized StopReason getStopReason() {
+    return this.stopReason;
+  }
+
+  /**
+   * @return The number of result rows produced so far.
+   */
+  public long getRowsWritten() {
+    RunningExecution current;
+    synchronized ( this ) {
+      current = this.running;
+      if ( current == null ) {
+        return this.rowsWritten;
+      }
+    }
+    return current.getRowsWritten();
+  }
+}
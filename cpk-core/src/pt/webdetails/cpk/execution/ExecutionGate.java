@@ -0,0 +1,146 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.execution;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for kettle element executions.
+ * Allows at most maxConcurrent executions to run at the same time. Other executions wait in a bounded queue
+ * (at most maxQueued waiting) for at most queueTimeoutSeconds before being rejected.
+ * A gate with maxConcurrent <= 0 is unbounded and never rejects.
+ */
+public final class ExecutionGate {
+
+  private static final Log logger = LogFactory.getLog( ExecutionGate.class );
+
+  private final String name;
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final int queueTimeoutSeconds;
+
+  private final Semaphore permits;
+  private final AtomicInteger queued = new AtomicInteger( 0 );
+  private final AtomicLong rejected = new AtomicLong( 0 );
+
+  /**
+   * @param name The name used to identify this gate in logs and rejection messages.
+   * @param maxConcurrent The maximum number of concurrent executions. Unbounded if <= 0.
+   * @param maxQueued The maximum number of executions waiting for a free slot.
+   * @param queueTimeoutSeconds How long an execution may wait for a free slot.
+   */
+  public ExecutionGate( String name, int maxConcurrent, int maxQueued, int queueTimeoutSeconds ) {
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = Math.max( 0, maxQueued );
+    this.queueTimeoutSeconds = Math.max( 0, queueTimeoutSeconds );
+    // fair so that queued executions are admitted in arrival order
+    this.permits = this.isBounded() ? new Semaphore( maxConcurrent, true ) : null;
+  }
+
+  public static ExecutionGate unbounded( String name ) {
+    return new ExecutionGate( name, 0, 0, 0 );
+  }
+
+  public String getName() { return this.name; }
+
+  public boolean isBounded() { return this.maxConcurrent > 0; }
+
+  public int getMaxConcurrent() { return this.maxConcurrent; }
+
+  public int getMaxQueued() { return this.maxQueued; }
+
+  public int getQueueTimeoutSeconds() { return this.queueTimeoutSeconds; }
+
+  /**
+   * @return The number of executions currently waiting for a free slot.
+   */
+  public int getQueuedCount() { return this.queued.get(); }
+
+  /**
+   * @return The number of executions currently running through this gate.
+   */
+  public int getRunningCount() {
+    return this.isBounded() ? this.maxConcurrent - this.permits.availablePermits() : 0;
+  }
+
+  /**
+   * @return The number of executions rejected since this gate was created.
+   */
+  public long getRejectedCount() { return this.rejected.get(); }
+
+  /**
+   * Waits for a free execution slot. Every successful call must be paired with a call to release().
+   * @throws ExecutionRejectedException if the wait queue is full, the queue timeout expires or the thread is
+   * interrupted while waiting.
+   */
+  public void acquire() {
+    if ( !this.isBounded() ) {
+      return;
+    }
+    try {
+      // unlike the untimed tryAcquire, the timed one honours fairness and doesn't barge ahead of queued requests
+      if ( this.permits.tryAcquire( 0, TimeUnit.SECONDS ) ) {
+        return;
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw this.reject( "interrupted while acquiring an execution slot" );
+    }
+
+    if ( this.queued.incrementAndGet() > this.maxQueued ) {
+      this.queued.decrementAndGet();
+      throw this.reject( "wait queue is full (" + this.maxQueued + ")" );
+    }
+
+    try {
+      if ( !this.permits.tryAcquire( this.queueTimeoutSeconds, TimeUnit.SECONDS ) ) {
+        throw this.reject( "timed out after " + this.queueTimeoutSeconds + " s in the wait queue" );
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw this.reject( "interrupted while in the wait queue" );
+    } finally {
+      this.queued.decrementAndGet();
+    }
+  }
+
+  /**
+   * Frees the execution slot obtained with acquire().
+   */
+  public void release() {
+    if ( this.isBounded() ) {
+      this.permits.release();
+    }
+  }
+
+  private ExecutionRejectedException reject( String reason ) {
+    this.rejected.incrementAndGet();
+    String message = "Execution rejected by '" + this.name + "': " + reason;
+    logger.warn( message );
+    return new ExecutionRejectedException( message );
+  }
+
+  @Override
+  public String toString() {
+    return "{name=" + this.name + ", maxConcurrent=" + this.maxConcurrent + ", maxQueued=" + this.maxQueued
+      + ", queueTimeoutSeconds=" + this.queueTimeoutSeconds + "}";
+  }
+}
@@ -0,0 +1,27 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.execution;
+
+/**
+ * Thrown when a kettle element execution is not admitted because the element or the plugin is overloaded.
+ */
+public class ExecutionRejectedException extends RuntimeException {
+
+  private static final long serialVersionUID = 7309117428361522740L;
+
+  public ExecutionRejectedException( String message ) {
+    super( message );
+  }
+
+}
@@ -0,0 +1,90 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.execution;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the executions of an element that were stopped before finishing (cancelled, timed out, abandoned by the
+ * client or with all the requested rows already produced), and how long they had been running and how many rows
+ * they had produced when stopped.
+ */
+public final class ExecutionStopMetrics {
+
+  private final AtomicLong cancelled = new AtomicLong( 0 );
+  private final AtomicLong timedOut = new AtomicLong( 0 );
+  private final AtomicLong disconnected = new AtomicLong( 0 );
+  private final AtomicLong limitReached = new AtomicLong( 0 );
+  private final AtomicLong runningMillis = new AtomicLong( 0 );
+  private final AtomicLong rowsWritten = new AtomicLong( 0 );
+
+  /**
+   * Records a stopped execution.
+   * @param reason Why the execution was stopped.
+   * @param runningMillis How long the execution had been running when it stopped.
+   * @param rowsWritten How many result rows the execution had produced when it stopped.
+   */
+  public void record( ExecutionControl.StopReason reason, long runningMillis, long rowsWritten ) {
+    switch ( reason ) {
+      case TIMEOUT:
+        this.timedOut.incrementAndGet();
+        break;
+      case DISCONNECTED:
+        this.disconnected.incrementAndGet();
+        break;
+      case LIMIT_REACHED:
+        this.limitReached.incrementAndGet();
+        break;
+      default:
+        this.cancelled.incrementAndGet();
+        break;
+    }
+    this.runningMillis.addAndGet( runningMillis );
+    this.rowsWritten.addAndGet( rowsWritten );
+  }
+
+  @JsonProperty( "cancelled" )
+  public long getCancelledCount() { return this.cancelled.get(); }
+
+  @JsonProperty( "timedOut" )
+  public long getTimedOutCount() { return this.timedOut.get(); }
+
+  @JsonProperty( "disconnected" )
+  public long getDisconnectedCount() { return this.disconnected.get(); }
+
+  @JsonProperty( "limitReached" )
+  public long getLimitReachedCount() { return this.limitReached.get(); }
+
+  /**
+   * @return The total time that stopped executions had been running, in milliseconds.
+   */
+  @JsonProperty( "runningMillis" )
+  public long getRunningMillis() { return this.runningMillis.get(); }
+
+  /**
+   * @return The total number of rows that stopped executions had produced.
+   */
+  @JsonProperty( "rowsWritten" )
+  public long getRowsWritten() { return this.rowsWritten.get(); }
+
+  @Override
+  public String toString() {
+    return "cancelled=" + this.getCancelledCount() + ", timedOut=" + this.getTimedOutCount()
+      + ", disconnected=" + this.getDisconnectedCount() + ", limitReached=" + this.getLimitReachedCount()
+      + ", runningMillis=" + this.getRunningMillis()
+      + ", rowsWritten=" + this.getRowsWritten();
+  }
+}
@@ -0,0 +1,151 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk.execution;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces concurrent executions with equal keys.
+ * The first caller for a key runs the execution; callers with an equal key that arrive while it is running wait
+ * for it and share its value instead of running their own execution.
+ * The value of an execution that was stopped (e.g. its caller timed out or disconnected) is incomplete and is not
+ * shared: waiting callers run the execution again, one of them for all the others. Callers wait no longer than their
+ * own deadline and stop waiting when their own execution control is stopped.
+ * @param <K> The type of the execution keys.
+ * @param <V> The type of the execution values.
+ */
+public final class SingleFlight<K, V> {
+
+  /**
+   * How often a waiting caller checks if its own execution control was stopped.
+   */
+  private static final long WAIT_SLICE_MILLIS = 100;
+
+  private final ConcurrentMap<K, Flight<V>> inFlight = new ConcurrentHashMap<K, Flight<V>>();
+
+  /**
+   * A running execution, together with the reason it was stopped, known once it finishes.
+   */
+  private static final class Flight<V> {
+    private final FutureTask<V> task;
+    private volatile ExecutionControl.StopReason stopReason;
+
+    Flight( final Callable<V> execution, final ExecutionControl control ) {
+      this.task = new FutureTask<V>( new Callable<V>() {
+        @Override
+        public V call() throws Exception {
+          try {
+            return execution.call();
+          } finally {
+            // set before the task completes, so that waiters see it
+            Flight.this.stopReason = control.getStopReason();
+          }
+        }
+      } );
+    }
+
+    /**
+     * Waits for the execution to finish.
+     * @param control The control of the waiting caller.
+     * @return false if the waiting caller was stopped, or reached its deadline, before the execution finished.
+     */
+    boolean await( ExecutionControl control ) {
+      while ( !control.isStopped() ) {
+        long remaining = control.getRemainingMillis();
+        if ( remaining <= 0 ) {
+          control.stop( ExecutionControl.StopReason.TIMEOUT );
+          return false;
+        }
+        try {
+          this.task.get( Math.min( remaining, WAIT_SLICE_MILLIS ), TimeUnit.MILLISECONDS );
+          return true;
+        } catch ( TimeoutException e ) {
+          // check again if the caller was stopped
+        } catch ( ExecutionException e ) {
+          return true;
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          throw new ExecutionRejectedException( "Interrupted while waiting for an equal execution to finish." );
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * @return The number of executions currently running.
+   */
+  public int getInFlightCount() {
+    return this.inFlight.size();
+  }
+
+  /**
+   * Runs the execution, or waits for an already running execution with an equal key.
+   * @param key The execution key.
+   * @param execution The execution to run if none is running for the key.
+   * @param control The control of the caller. It must be the one used by the execution, if the caller runs it.
+   * @return The value of the execution, or null if the caller was stopped while waiting for an equal execution,
+   * in which case the reason is given by the control.
+   * @throws RuntimeException Any runtime exception thrown by the execution is rethrown to every caller that shares
+   * its value.
+   */
+  public V execute( K key, Callable<V> execution, ExecutionControl control ) {
+    while ( true ) {
+      Flight<V> flight = new Flight<V>( execution, control );
+      Flight<V> running = this.inFlight.putIfAbsent( key, flight );
+      if ( running == null ) {
+        try {
+          flight.task.run();
+        } finally {
+          this.inFlight.remove( key, flight );
+        }
+        // the caller's own execution, complete or not
+        return getValue( flight.task );
+      }
+
+      if ( !running.await( control ) ) {
+        return null;
+      }
+      if ( running.stopReason == null ) {
+        return getValue( running.task );
+      }
+      // the value is incomplete, run it again unless another waiter already did
+      this.inFlight.remove( key, running );
+    }
+  }
+
+  private static <V> V getValue( FutureTask<V> task ) {
+    try {
+      return task.get();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionRejectedException( "Interrupted while waiting for an equal execution to finish." );
+    } catch ( ExecutionException e ) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof RuntimeException ) {
+        throw (RuntimeException) cause;
+      }
+      if ( cause instanceof Error ) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException( cause );
+    }
+  }
+}
@@ -44,6 +44,12 @@ public class CpkUtils {
 
   public static void setResponseHeaders( HttpServletResponse response, final String mimeType, final int cacheDuration,
                                          final String attachmentName, long attachmentSize ) {
+    setResponseHeaders( response, mimeType, cacheDuration, false, attachmentName, attachmentSize );
+  }
+
+  public static void setResponseHeaders( HttpServletResponse response, final String mimeType, final int cacheDuration,
+                                         final boolean isPublic, final String attachmentName,
+                                         long attachmentSize ) {
 
 
     if ( response == null ) {
@@ -63,11 +69,62 @@ public class CpkUtils {
       response.setHeader( "Content-Length", String.valueOf( attachmentSize ) );
     }
 
-    if ( cacheDuration > 0 ) {
-      response.setHeader( "Cache-Control", "max-age=" + cacheDuration );
-    } else {
+    setCacheHeaders( response, cacheDuration, isPublic );
+  }
+
+  /**
+   * Sets the headers that tell browsers and proxies if, and for how long, they may reuse a response.
+   * @param response The response.
+   * @param cacheDuration How long, in seconds, the response may be reused. If <= 0 it is not to be stored.
+   * @param isPublic If shared caches (e.g. proxies) may store the response. Otherwise only the browser may,
+   *                 and only for the same session cookie.
+   */
+  public static void setCacheHeaders( HttpServletResponse response, final int cacheDuration,
+                                      final boolean isPublic ) {
+    if ( response == null ) {
+      return;
+    }
+
+    if ( cacheDuration <= 0 ) {
       response.setHeader( "Cache-Control", "max-age=0, no-store" );
+    } else if ( isPublic ) {
+      response.setHeader( "Cache-Control", "public, max-age=" + cacheDuration );
+    } else {
+      response.setHeader( "Cache-Control", "private, max-age=" + cacheDuration );
+      // the browser may be shared by users that log in and out
+      response.setHeader( "Vary", "Cookie" );
+    }
+  }
+
+  /**
+   * @param accept The Accept header of a request, or null.
+   * @param mimeType The media type, e.g. application/json.
+   * @return If the Accept header explicitly lists the media type with a quality above zero. Wildcards are not
+   * considered, so that they do not prevail over the default type of the response.
+   */
+  public static boolean isAccepted( String accept, String mimeType ) {
+    if ( accept == null ) {
+      return false;
+    }
+    for ( String range : accept.split( "," ) ) {
+      String[] parts = range.split( ";" );
+      if ( !parts[ 0 ].trim().equalsIgnoreCase( mimeType ) ) {
+        continue;
+      }
+      double quality = 1.0;
+      for ( int i = 1; i < parts.length; i++ ) {
+        String parameter = parts[ i ].trim();
+        if ( parameter.startsWith( "q=" ) ) {
+          try {
+            quality = Double.parseDouble( parameter.substring( 2 ).trim() );
+          } catch ( NumberFormatException e ) {
+            quality = 0.0;
+          }
+        }
+      }
+      return quality > 0.0;
     }
+    return false;
   }
 
   public static void redirect( HttpServletResponse response, String url ) {
@@ -0,0 +1,90 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import pt.webdetails.cpk.execution.AsyncExecution;
+import pt.webdetails.cpk.execution.AsyncExecutionStore;
+import pt.webdetails.cpk.execution.ExecutionControl;
+
+public class AsyncExecutionStoreTest {
+
+  private static final long TIMEOUT_MILLIS = 5000;
+
+  private AsyncExecutionStore<String> store;
+
+  @Before
+  public void setUp() {
+    this.store = new AsyncExecutionStore<String>( "test", 10, 1, 60 );
+  }
+
+  @After
+  public void tearDown() {
+    this.store.shutdown();
+  }
+
+  /**
+   * Tests that an execution with a result finishes and its result can be taken once.
+   */
+  @Test
+  public void testFinishedExecution() throws InterruptedException {
+    // arrange
+    AsyncExecution<String> execution = this.submit( "result" );
+
+    // act
+    this.waitUntilDone( execution );
+
+    // assert
+    Assert.assertEquals( AsyncExecution.State.FINISHED, execution.getStatus() );
+    Assert.assertSame( execution, this.store.takeFinished( execution.getExecutionId() ) );
+    Assert.assertEquals( "result", execution.getResult() );
+    Assert.assertNull( this.store.takeFinished( execution.getExecutionId() ) );
+  }
+
+  /**
+   * Tests that an execution without a result, whose errors were only logged, is reported as failed.
+   */
+  @Test
+  public void testExecutionWithoutResultFails() throws InterruptedException {
+    // arrange
+    AsyncExecution<String> execution = this.submit( null );
+
+    // act
+    this.waitUntilDone( execution );
+
+    // assert
+    Assert.assertEquals( AsyncExecution.State.FAILED, execution.getStatus() );
+    Assert.assertNotNull( execution.getError() );
+    Assert.assertNull( this.store.takeFinished( execution.getExecutionId() ) );
+  }
+
+  private AsyncExecution<String> submit( final String result ) {
+    return this.store.submit( "element", "user", new ExecutionControl(), new AsyncExecutionStore.Task<String>() {
+      @Override
+      public String run( ExecutionControl control ) {
+        return result;
+      }
+    } );
+  }
+
+  private void waitUntilDone( AsyncExecution<String> execution ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while ( !execution.getStatus().isDone() && System.currentTimeMillis() < deadline ) {
+      Thread.sleep( 10 );
+    }
+  }
+}
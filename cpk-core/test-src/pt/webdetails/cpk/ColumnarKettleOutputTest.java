@@ -0,0 +1,138 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.Result;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import pt.webdetails.cpk.elements.impl.KettleResult;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.ColumnarKettleOutput;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.KettleOutput;
+import pt.webdetails.cpk.execution.ExecutionControl;
+import pt.webdetails.cpk.testUtils.HttpServletResponseForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class ColumnarKettleOutputTest {
+
+  private static RowMetaInterface rowMeta;
+  private static List<Object[]> rows;
+
+  @BeforeClass
+  public static void setUp() throws KettleException {
+    KettleEnvironment.init();
+
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "string" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "number" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "integer" ) );
+    rowMeta.addValueMeta( new ValueMetaBigNumber( "bigNumber" ) );
+    rowMeta.addValueMeta( new ValueMetaBoolean( "boolean" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "date" ) );
+    rowMeta.addValueMeta( new ValueMetaBinary( "binary" ) );
+
+    rows = new ArrayList<Object[]>();
+    rows.add( new Object[] { "a\u00e7\u00e3o", 3.25, 42L, new BigDecimal( "12345678901234567890.0100" ), true,
+      new Date( 1500000000000L ), new byte[] { 0, 1, 2, -1 } } );
+    rows.add( new Object[] { "", -0.0, Long.MIN_VALUE, new BigDecimal( "-0.5" ), false, new Date( 0 ), new byte[ 0 ],
+      "trailing" } );
+    rows.add( new Object[ rowMeta.size() ] );
+    rows.add( new Object[] { "last", Double.NaN, 7L, null, true, null, null } );
+    rows.add( new Object[] { null, 1.0, null, BigDecimal.ONE, null, new Date( -1 ), new byte[] { 9 } } );
+  }
+
+  /**
+   * Tests that every value, including nulls, is read back from record batches of the configured size.
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    // act
+    ColumnarReader reader = read( createOutput( 2, new KettleOutput.Configuration() ), true );
+
+    // assert
+    Assert.assertEquals( 3, reader.getBatches() );
+    Assert.assertEquals( rows.size(), reader.getTotalRows() );
+    Assert.assertEquals( rowMeta.size(), reader.getNames().size() );
+    for ( int i = 0; i < rowMeta.size(); i++ ) {
+      Assert.assertEquals( rowMeta.getValueMeta( i ).getName(), reader.getNames().get( i ) );
+    }
+    Assert.assertEquals( rows.size(), reader.getRows().size() );
+    for ( int row = 0; row < rows.size(); row++ ) {
+      Object[] expected = rows.get( row );
+      Object[] actual = reader.getRows().get( row );
+      for ( int i = 0; i < rowMeta.size(); i++ ) {
+        if ( expected[ i ] instanceof byte[] ) {
+          Assert.assertArrayEquals( (byte[]) expected[ i ], (byte[]) actual[ i ] );
+        } else {
+          Assert.assertEquals( "row " + row + ", column " + i, expected[ i ], actual[ i ] );
+        }
+      }
+    }
+  }
+
+  /**
+   * Tests that only the rows of the page are written, that all rows are counted and that a stopped execution
+   * leaves the result without its end.
+   */
+  @Test
+  public void testPageAndTruncatedResult() throws Exception {
+    // arrange
+    KettleOutput.Configuration configuration = new KettleOutput.Configuration().setPageStart( 1 ).setPageSize( 2 );
+
+    // act
+    ColumnarReader page = read( createOutput( 10, configuration ), true );
+    ColumnarReader truncated = read( createOutput( 10, new KettleOutput.Configuration() ), false );
+
+    // assert
+    Assert.assertEquals( 2, page.getRows().size() );
+    Assert.assertEquals( "", page.getRows().get( 0 )[ 0 ] );
+    Assert.assertEquals( rows.size(), page.getTotalRows() );
+    Assert.assertEquals( rows.size(), truncated.getRows().size() );
+    Assert.assertEquals( -1, truncated.getTotalRows() );
+  }
+
+  private static ColumnarKettleOutput createOutput( int batchRows, KettleOutput.Configuration configuration ) {
+    ColumnarKettleOutput output = new ColumnarKettleOutput( batchRows );
+    output.setConfiguration( configuration );
+    return output;
+  }
+
+  private static ColumnarReader read( ColumnarKettleOutput output, boolean completed ) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    output.setResponse( new HttpServletResponseForTesting( out ) );
+    for ( Object[] row : rows ) {
+      output.writeRow( rowMeta, row );
+    }
+    output.finish( new KettleResult( new Result() ), completed ? null : ExecutionControl.StopReason.TIMEOUT );
+    return new ColumnarReader( new ByteArrayInputStream( out.toByteArray() ) );
+  }
+}
@@ -0,0 +1,140 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk;
+
+import pt.webdetails.cpk.elements.impl.kettleoutputs.ColumnarKettleOutput;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reads the output of ColumnarKettleOutput into rows of java objects, as described in the README.
+ */
+public class ColumnarReader {
+
+  private final List<String> names = new ArrayList<String>();
+  private final List<Byte> types = new ArrayList<Byte>();
+  private final List<Object[]> rows = new ArrayList<Object[]>();
+  private int batches = 0;
+  private long totalRows = -1;
+
+  public ColumnarReader( InputStream in ) throws IOException {
+    DataInputStream data = new DataInputStream( in );
+    if ( data.readInt() != ColumnarKettleOutput.MAGIC ) {
+      throw new IOException( "Not a columnar result" );
+    }
+    if ( data.readByte() != ColumnarKettleOutput.VERSION ) {
+      throw new IOException( "Unknown version" );
+    }
+    int nrColumns = data.readInt();
+    for ( int i = 0; i < nrColumns; i++ ) {
+      this.types.add( data.readByte() );
+      this.names.add( new String( readBytes( data, data.readInt() ), "UTF-8" ) );
+    }
+
+    // the result ends with a batch of no rows followed by the total rows, which a truncated result lacks
+    try {
+      for ( int batchRows = data.readInt(); batchRows > 0; batchRows = data.readInt() ) {
+        Object[][] batch = new Object[ batchRows ][ nrColumns ];
+        for ( int column = 0; column < nrColumns; column++ ) {
+          this.readColumn( data, this.types.get( column ), batch, column );
+        }
+        this.rows.addAll( Arrays.asList( batch ) );
+        this.batches++;
+      }
+      this.totalRows = data.readLong();
+    } catch ( EOFException e ) {
+      this.totalRows = -1;
+    }
+  }
+
+  public List<String> getNames() { return this.names; }
+
+  public List<Byte> getTypes() { return this.types; }
+
+  public List<Object[]> getRows() { return this.rows; }
+
+  public int getBatches() { return this.batches; }
+
+  /**
+   * @return The total number of rows of the result, including the ones outside the page, or -1 if the result was
+   * truncated.
+   */
+  public long getTotalRows() { return this.totalRows; }
+
+  private void readColumn( DataInputStream data, byte type, Object[][] batch, int column ) throws IOException {
+    int rows = batch.length;
+    byte[] validity = readBytes( data, ( rows + 7 ) / 8 );
+    switch ( type ) {
+      case ColumnarKettleOutput.TYPE_LONG:
+      case ColumnarKettleOutput.TYPE_TIMESTAMP:
+        for ( int i = 0; i < rows; i++ ) {
+          long value = data.readLong();
+          if ( isSet( validity, i ) ) {
+            batch[ i ][ column ] = type == ColumnarKettleOutput.TYPE_LONG ? (Object) value : new Date( value );
+          }
+        }
+        break;
+      case ColumnarKettleOutput.TYPE_DOUBLE:
+        for ( int i = 0; i < rows; i++ ) {
+          double value = data.readDouble();
+          if ( isSet( validity, i ) ) {
+            batch[ i ][ column ] = value;
+          }
+        }
+        break;
+      case ColumnarKettleOutput.TYPE_BOOLEAN:
+        byte[] values = readBytes( data, ( rows + 7 ) / 8 );
+        for ( int i = 0; i < rows; i++ ) {
+          if ( isSet( validity, i ) ) {
+            batch[ i ][ column ] = isSet( values, i );
+          }
+        }
+        break;
+      default:
+        int[] offsets = new int[ rows + 1 ];
+        for ( int i = 0; i <= rows; i++ ) {
+          offsets[ i ] = data.readInt();
+        }
+        byte[] bytes = readBytes( data, offsets[ rows ] );
+        for ( int i = 0; i < rows; i++ ) {
+          if ( isSet( validity, i ) ) {
+            byte[] value = new byte[ offsets[ i + 1 ] - offsets[ i ] ];
+            System.arraycopy( bytes, offsets[ i ], value, 0, value.length );
+            batch[ i ][ column ] = type == ColumnarKettleOutput.TYPE_BINARY ? value
+              : type == ColumnarKettleOutput.TYPE_DECIMAL ? new BigDecimal( new String( value, "UTF-8" ) )
+              : new String( value, "UTF-8" );
+          }
+        }
+    }
+  }
+
+  private static boolean isSet( byte[] bitmap, int index ) {
+    return ( bitmap[ index >> 3 ] & ( 1 << ( index & 7 ) ) ) != 0;
+  }
+
+  private static byte[] readBytes( DataInputStream data, int length ) throws IOException {
+    byte[] bytes = new byte[ length ];
+    data.readFully( bytes );
+    return bytes;
+  }
+}
@@ -0,0 +1,151 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.CompressingOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class CompressingOutputStreamTest {
+
+  /**
+   * Tests that the preferred coding is chosen by its q-value, with gzip winning ties, x-gzip as an alias of gzip
+   * and * standing for the codings not listed.
+   */
+  @Test
+  public void testNegotiate() {
+    // act & assert
+    Assert.assertNull( CompressingOutputStream.negotiate( null ) );
+    Assert.assertNull( CompressingOutputStream.negotiate( "" ) );
+    Assert.assertNull( CompressingOutputStream.negotiate( "identity, br" ) );
+    Assert.assertEquals( "gzip", CompressingOutputStream.negotiate( "gzip" ) );
+    Assert.assertEquals( "gzip", CompressingOutputStream.negotiate( "GZip" ) );
+    Assert.assertEquals( "gzip", CompressingOutputStream.negotiate( "x-gzip" ) );
+    Assert.assertEquals( "deflate", CompressingOutputStream.negotiate( "deflate" ) );
+    Assert.assertEquals( "gzip", CompressingOutputStream.negotiate( "deflate, gzip" ) );
+    Assert.assertEquals( "deflate", CompressingOutputStream.negotiate( "gzip;q=0.5, deflate" ) );
+    Assert.assertEquals( "gzip", CompressingOutputStream.negotiate( "gzip ; q=0.9 , deflate;q=0.8" ) );
+    Assert.assertNull( CompressingOutputStream.negotiate( "gzip;q=0" ) );
+    Assert.assertNull( CompressingOutputStream.negotiate( "gzip;q=invalid" ) );
+
+    Assert.assertEquals( "gzip", CompressingOutputStream.negotiate( "*" ) );
+    Assert.assertEquals( "deflate", CompressingOutputStream.negotiate( "gzip;q=0, *" ) );
+    Assert.assertEquals( "gzip", CompressingOutputStream.negotiate( "deflate;q=0.5, *;q=0.8" ) );
+    Assert.assertNull( CompressingOutputStream.negotiate( "*;q=0" ) );
+  }
+
+  /**
+   * Tests that content up to the minimum size is written as it is, without the Content-Encoding header.
+   */
+  @Test
+  public void testSmallContentNotCompressed() throws IOException {
+    // arrange
+    HttpServletResponse response = Mockito.mock( HttpServletResponse.class );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressingOutputStream compressing = new CompressingOutputStream( response, out, "gzip", 6, 100 );
+    byte[] content = createContent( 100 );
+
+    // act
+    compressing.write( content, 0, 60 );
+    compressing.flush();
+    int flushedSize = out.size();
+    compressing.write( content, 60, 40 );
+    compressing.finish();
+
+    // assert
+    Assert.assertEquals( 0, flushedSize );
+    Assert.assertArrayEquals( content, out.toByteArray() );
+    Mockito.verify( response, Mockito.never() ).setHeader( Mockito.eq( "Content-Encoding" ), Mockito.anyString() );
+  }
+
+  /**
+   * Tests that content over the minimum size is gzip compressed.
+   */
+  @Test
+  public void testGzip() throws IOException {
+    // arrange
+    HttpServletResponse response = Mockito.mock( HttpServletResponse.class );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressingOutputStream compressing = new CompressingOutputStream( response, out, "gzip", 6, 100 );
+    byte[] content = createContent( 10000 );
+
+    // act
+    compressing.write( content, 0, 50 );
+    compressing.write( content, 50, content.length - 50 );
+    compressing.finish();
+
+    // assert
+    Mockito.verify( response ).setHeader( "Content-Encoding", "gzip" );
+    Assert.assertTrue( out.size() < content.length );
+    InputStream decompressed = new GZIPInputStream( new ByteArrayInputStream( out.toByteArray() ) );
+    Assert.assertArrayEquals( content, readAll( decompressed ) );
+  }
+
+  /**
+   * Tests that content over the minimum size is deflate compressed, and that flushing sends what was written so far.
+   */
+  @Test
+  public void testDeflateFlush() throws IOException {
+    // arrange
+    HttpServletResponse response = Mockito.mock( HttpServletResponse.class );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressingOutputStream compressing = new CompressingOutputStream( response, out, "deflate", 6, 100 );
+    byte[] content = createContent( 1000 );
+
+    // act
+    compressing.write( content, 0, 500 );
+    compressing.flush();
+    byte[] flushed = out.toByteArray();
+    compressing.write( content, 500, 500 );
+    compressing.finish();
+
+    // assert
+    Mockito.verify( response ).setHeader( "Content-Encoding", "deflate" );
+    InputStream decompressed = new InflaterInputStream( new ByteArrayInputStream( out.toByteArray() ) );
+    Assert.assertArrayEquals( content, readAll( decompressed ) );
+    // the flushed bytes alone decompress to what was written before flushing
+    byte[] flushedContent = new byte[ 500 ];
+    new DataInputStream( new InflaterInputStream( new ByteArrayInputStream( flushed ) ) ).readFully( flushedContent );
+    Assert.assertArrayEquals( Arrays.copyOf( content, 500 ), flushedContent );
+  }
+
+  private static byte[] createContent( int size ) {
+    byte[] content = new byte[ size ];
+    for ( int i = 0; i < size; i++ ) {
+      content[ i ] = (byte) ( 'a' + i % 7 );
+    }
+    return content;
+  }
+
+  private static byte[] readAll( InputStream in ) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[ 4096 ];
+    int read;
+    while ( ( read = in.read( buffer ) ) > 0 ) {
+      bytes.write( buffer, 0, read );
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,80 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import pt.webdetails.cpf.repository.IRepositoryAccess;
+import pt.webdetails.cpf.repository.vfs.VfsRepositoryAccess;
+import pt.webdetails.cpf.utils.IPluginUtils;
+import pt.webdetails.cpk.testUtils.CpkEnvironmentForTesting;
+import pt.webdetails.cpk.testUtils.PluginUtilsForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+public class CpkEngineReloadTest {
+
+  private static final String ELEMENT_ID = "reloadedtrans";
+
+  private static String userDir = System.getProperty( "user.dir" );
+  private static CpkEngine engine;
+  private static File folder;
+
+  @BeforeClass
+  public static void setUp() throws KettleException {
+    IRepositoryAccess repAccess = new VfsRepositoryAccess( userDir + "/test-resources/cpkSol",
+      userDir + "/test-resources/settings" );
+    IPluginUtils pluginUtils = new PluginUtilsForTesting();
+    ICpkEnvironment environment = new CpkEnvironmentForTesting( pluginUtils, repAccess );
+
+    KettleEnvironment.init();
+    engine = new CpkCoreService( environment ).getEngine();
+    folder = new File( userDir + "/test-resources/cpkSol/endpoints/kettle/reloadTest" ).getAbsoluteFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory( folder );
+    engine.reloadElements( Collections.singleton( folder ) );
+  }
+
+  /**
+   * Tests that removing a folder of a recursive element location unregisters the elements of the files inside it,
+   * although only the folder itself is reported as removed.
+   */
+  @Test
+  public void testRemovedFolderUnregistersItsElements() throws IOException {
+    // arrange
+    File file = new File( folder, "nested/reloadedTrans.ktr" );
+    FileUtils.copyFile( new File( userDir + "/test-resources/cpkSol/endpoints/kettle/create-result-rows.ktr" ),
+      file );
+    engine.reloadElements( Collections.singleton( file ) );
+    Assert.assertNotNull( engine.getElement( ELEMENT_ID ) );
+
+    // act
+    FileUtils.deleteDirectory( folder );
+    engine.reloadElements( Collections.singleton( folder ) );
+
+    // assert
+    Assert.assertNull( engine.getElement( ELEMENT_ID ) );
+    Assert.assertNotNull( engine.getElement( "create-result-rows" ) );
+  }
+}
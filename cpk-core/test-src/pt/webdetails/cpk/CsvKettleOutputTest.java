@@ -0,0 +1,161 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.Result;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import pt.webdetails.cpk.elements.impl.KettleResult;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.CsvKettleOutput;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.KettleOutput;
+import pt.webdetails.cpk.testUtils.HttpServletResponseForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+public class CsvKettleOutputTest {
+
+  private static RowMetaInterface textMeta;
+  private static RowMetaInterface typedMeta;
+  private static Object[] typedRow;
+
+  @BeforeClass
+  public static void setUp() throws KettleException {
+    KettleEnvironment.init();
+
+    textMeta = new RowMeta();
+    textMeta.addValueMeta( new ValueMetaString( "name" ) );
+    textMeta.addValueMeta( new ValueMetaString( "note" ) );
+
+    typedMeta = new RowMeta();
+    typedMeta.addValueMeta( new ValueMetaDate( "date" ) );
+    typedMeta.addValueMeta( new ValueMetaNumber( "number" ) );
+    typedMeta.addValueMeta( new ValueMetaBigNumber( "bigNumber" ) );
+    typedMeta.addValueMeta( new ValueMetaInteger( "integer" ) );
+    typedMeta.addValueMeta( new ValueMetaBoolean( "boolean" ) );
+    typedMeta.addValueMeta( new ValueMetaBinary( "binary" ) );
+
+    Calendar calendar = new GregorianCalendar( 2017, Calendar.JULY, 14, 10, 30, 0 );
+    calendar.set( Calendar.MILLISECOND, 123 );
+    Date date = calendar.getTime();
+    typedRow = new Object[] { date, 1234.5, new BigDecimal( "1E+3" ), 42L, true, new byte[] { 0, 1, 2, -1 } };
+  }
+
+  /**
+   * Tests that only values with the delimiter, the quote or line breaks are quoted, with quotes doubled, and that
+   * nulls and trailing elements of the data are left out.
+   */
+  @Test
+  public void testMinimalQuoting() throws Exception {
+    // act
+    String csv = write( new CsvKettleOutput( new CsvKettleOutput.Format() ), textMeta,
+      new Object[] { "plain", "a,b" },
+      new Object[] { "say \"hi\"", "line\nbreak" },
+      new Object[] { null, "", "trailing" } );
+
+    // assert
+    Assert.assertEquals( "name,note\r\n"
+      + "plain,\"a,b\"\r\n"
+      + "\"say \"\"hi\"\"\",\"line\nbreak\"\r\n"
+      + ",\r\n", csv );
+  }
+
+  /**
+   * Tests quoting every value, or none, and other quote and delimiter characters.
+   */
+  @Test
+  public void testQuotingAndDelimiter() throws Exception {
+    // act
+    String all = write( new CsvKettleOutput( new CsvKettleOutput.Format().setQuoting( CsvKettleOutput.Quoting.ALL ) ),
+      textMeta, new Object[] { "plain", "" }, new Object[] { null, "x" } );
+    String none = write( new CsvKettleOutput( new CsvKettleOutput.Format().setQuoting( CsvKettleOutput.Quoting.NONE ) ),
+      textMeta, new Object[] { "say \"hi\"", "a b" } );
+    String custom = write( new CsvKettleOutput( new CsvKettleOutput.Format().setDelimiter( ';' ).setQuote( '\'' ) ),
+      textMeta, new Object[] { "it's", "a;b" }, new Object[] { "a,b", "\"quoted\"" } );
+    String tsv = write( new CsvKettleOutput( new CsvKettleOutput.Format().setDelimiter( '\t' ).setHeader( false ) ),
+      textMeta, new Object[] { "a,b", "c\td" } );
+
+    // assert
+    Assert.assertEquals( "\"name\",\"note\"\r\n\"plain\",\"\"\r\n,\"x\"\r\n", all );
+    Assert.assertEquals( "name,note\r\nsay \"hi\",a b\r\n", none );
+    Assert.assertEquals( "name;note\r\n'it''s';'a;b'\r\na,b;\"quoted\"\r\n", custom );
+    Assert.assertEquals( "a,b\t\"c\td\"\r\n", tsv );
+  }
+
+  /**
+   * Tests that dates use the date format, numbers are written in full unless a number format is given, and binary
+   * values are Base64 encoded.
+   */
+  @Test
+  public void testFormats() throws Exception {
+    // arrange
+    CsvKettleOutput.Format custom = new CsvKettleOutput.Format().setHeader( false )
+      .setDateFormat( "dd/MM/yyyy" ).setNumberFormat( "#,##0.00" );
+
+    // act
+    String defaults = write( new CsvKettleOutput( new CsvKettleOutput.Format().setHeader( false ) ), typedMeta,
+      typedRow, new Object[] { null, 1.0E20, new BigDecimal( "-0.50" ), null, null, null } );
+    String formatted = write( new CsvKettleOutput( custom ), typedMeta, typedRow );
+
+    // assert
+    Assert.assertEquals( "2017-07-14 10:30:00.123,1234.5,1000,42,true,AAEC/w==\r\n"
+      + ",100000000000000000000,-0.50,,,\r\n", defaults );
+    // formatted numbers with the grouping separator are quoted, as it is the delimiter
+    Assert.assertEquals( "14/07/2017,\"1,234.50\",\"1,000.00\",42,true,AAEC/w==\r\n", formatted );
+  }
+
+  /**
+   * Tests that a result without rows has the header of the output step fields, if they are known.
+   */
+  @Test
+  public void testEmptyResultHeader() throws Exception {
+    // act
+    String withFields = write( new CsvKettleOutput( new CsvKettleOutput.Format() ).setOutputFields( textMeta ),
+      textMeta );
+    String withoutFields = write( new CsvKettleOutput( new CsvKettleOutput.Format() ), textMeta );
+    String withoutHeader = write( new CsvKettleOutput( new CsvKettleOutput.Format().setHeader( false ) )
+      .setOutputFields( textMeta ), textMeta );
+
+    // assert
+    Assert.assertEquals( "name,note\r\n", withFields );
+    Assert.assertEquals( "", withoutFields );
+    Assert.assertEquals( "", withoutHeader );
+  }
+
+  private static String write( CsvKettleOutput output, RowMetaInterface rowMeta, Object[]... rows ) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    output.setConfiguration( new KettleOutput.Configuration() );
+    output.setResponse( new HttpServletResponseForTesting( out ) );
+    for ( Object[] row : rows ) {
+      output.writeRow( rowMeta, row );
+    }
+    output.finish( new KettleResult( new Result() ), null );
+    return out.toString( "UTF-8" );
+  }
+}
@@ -0,0 +1,206 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.Result;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaInternetAddress;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.row.value.ValueMetaTimestamp;
+import pt.webdetails.cpk.elements.impl.KettleResult;
+import pt.webdetails.cpk.elements.impl.KettleResultCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class KettleResultCodecTest {
+
+  @BeforeClass
+  public static void setUp() throws KettleException {
+    KettleEnvironment.init();
+  }
+
+  /**
+   * Tests that values of every kettle type, and nulls, survive the serialization of a cached result.
+   */
+  @Test
+  public void testRoundTripAllValueTypes() throws Exception {
+    // arrange
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "string" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "number" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "integer" ) );
+    rowMeta.addValueMeta( new ValueMetaBigNumber( "bigNumber" ) );
+    rowMeta.addValueMeta( new ValueMetaBoolean( "boolean" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "date" ) );
+    rowMeta.addValueMeta( new ValueMetaTimestamp( "timestamp" ) );
+    rowMeta.addValueMeta( new ValueMetaBinary( "binary" ) );
+    rowMeta.addValueMeta( new ValueMetaInternetAddress( "internetAddress" ) );
+
+    Timestamp timestamp = new Timestamp( 1500000000123L );
+    timestamp.setNanos( 123456789 );
+    Object[] values = new Object[] { "a\u00e7\u00e3o", 3.25, 42L, new BigDecimal( "12345678901234567890.0100" ), true,
+      new Date( 1500000000000L ), timestamp, new byte[] { 0, 1, 2, -1 }, InetAddress.getByName( "127.0.0.1" ) };
+    Object[] nulls = new Object[ rowMeta.size() ];
+
+    Result result = new Result();
+    result.setResult( true );
+    result.setExitStatus( 3 );
+    result.setNrErrors( 1 );
+    result.setNrLinesWritten( 2 );
+    result.setRows( Arrays.asList( new RowMetaAndData( rowMeta, values ),
+      new RowMetaAndData( rowMeta.clone(), nulls ) ) );
+
+    // act
+    KettleResult actual = roundTrip( new KettleResult( result ) );
+
+    // assert
+    Assert.assertTrue( actual.wasExecutedSuccessfully() );
+    Assert.assertEquals( 3, actual.getExitStatus() );
+    Assert.assertEquals( 1, actual.getNumberOfErrors() );
+    Assert.assertEquals( 2, actual.getRows().size() );
+
+    RowMetaAndData first = actual.getRows().get( 0 );
+    RowMetaAndData second = actual.getRows().get( 1 );
+    Assert.assertSame( "rows with the same layout share the row meta", first.getRowMeta(), second.getRowMeta() );
+    for ( int i = 0; i < rowMeta.size(); i++ ) {
+      Assert.assertEquals( rowMeta.getValueMeta( i ).getName(), first.getRowMeta().getValueMeta( i ).getName() );
+      Assert.assertEquals( rowMeta.getValueMeta( i ).getType(), first.getRowMeta().getValueMeta( i ).getType() );
+      Assert.assertNull( second.getData()[ i ] );
+    }
+    Object[] actualValues = first.getData();
+    Assert.assertEquals( values[ 0 ], actualValues[ 0 ] );
+    Assert.assertEquals( values[ 1 ], actualValues[ 1 ] );
+    Assert.assertEquals( values[ 2 ], actualValues[ 2 ] );
+    Assert.assertEquals( values[ 3 ], actualValues[ 3 ] );
+    Assert.assertEquals( values[ 4 ], actualValues[ 4 ] );
+    Assert.assertEquals( values[ 5 ], actualValues[ 5 ] );
+    Assert.assertEquals( values[ 6 ], actualValues[ 6 ] );
+    Assert.assertArrayEquals( (byte[]) values[ 7 ], (byte[]) actualValues[ 7 ] );
+    Assert.assertEquals( values[ 8 ], actualValues[ 8 ] );
+  }
+
+  /**
+   * Tests that results of several megabytes, with strings longer than 64KB, are serialized.
+   */
+  @Test
+  public void testRoundTripLargeResult() throws Exception {
+    // arrange
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "text" ) );
+
+    char[] chars = new char[ 3 * 1024 * 1024 ];
+    Arrays.fill( chars, 'x' );
+    String largeText = new String( chars );
+
+    int rowCount = 100000;
+    List<RowMetaAndData> rows = new ArrayList<RowMetaAndData>( rowCount );
+    rows.add( new RowMetaAndData( rowMeta, new Object[] { 0L, largeText } ) );
+    for ( long i = 1; i < rowCount; i++ ) {
+      rows.add( new RowMetaAndData( rowMeta, new Object[] { i, "row " + i } ) );
+    }
+    Result result = new Result();
+    result.setRows( rows );
+
+    // act
+    KettleResult actual = roundTrip( new KettleResult( result ) );
+
+    // assert
+    Assert.assertEquals( rowCount, actual.getRows().size() );
+    Assert.assertEquals( largeText, actual.getRows().get( 0 ).getData()[ 1 ] );
+    Assert.assertEquals( rowCount - 1L, actual.getRows().get( rowCount - 1 ).getData()[ 0 ] );
+    Assert.assertEquals( "row " + ( rowCount - 1 ), actual.getRows().get( rowCount - 1 ).getData()[ 1 ] );
+  }
+
+  /**
+   * Tests that the log text is only kept when asked for.
+   */
+  @Test
+  public void testLogTextIsOptional() throws Exception {
+    // arrange
+    Result result = new Result();
+    result.setLogText( "some log" );
+
+    // act
+    Result withLogText = KettleResultCodec.read( new DataInputStream( new ByteArrayInputStream(
+      encode( result, true ) ) ) );
+    Result withoutLogText = KettleResultCodec.read( new DataInputStream( new ByteArrayInputStream(
+      encode( result, false ) ) ) );
+
+    // assert
+    Assert.assertEquals( "some log", withLogText.getLogText() );
+    Assert.assertNull( withoutLogText.getLogText() );
+  }
+
+  /**
+   * Tests that data of an unknown version is refused instead of being misread.
+   */
+  @Test( expected = IOException.class )
+  public void testUnknownVersionIsRefused() throws Exception {
+    // arrange
+    byte[] bytes = encode( new Result(), false );
+    bytes[ 4 ] = (byte) ( KettleResultCodec.VERSION + 1 );
+
+    // act
+    KettleResultCodec.read( new DataInputStream( new ByteArrayInputStream( bytes ) ) );
+  }
+
+  private static byte[] encode( Result result, boolean includeLogText ) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bytes );
+    KettleResultCodec.write( result, out, includeLogText );
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static KettleResult roundTrip( KettleResult result ) throws IOException, ClassNotFoundException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream( bytes );
+    out.writeObject( result );
+    out.close();
+
+    ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) );
+    try {
+      return (KettleResult) in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+}
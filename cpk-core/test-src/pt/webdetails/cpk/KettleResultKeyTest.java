@@ -0,0 +1,100 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.junit.Assert;
+import org.junit.Test;
+import pt.webdetails.cpk.elements.impl.KettleResultKey;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public class KettleResultKeyTest {
+
+  private static final String PLUGIN_ID = "plugin";
+  private static final String ELEMENT_ID = "element";
+
+  /**
+   * Tests that a parameter that is not given and one given with its default value produce the same key.
+   */
+  @Test
+  public void testOmittedParameterTakesItsDefault() {
+    // arrange
+    Map<String, String> values = new HashMap<String, String>();
+    values.put( "p", "a" );
+
+    // act
+    KettleResultKey omitted = this.createKey( new HashMap<String, String>() );
+    KettleResultKey given = this.createKey( values );
+
+    // assert
+    Assert.assertEquals( given, omitted );
+    Assert.assertEquals( given.hashCode(), omitted.hashCode() );
+  }
+
+  /**
+   * Tests that values differing only in surrounding whitespace, which the transformation receives as given,
+   * produce different keys.
+   */
+  @Test
+  public void testWhitespaceIsPartOfTheKey() {
+    // arrange
+    Map<String, String> values = new HashMap<String, String>();
+    values.put( "p", "a" );
+    Map<String, String> paddedValues = new HashMap<String, String>();
+    paddedValues.put( "p", " a" );
+
+    // act
+    KettleResultKey key = this.createKey( values );
+    KettleResultKey paddedKey = this.createKey( paddedValues );
+
+    // assert
+    Assert.assertFalse( key.equals( paddedKey ) );
+    Assert.assertEquals( " a", paddedKey.getParameters().get( "p" ) );
+  }
+
+  /**
+   * Tests that merging the values into the defaults produces the same key as the merged parameters.
+   */
+  @Test
+  public void testMergedKeyEqualsKeyOfMergedParameters() {
+    // arrange
+    Map<String, String> values = new HashMap<String, String>();
+    values.put( "q", " b " );
+    values.put( "injected", "c" );
+    Map<String, String> merged = new HashMap<String, String>( this.createDefaults() );
+    merged.putAll( values );
+
+    // act
+    KettleResultKey key = this.createKey( values );
+    KettleResultKey mergedKey = new KettleResultKey( PLUGIN_ID, ELEMENT_ID, null, merged );
+
+    // assert
+    Assert.assertEquals( mergedKey, key );
+    Assert.assertEquals( merged, key.getParameters() );
+  }
+
+  private KettleResultKey createKey( Map<String, String> values ) {
+    return new KettleResultKey( PLUGIN_ID, ELEMENT_ID, null, this.createDefaults(), values );
+  }
+
+  private SortedMap<String, String> createDefaults() {
+    SortedMap<String, String> defaults = new TreeMap<String, String>();
+    defaults.put( "p", "a" );
+    defaults.put( "q", "" );
+    return defaults;
+  }
+}
@@ -0,0 +1,219 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.DelegatingServletOutputStream;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.RenderedResponse;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.ResponseCapture;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class RenderedResponseTest {
+
+  private static final byte[] BODY = "{\"resultset\":[]}".getBytes();
+
+  // region RenderedResponse
+
+  /**
+   * Tests that If-None-Match matches the ETag, as a weak tag, as * and within a list of tags.
+   */
+  @Test
+  public void testMatches() {
+    // arrange
+    RenderedResponse rendered = createRendered( null );
+    String etag = rendered.getETag();
+
+    // act & assert
+    Assert.assertTrue( rendered.matches( etag ) );
+    Assert.assertTrue( rendered.matches( "W/" + etag ) );
+    Assert.assertTrue( rendered.matches( "*" ) );
+    Assert.assertTrue( rendered.matches( "\"other\", " + etag ) );
+    Assert.assertTrue( rendered.matches( "\"other\",W/" + etag + " ,\"another\"" ) );
+    Assert.assertFalse( rendered.matches( "\"other\"" ) );
+    Assert.assertFalse( rendered.matches( "W/\"other\", \"another\"" ) );
+    Assert.assertFalse( rendered.matches( null ) );
+  }
+
+  /**
+   * Tests that the ETag depends only on the content.
+   */
+  @Test
+  public void testETagFromContent() {
+    // arrange
+    RenderedResponse rendered = createRendered( null );
+
+    // act
+    RenderedResponse sameContent = createRendered( "public, max-age=60" );
+    RenderedResponse otherContent = new RenderedResponse( new String[ 0 ], new String[ 0 ], "[]".getBytes() );
+
+    // assert
+    Assert.assertEquals( rendered.getETag(), sameContent.getETag() );
+    Assert.assertFalse( rendered.getETag().equals( otherContent.getETag() ) );
+  }
+
+  /**
+   * Tests that a client that already holds the response gets a 304 (Not Modified) with the headers but no body.
+   */
+  @Test
+  public void testNotModified() throws IOException {
+    // arrange
+    RenderedResponse rendered = createRendered( "private, max-age=60" );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse response = createResponse( out );
+
+    // act
+    rendered.writeTo( response, "W/" + rendered.getETag() );
+
+    // assert
+    Mockito.verify( response ).setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+    Mockito.verify( response ).setHeader( "ETag", rendered.getETag() );
+    Mockito.verify( response ).setHeader( "Content-Type", "application/json" );
+    Mockito.verify( response, Mockito.never() ).getOutputStream();
+    Assert.assertEquals( 0, out.size() );
+  }
+
+  /**
+   * Tests that a client that does not hold the response gets the body, its length and headers.
+   */
+  @Test
+  public void testWritesBody() throws IOException {
+    // arrange
+    RenderedResponse rendered = createRendered( "private, max-age=60" );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse response = createResponse( out );
+
+    // act
+    rendered.writeTo( response, "\"other\"" );
+
+    // assert
+    Mockito.verify( response, Mockito.never() ).setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+    Mockito.verify( response ).setHeader( "Content-Type", "application/json" );
+    Mockito.verify( response ).setHeader( "Cache-Control", "private, max-age=60" );
+    Mockito.verify( response ).setHeader( "Content-Length", String.valueOf( BODY.length ) );
+    Assert.assertArrayEquals( BODY, out.toByteArray() );
+  }
+
+  /**
+   * Tests that responses without Cache-Control are revalidated, and that an explicit no-store is kept.
+   */
+  @Test
+  public void testCacheControl() throws IOException {
+    // arrange
+    HttpServletResponse revalidated = createResponse( new ByteArrayOutputStream() );
+    HttpServletResponse notStored = createResponse( new ByteArrayOutputStream() );
+
+    // act
+    createRendered( null ).writeTo( revalidated, null );
+    createRendered( "max-age=0, no-store" ).writeTo( notStored, null );
+
+    // assert
+    Mockito.verify( revalidated ).setHeader( "Cache-Control", "private, no-cache" );
+    Mockito.verify( notStored ).setHeader( "Cache-Control", "max-age=0, no-store" );
+  }
+
+  // endregion
+
+  // region ResponseCapture
+
+  /**
+   * Tests that the body is held back and kept, together with the headers, until the capture is completed.
+   */
+  @Test
+  public void testCapture() throws IOException {
+    // arrange
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse response = createResponse( out );
+    ResponseCapture capture = new ResponseCapture( response, 1024 );
+
+    // act
+    capture.setContentType( "application/json" );
+    capture.setHeader( "Cache-Control", "public, max-age=60" );
+    capture.getOutputStream().write( BODY );
+    capture.getOutputStream().flush();
+    int writtenBeforeCompletion = out.size();
+    RenderedResponse rendered = capture.complete();
+
+    // assert
+    Assert.assertEquals( 0, writtenBeforeCompletion );
+    Assert.assertNotNull( rendered );
+    Assert.assertArrayEquals( BODY, rendered.getBody() );
+    Mockito.verify( response ).setContentType( "application/json" );
+    Mockito.verify( response ).setHeader( "Cache-Control", "public, max-age=60" );
+    rendered.writeTo( response, null );
+    Assert.assertArrayEquals( BODY, out.toByteArray() );
+  }
+
+  /**
+   * Tests that a body over the limit is not kept, and is written to the wrapped response.
+   */
+  @Test
+  public void testPassThroughOverLimit() throws IOException {
+    // arrange
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ResponseCapture capture = new ResponseCapture( createResponse( out ), 4 );
+
+    // act
+    capture.getOutputStream().write( BODY, 0, 3 );
+    capture.getOutputStream().write( BODY, 3, BODY.length - 3 );
+    RenderedResponse rendered = capture.complete();
+
+    // assert
+    Assert.assertNull( rendered );
+    Assert.assertArrayEquals( BODY, out.toByteArray() );
+  }
+
+  /**
+   * Tests that responses with a status other than 200 (OK) are not kept, but still written.
+   */
+  @Test
+  public void testPassThroughOnStatus() throws IOException {
+    // arrange
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ResponseCapture capture = new ResponseCapture( createResponse( out ), 1024 );
+
+    // act
+    capture.setStatus( HttpServletResponse.SC_NOT_FOUND );
+    capture.getOutputStream().write( BODY );
+    RenderedResponse rendered = capture.complete();
+
+    // assert
+    Assert.assertNull( rendered );
+    Assert.assertArrayEquals( BODY, out.toByteArray() );
+  }
+
+  // endregion
+
+  // region Aux
+
+  private static RenderedResponse createRendered( String cacheControl ) {
+    String[] names = cacheControl == null
+      ? new String[] { "Content-Type" } : new String[] { "Content-Type", "Cache-Control" };
+    String[] values = cacheControl == null
+      ? new String[] { "application/json" } : new String[] { "application/json", cacheControl };
+    return new RenderedResponse( names, values, BODY );
+  }
+
+  private static HttpServletResponse createResponse( ByteArrayOutputStream out ) throws IOException {
+    HttpServletResponse response = Mockito.mock( HttpServletResponse.class );
+    Mockito.when( response.getOutputStream() ).thenReturn( new DelegatingServletOutputStream( out ) );
+    return response;
+  }
+
+  // endregion
+}
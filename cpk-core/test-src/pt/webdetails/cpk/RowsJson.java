@@ -11,10 +11,11 @@
 * the license for the specific language governing your rights and limitations.
 */
 
-package pt.webdetails.cpk.elements.impl.kettleoutputs;
+package pt.webdetails.cpk;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.annotate.JsonPropertyOrder;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
@@ -23,13 +24,19 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
-// This class aids in the construction of a CDA-like JSON output (made to be build with jackson library)
+/**
+ * The CDA-like JSON output as it used to be built, by serializing this class with the jackson ObjectMapper.
+ * Kept as the reference that RowsJsonWriter must produce byte for byte.
+ */
+@JsonPropertyOrder( { "metadata", "resultset", "queryInfo" } )
 public class RowsJson {
   private ArrayList<Object[]> rows;
   private RowMetaInterface rowsMeta;
+  private QueryInfo queryInfo;
 
   public RowsJson( Collection<Object[]> rows, RowMetaInterface meta ) {
     init( rows, meta );
+    this.queryInfo = new QueryInfo( this.rows.size() );
   }
 
   @JsonIgnore
@@ -40,8 +47,7 @@ public class RowsJson {
 
   @JsonProperty( "queryInfo" )
   private QueryInfo getQueryInfo() {
-    QueryInfo queryInfo = new QueryInfo( this.rows.size() );
-    return queryInfo;
+    return this.queryInfo;
   }
 
   @JsonProperty( "resultset" )
@@ -73,6 +79,7 @@ public class RowsJson {
   }
 
 
+  @JsonPropertyOrder( { "colIndex", "colType", "colName" } )
   private class Metadata {
     private int colIndex;
     private String colType;
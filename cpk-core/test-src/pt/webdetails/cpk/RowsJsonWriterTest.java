@@ -0,0 +1,174 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+
+package pt.webdetails.cpk;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.Result;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaInternetAddress;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.row.value.ValueMetaTimestamp;
+import pt.webdetails.cpk.elements.impl.KettleResult;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.JsonKettleOutput;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.KettleOutput;
+import pt.webdetails.cpk.elements.impl.kettleoutputs.RowsJsonWriter;
+import pt.webdetails.cpk.testUtils.HttpServletResponseForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class RowsJsonWriterTest {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @BeforeClass
+  public static void setUp() throws KettleException {
+    KettleEnvironment.init();
+  }
+
+  /**
+   * Tests that the output is byte for byte the one of the ObjectMapper serializing RowsJson, for values of every
+   * kettle type.
+   */
+  @Test
+  public void testSameOutputAsRowsJson() throws Exception {
+    // arrange
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "string" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "number" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "integer" ) );
+    rowMeta.addValueMeta( new ValueMetaBigNumber( "bigNumber" ) );
+    rowMeta.addValueMeta( new ValueMetaBoolean( "boolean" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "date" ) );
+    rowMeta.addValueMeta( new ValueMetaTimestamp( "timestamp" ) );
+    rowMeta.addValueMeta( new ValueMetaBinary( "binary" ) );
+    rowMeta.addValueMeta( new ValueMetaInternetAddress( "internetAddress" ) );
+
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add( new Object[] { "a\u00e7\u00e3o \"quoted\"\n", 3.25, 42L, new BigDecimal( "12345678901234567890.0100" ),
+      true, new Date( 1500000000000L ), new Timestamp( 1500000000123L ), new byte[] { 0, 1, 2, -1 },
+      InetAddress.getByName( "127.0.0.1" ) } );
+    rows.add( new Object[] { "", -0.0, Long.MIN_VALUE, new BigDecimal( "1E+3" ), false, new java.sql.Date( 0 ),
+      new Timestamp( 0 ), new byte[ 0 ], null, "trailing" } );
+    rows.add( new Object[ rowMeta.size() ] );
+    // a value of an unexpected class is written as the mapper would
+    rows.add( new Object[] { 7, 1.5f, "42", 3L, "true", "2017-07-14", null, "binary", null } );
+
+    // act
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator( out, JsonEncoding.UTF8 );
+    RowsJsonWriter writer = new RowsJsonWriter( generator );
+    writer.writeStart();
+    for ( Object[] row : rows ) {
+      writer.writeRow( rowMeta, row );
+    }
+    writer.writeEnd();
+    generator.close();
+    String actual = out.toString( "UTF-8" );
+
+    // assert
+    List<Object[]> expectedRows = new ArrayList<Object[]>();
+    for ( Object[] row : rows ) {
+      expectedRows.add( Arrays.copyOfRange( row, 0, rowMeta.size() ) );
+    }
+    Assert.assertEquals( mapper.writeValueAsString( new RowsJson( expectedRows, rowMeta ) ), actual );
+  }
+
+  /**
+   * Tests that skipped rows are counted in totalRows but not written.
+   */
+  @Test
+  public void testSkipRows() throws Exception {
+    // arrange
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "integer" ) );
+
+    // act
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator( out, JsonEncoding.UTF8 );
+    RowsJsonWriter writer = new RowsJsonWriter( generator ).setPage( 10, 2 );
+    writer.writeStart();
+    writer.skipRows( rowMeta, 10 );
+    writer.writeRow( rowMeta, new Object[] { 10L } );
+    writer.writeRow( rowMeta, new Object[] { 11L } );
+    writer.skipRows( rowMeta, 5 );
+    writer.writeEnd();
+    generator.close();
+
+    // assert
+    Assert.assertEquals( "{\"metadata\":[{\"colIndex\":0,\"colType\":\"Integer\",\"colName\":\"integer\"}],"
+      + "\"resultset\":[[10],[11]],\"queryInfo\":{\"totalRows\":17,\"pageStart\":10,\"pageSize\":2}}",
+      out.toString( "UTF-8" ) );
+  }
+
+  /**
+   * Tests that a client that accepts Smile gets the same Json structure in that encoding.
+   */
+  @Test
+  public void testSmileNegotiation() throws Exception {
+    // arrange
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "string" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "number" ) );
+    List<RowMetaAndData> rows = new ArrayList<RowMetaAndData>();
+    rows.add( new RowMetaAndData( rowMeta, new Object[] { "a", 1.5 } ) );
+    rows.add( new RowMetaAndData( rowMeta, new Object[] { null, -2.0 } ) );
+    Result result = new Result();
+    result.setRows( rows );
+
+    // act
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    KettleOutput jsonOutput = new JsonKettleOutput()
+      .setConfiguration( new KettleOutput.Configuration().setAccept( "application/json" ) )
+      .setResponse( new HttpServletResponseForTesting( json ) );
+    jsonOutput.processResult( new KettleResult( result ) );
+
+    ByteArrayOutputStream smile = new ByteArrayOutputStream();
+    KettleOutput smileOutput = new JsonKettleOutput()
+      .setConfiguration( new KettleOutput.Configuration()
+        .setAccept( "application/json;q=0.5, " + KettleOutput.SMILE_MIME_TYPE ) )
+      .setResponse( new HttpServletResponseForTesting( smile ) );
+    smileOutput.processResult( new KettleResult( result ) );
+
+    // assert
+    Assert.assertEquals( KettleOutput.SMILE_MIME_TYPE, smileOutput.getConfiguration().getMimeType() );
+    ObjectMapper smileMapper = new ObjectMapper( new SmileFactory() );
+    Assert.assertEquals( mapper.readTree( json.toString( "UTF-8" ) ), smileMapper.readTree(
+      new ByteArrayInputStream( smile.toByteArray() ) ) );
+  }
+}
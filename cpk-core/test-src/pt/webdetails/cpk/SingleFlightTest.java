@@ -0,0 +1,213 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import pt.webdetails.cpk.execution.ExecutionControl;
+import pt.webdetails.cpk.execution.SingleFlight;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+  private static final int CALLERS = 4;
+  private static final String KEY = "key";
+
+  private ExecutorService pool;
+  private SingleFlight<String, String> singleFlight;
+  private AtomicInteger executions;
+  private CountDownLatch release;
+
+  @Before
+  public void setUp() {
+    this.pool = Executors.newCachedThreadPool();
+    this.singleFlight = new SingleFlight<String, String>();
+    this.executions = new AtomicInteger();
+    this.release = new CountDownLatch( 1 );
+  }
+
+  @After
+  public void tearDown() {
+    this.pool.shutdownNow();
+  }
+
+  /**
+   * Tests that concurrent callers with an equal key run a single execution and share its value.
+   */
+  @Test
+  public void testConcurrentCallersShareOneExecution() throws Exception {
+    // arrange
+    Callable<String> execution = new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        executions.incrementAndGet();
+        release.await();
+        return "value";
+      }
+    };
+    List<Future<String>> callers = this.startCallers( execution, CALLERS );
+
+    // act
+    this.release.countDown();
+
+    // assert
+    for ( Future<String> caller : callers ) {
+      Assert.assertEquals( "value", caller.get( 5, TimeUnit.SECONDS ) );
+    }
+    Assert.assertEquals( 1, this.executions.get() );
+    Assert.assertEquals( 0, this.singleFlight.getInFlightCount() );
+  }
+
+  /**
+   * Tests that an exception thrown by the execution is rethrown to every caller that waited for it.
+   */
+  @Test
+  public void testExceptionPropagatesToAllCallers() throws Exception {
+    // arrange
+    Callable<String> execution = new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        executions.incrementAndGet();
+        release.await();
+        throw new IllegalStateException( "failed" );
+      }
+    };
+    List<Future<String>> callers = this.startCallers( execution, CALLERS );
+
+    // act
+    this.release.countDown();
+
+    // assert
+    for ( Future<String> caller : callers ) {
+      try {
+        caller.get( 5, TimeUnit.SECONDS );
+        Assert.fail( "The exception of the execution should be rethrown." );
+      } catch ( ExecutionException e ) {
+        Assert.assertTrue( e.getCause() instanceof IllegalStateException );
+        Assert.assertEquals( "failed", e.getCause().getMessage() );
+      }
+    }
+    Assert.assertEquals( 1, this.executions.get() );
+  }
+
+  /**
+   * Tests that the incomplete value of a stopped execution is not shared, and that the waiting caller runs the
+   * execution again.
+   */
+  @Test
+  public void testStoppedLeaderIsNotShared() throws Exception {
+    // arrange
+    final ExecutionControl leaderControl = new ExecutionControl();
+    Callable<String> execution = new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        if ( executions.incrementAndGet() == 1 ) {
+          release.await();
+          leaderControl.stop( ExecutionControl.StopReason.TIMEOUT );
+          return "partial";
+        }
+        return "complete";
+      }
+    };
+    Future<String> leader = this.startCaller( execution, leaderControl );
+    this.awaitInFlight();
+    Future<String> waiter = this.startCaller( execution, new ExecutionControl() );
+    Thread.sleep( 200 );
+
+    // act
+    this.release.countDown();
+
+    // assert
+    Assert.assertEquals( "partial", leader.get( 5, TimeUnit.SECONDS ) );
+    Assert.assertEquals( "complete", waiter.get( 5, TimeUnit.SECONDS ) );
+    Assert.assertEquals( 2, this.executions.get() );
+  }
+
+  /**
+   * Tests that a waiting caller stops waiting when it reaches its own deadline or is cancelled, while the execution
+   * it waited for goes on.
+   */
+  @Test
+  public void testWaiterStopsAtItsDeadlineOrCancel() throws Exception {
+    // arrange
+    Callable<String> execution = new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        executions.incrementAndGet();
+        release.await();
+        return "value";
+      }
+    };
+    Future<String> leader = this.startCaller( execution, new ExecutionControl() );
+    this.awaitInFlight();
+    ExecutionControl timedControl = new ExecutionControl( 1 );
+    ExecutionControl cancelledControl = new ExecutionControl();
+    Future<String> timedWaiter = this.startCaller( execution, timedControl );
+    Future<String> cancelledWaiter = this.startCaller( execution, cancelledControl );
+
+    // act
+    cancelledControl.cancel();
+
+    // assert
+    Assert.assertNull( cancelledWaiter.get( 5, TimeUnit.SECONDS ) );
+    Assert.assertNull( timedWaiter.get( 5, TimeUnit.SECONDS ) );
+    Assert.assertEquals( ExecutionControl.StopReason.TIMEOUT, timedControl.getStopReason() );
+    Assert.assertFalse( leader.isDone() );
+    this.release.countDown();
+    Assert.assertEquals( "value", leader.get( 5, TimeUnit.SECONDS ) );
+    Assert.assertEquals( 1, this.executions.get() );
+  }
+
+  private Future<String> startCaller( final Callable<String> execution, final ExecutionControl control ) {
+    return this.pool.submit( new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return singleFlight.execute( KEY, execution, control );
+      }
+    } );
+  }
+
+  /**
+   * Starts a caller, and once its execution is running, the other callers that wait for it.
+   */
+  private List<Future<String>> startCallers( Callable<String> execution, int count ) throws InterruptedException {
+    List<Future<String>> callers = new ArrayList<Future<String>>();
+    callers.add( this.startCaller( execution, new ExecutionControl() ) );
+    this.awaitInFlight();
+    for ( int i = 1; i < count; i++ ) {
+      callers.add( this.startCaller( execution, new ExecutionControl() ) );
+    }
+    // let the waiting callers find the running execution
+    Thread.sleep( 200 );
+    return callers;
+  }
+
+  private void awaitInFlight() throws InterruptedException {
+    while ( this.executions.get() == 0 ) {
+      Thread.sleep( 10 );
+    }
+  }
+}
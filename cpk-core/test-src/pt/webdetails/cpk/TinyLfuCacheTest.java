@@ -0,0 +1,125 @@
+/*!
+* Copyright 2002 - 2016 Webdetails, a Pentaho company.  All rights reserved.
+*
+* This software was developed by Webdetails and is provided under the terms
+* of the Mozilla Public License, Version 2.0, or any later version. You may not use
+* this file except in compliance with the license. If you need a copy of the license,
+* please go to  http://mozilla.org/MPL/2.0/. The Initial Developer is Webdetails.
+*
+* Software distributed under the Mozilla Public License is distributed on an "AS IS"
+* basis, WITHOUT WARRANTY OF ANY KIND, either express or  implied. Please refer to
+* the license for the specific language governing your rights and limitations.
+*/
+
+package pt.webdetails.cpk;
+
+import org.junit.Assert;
+import org.junit.Test;
+import pt.webdetails.cpk.cache.ISizedValue;
+import pt.webdetails.cpk.cache.TinyLfuCache;
+
+public class TinyLfuCacheTest {
+
+  /**
+   * Tests that values are stored, replaced and removed.
+   */
+  @Test
+  public void testPutGetRemove() {
+    // arrange
+    TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>( "test", 10, 0 );
+
+    // act
+    cache.put( "a", "1" );
+    cache.put( "a", "2" );
+    cache.put( "b", "3" );
+    boolean removed = cache.remove( "b" );
+
+    // assert
+    Assert.assertEquals( "2", cache.get( "a" ) );
+    Assert.assertNull( cache.get( "b" ) );
+    Assert.assertTrue( removed );
+    Assert.assertFalse( cache.remove( "b" ) );
+  }
+
+  /**
+   * Tests that a value is not returned after its time to live.
+   */
+  @Test
+  public void testTimeToLive() throws InterruptedException {
+    // arrange
+    TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>( "test", 10, 0 );
+    cache.put( "short", "1", 1 );
+    cache.put( "forever", "2" );
+
+    // act
+    Thread.sleep( 1100 );
+
+    // assert
+    Assert.assertNull( cache.get( "short" ) );
+    Assert.assertEquals( "2", cache.get( "forever" ) );
+  }
+
+  /**
+   * Tests that a scan of values used only once does not evict the frequently used ones.
+   */
+  @Test
+  public void testFrequentValuesSurviveScan() {
+    // arrange
+    TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>( "test", 100, 0 );
+    for ( int key = 0; key < 10; key++ ) {
+      cache.put( key, "hot" );
+    }
+    for ( int round = 0; round < 50; round++ ) {
+      for ( int key = 0; key < 10; key++ ) {
+        cache.get( key );
+      }
+    }
+
+    // act
+    for ( int key = 1000; key < 2000; key++ ) {
+      cache.put( key, "cold" );
+    }
+
+    // assert
+    for ( int key = 0; key < 10; key++ ) {
+      Assert.assertEquals( "hot", cache.get( key ) );
+    }
+  }
+
+  /**
+   * Tests that values over the per entry limit are not cached, and that the byte budget is kept.
+   */
+  @Test
+  public void testMaxBytes() {
+    // arrange
+    TinyLfuCache<Integer, Sized> cache = new TinyLfuCache<Integer, Sized>( "test", 100, 0 );
+    cache.setMaxBytes( 1000, 500 );
+
+    // act
+    cache.put( -1, new Sized( 600 ) );
+    for ( int key = 0; key < 20; key++ ) {
+      cache.put( key, new Sized( 100 ) );
+    }
+
+    // assert
+    Assert.assertNull( cache.get( -1 ) );
+    int cached = 0;
+    for ( Integer ignored : cache.getKeys() ) {
+      cached++;
+    }
+    Assert.assertTrue( cached <= 10 );
+  }
+
+  private static final class Sized implements ISizedValue {
+    private final long size;
+
+    Sized( long size ) {
+      this.size = size;
+    }
+
+    @Override
+    public long getEstimatedSize() {
+      return this.size;
+    }
+  }
+}
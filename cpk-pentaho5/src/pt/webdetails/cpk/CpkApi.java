@@ -57,6 +57,7 @@ import pt.webdetails.cpf.utils.PluginUtils;
 import pt.webdetails.cpk.datasources.DataSource;
 import pt.webdetails.cpk.elements.IDataSourceProvider;
 import pt.webdetails.cpk.elements.IElement;
+import pt.webdetails.cpk.elements.impl.KettleElementHelper;
 import pt.webdetails.cpk.sitemap.LinkGenerator;
 import org.apache.commons.io.IOUtils;
 import pt.webdetails.cpk.utils.CpkUtils;
@@ -71,7 +72,7 @@ public class CpkApi {
   private static final String DEFAULT_NO_DASHBOARD_MESSAGE = "This plugin does not contain a dashboard";
 
   private static final String[] reservedWords = { "ping", "default", "reload", "refresh", "version", "status",
-    "getSitemapJson", "elementsList", "listDataAccessTypes", "reloadPlugins" };
+    "getSitemapJson", "elementsList", "listDataAccessTypes", "reloadPlugins", "execution" };
 
   protected CpkCoreService coreService;
   protected ICpkEnvironment cpkEnv;
@@ -322,10 +323,66 @@ public class CpkApi {
 
   }
 
+  @GET
+  @Path( "/execution/{executionId}" )
+  public void executionStatus( @PathParam( "executionId" ) String executionId,
+                               @Context HttpServletResponse response ) throws IOException {
+    coreService.executionStatus( executionId, response.getOutputStream(), response );
+  }
+
+  @GET
+  @Path( "/execution/{executionId}/result" )
+  public void executionResult( @PathParam( "executionId" ) String executionId, @Context HttpServletRequest request,
+                               @Context HttpServletResponse response, @Context HttpHeaders headers )
+    throws IOException {
+    setCorsHeaders( request, response );
+    coreService.executionResult( executionId, buildBloatedMap( request, response, headers ) );
+    response.getOutputStream().flush();
+  }
+
+  @GET
+  @Path( "/execution/{executionId}/cancel" )
+  public void cancelExecutionGet( @PathParam( "executionId" ) String executionId,
+                                  @Context HttpServletResponse response ) throws IOException {
+    coreService.cancelExecution( executionId, response.getOutputStream(), response );
+  }
+
+  @POST
+  @Path( "/execution/{executionId}/cancel" )
+  public void cancelExecutionPost( @PathParam( "executionId" ) String executionId,
+                                   @Context HttpServletResponse response ) throws IOException {
+    coreService.cancelExecution( executionId, response.getOutputStream(), response );
+  }
+
+  /**
+   * Clears the results cache, or only the results of an element (request parameter element, optionally narrowed by
+   * param-prefixed parameter values) and/or the results tagged by cpk.cache.tags (request parameter tag).
+   * Writes the number of removed results.
+   */
   @GET
   @Path( "/clearCache" )
-  public void clearKettleResultsCache() {
-    this.coreService.clearKettleResultsCache();
+  @Produces( MimeTypes.PLAIN_TEXT )
+  public void clearKettleResultsCacheGet( @Context HttpServletRequest request, @Context HttpServletResponse response,
+                                          @Context HttpHeaders headers ) throws IOException {
+    clearKettleResultsCache( request, response, headers );
+  }
+
+  @POST
+  @Path( "/clearCache" )
+  @Produces( MimeTypes.PLAIN_TEXT )
+  public void clearKettleResultsCachePost( @Context HttpServletRequest request, @Context HttpServletResponse response,
+                                           @Context HttpHeaders headers ) throws IOException {
+    clearKettleResultsCache( request, response, headers );
+  }
+
+  private void clearKettleResultsCache( HttpServletRequest request, HttpServletResponse response,
+                                        HttpHeaders headers ) throws IOException {
+    Map<String, Object> requestMap = buildRequestMap( request, headers );
+    Object elementId = requestMap.get( "element" );
+    Object tag = requestMap.get( "tag" );
+    int evicted = this.coreService.clearKettleResultsCache( elementId != null ? elementId.toString() : null,
+      KettleElementHelper.getKettleParameters( requestMap ), tag != null ? tag.toString() : null );
+    writeMessage( response.getOutputStream(), evicted < 0 ? "Cache cleared" : "Removed " + evicted + " results" );
   }
 
 